@@ -0,0 +1,139 @@
+package com.hmsoft.locationlogger.data.sqlite;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Snapshots a WAL database with a pending write transaction on another connection.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseSnapshotTest {
+
+    private static final long JANUARY = 1767225600000L; // 2026-01-01 UTC
+    private static final long MARCH = 1772323200000L; // 2026-03-01 UTC
+    private static final int FUEL_ROWS = 2500;
+
+    private File mDirectory;
+    private File mDatabaseFile;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void createDatabase() {
+        mDirectory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "snapshot-test");
+        mDirectory.mkdirs();
+        mDatabaseFile = new File(mDirectory, "source.db");
+        SQLiteDatabase.deleteDatabase(mDatabaseFile);
+
+        mDb = SQLiteDatabase.openOrCreateDatabase(mDatabaseFile, null);
+        mDb.enableWriteAheadLogging();
+        mDb.setVersion(Helper.DATABASE_VERSION);
+        mDb.execSQL("CREATE TABLE fuel (id INTEGER PRIMARY KEY, note TEXT)");
+        mDb.execSQL("CREATE INDEX idx_fuel_note ON fuel (note)");
+        String january = LocationPartitions.shardName(JANUARY);
+        String march = LocationPartitions.shardName(MARCH);
+        mDb.execSQL("CREATE TABLE " + january + " (timestamp INTEGER PRIMARY KEY, latitude REAL)");
+        mDb.execSQL("CREATE TABLE " + march + " (timestamp INTEGER PRIMARY KEY, latitude REAL)");
+
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < FUEL_ROWS; i++) {
+                mDb.execSQL("INSERT INTO fuel (note) VALUES (?)", new Object[]{"note " + i});
+            }
+            for (int i = 0; i < 3; i++) {
+                mDb.execSQL("INSERT INTO " + january + " VALUES (?, ?)", new Object[]{JANUARY + i, 9.9});
+                mDb.execSQL("INSERT INTO " + march + " VALUES (?, ?)", new Object[]{MARCH + i, 9.9});
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    @After
+    public void deleteDatabase() {
+        mDb.close();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void snapshotHasTheCommittedRows() throws IOException {
+        // An open write transaction must neither block the snapshot nor show up in it.
+        mDb.beginTransactionNonExclusive();
+        File snapshot;
+        try {
+            mDb.execSQL("INSERT INTO fuel (note) VALUES ('uncommitted')");
+            snapshot = DatabaseSnapshot.create(mDatabaseFile, mDirectory, 0, Long.MAX_VALUE);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        SQLiteDatabase copy = open(snapshot);
+        try {
+            assertEquals(Helper.DATABASE_VERSION, copy.getVersion());
+            assertEquals(FUEL_ROWS, DatabaseUtils.queryNumEntries(copy, "fuel"));
+            assertEquals(3, DatabaseUtils.queryNumEntries(copy, LocationPartitions.shardName(JANUARY)));
+            assertEquals(3, DatabaseUtils.queryNumEntries(copy, LocationPartitions.shardName(MARCH)));
+            assertEquals(1, DatabaseUtils.longForQuery(copy,
+                    "SELECT COUNT(*) FROM sqlite_master WHERE name = 'idx_fuel_note'", null));
+        } finally {
+            copy.close();
+        }
+    }
+
+    @Test
+    public void shardsOutOfRangeAreEmpty() throws IOException {
+        File snapshot = DatabaseSnapshot.create(mDatabaseFile, mDirectory, MARCH, Long.MAX_VALUE);
+
+        SQLiteDatabase copy = open(snapshot);
+        try {
+            assertEquals(FUEL_ROWS, DatabaseUtils.queryNumEntries(copy, "fuel"));
+            assertEquals(0, DatabaseUtils.queryNumEntries(copy, LocationPartitions.shardName(JANUARY)));
+            assertEquals(3, DatabaseUtils.queryNumEntries(copy, LocationPartitions.shardName(MARCH)));
+        } finally {
+            copy.close();
+        }
+    }
+
+    private SQLiteDatabase open(File snapshot) throws IOException {
+        File file = new File(mDirectory, "copy.db");
+        InputStream in = new GZIPInputStream(new FileInputStream(snapshot));
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+    }
+}
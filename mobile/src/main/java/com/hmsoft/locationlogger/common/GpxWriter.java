@@ -0,0 +1,300 @@
+package com.hmsoft.locationlogger.common;
+
+import com.hmsoft.locationlogger.data.LocationCursor;
+import com.hmsoft.locationlogger.data.LocationSet;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Streaming GPX writer. Points are formatted straight into a fixed byte buffer, no objects are
+ * created per point, so memory use does not depend on the number of points. Times are written
+ * in UTC.
+ *
+ * Not thread safe.
+ */
+public final class GpxWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final float MAX_ACCURACY = 10;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] HEADER = ("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\" ?>" +
+            "<gpx xmlns=\"http://www.topografix.com/GPX/1/1\" creator=\"HM Software\" version=\"1.1\" " +
+            "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"  " +
+            "xsi:schemaLocation=\"http://www.topografix.com/GPX/1/1 http://www.topografix.com/GPX/1/1/gpx.xsd\">" +
+            "<trk>").getBytes(UTF8);
+    private static final byte[] FOOTER = "</trkseg></trk></gpx>".getBytes(UTF8);
+    private static final byte[] TRKPT_LAT = "<trkpt lat=\"".getBytes(UTF8);
+    private static final byte[] TRKPT_LON = "\" lon=\"".getBytes(UTF8);
+    private static final byte[] TIME = "\"><time>".getBytes(UTF8);
+    private static final byte[] ELE = "Z</time><ele>".getBytes(UTF8);
+    private static final byte[] SPEED = "</ele><speed>".getBytes(UTF8);
+    private static final byte[] SPEED_END = "</speed>".getBytes(UTF8);
+    private static final byte[] TRKPT_END = "</trkpt>".getBytes(UTF8);
+
+    private static final long[] POW10 = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000};
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer mByteBuffer = ByteBuffer.wrap(mBuffer);
+    private final byte[] mDigits = new byte[20];
+    private int mPosition = 0;
+
+    private final FileChannel mChannel;
+    private final OutputStream mOutput;
+
+    private final Calendar mCalendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    private final byte[] mTimePrefix = new byte[17]; // yyyy-MM-ddTHH:mm:
+    private long mTimePrefixMinute = Long.MIN_VALUE;
+
+    public GpxWriter(FileChannel channel) {
+        mChannel = channel;
+        mOutput = null;
+    }
+
+    public GpxWriter(OutputStream output) {
+        mChannel = null;
+        mOutput = output;
+    }
+
+    /**
+     * Writes the points with accuracy below 10m to the given file.
+     *
+     * @return the number of points written.
+     */
+    public static int write(LocationSet points, String name, String description, File file) throws IOException {
+        FileOutputStream output = new FileOutputStream(file, false);
+        GpxWriter writer = new GpxWriter(output.getChannel());
+        LocationCursor cursor = points.cursor();
+        try {
+            writer.begin(name, description);
+            int count = writer.write(cursor);
+            writer.end();
+            return count;
+        } finally {
+            cursor.close();
+            writer.close();
+            output.close();
+        }
+    }
+
+    public void begin(String name, String description) throws IOException {
+        write(HEADER);
+        writeElement("name", name);
+        writeElement("desc", description);
+        writeAscii("<trkseg>");
+    }
+
+    public int write(LocationCursor cursor) throws IOException {
+        int count = 0;
+        while (cursor.moveToNext()) {
+            if (cursor.getAccuracy() < MAX_ACCURACY) {
+                writePoint(cursor.getTime(), cursor.getLatitude(), cursor.getLongitude(),
+                        cursor.getAltitude(), cursor.getSpeed(), cursor.getEvent());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void writePoint(long time, double latitude, double longitude, double altitude,
+                           float speed, String name) throws IOException {
+        write(TRKPT_LAT);
+        writeDecimal(latitude, 7);
+        write(TRKPT_LON);
+        writeDecimal(longitude, 7);
+        write(TIME);
+        writeTime(time);
+        write(ELE);
+        writeDecimal(altitude, 1);
+        write(SPEED);
+        writeDecimal(speed, 2);
+        write(SPEED_END);
+        if (name != null && name.length() > 0) {
+            writeElement("name", name);
+        }
+        write(TRKPT_END);
+    }
+
+    public void end() throws IOException {
+        write(FOOTER);
+        flush();
+    }
+
+    public void flush() throws IOException {
+        if (mPosition == 0) {
+            return;
+        }
+        if (mChannel != null) {
+            mByteBuffer.clear();
+            mByteBuffer.limit(mPosition);
+            while (mByteBuffer.hasRemaining()) {
+                mChannel.write(mByteBuffer);
+            }
+        } else {
+            mOutput.write(mBuffer, 0, mPosition);
+        }
+        mPosition = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (mChannel != null) {
+            mChannel.close();
+        } else {
+            mOutput.close();
+        }
+    }
+
+    private void writeTime(long time) throws IOException {
+        long minute = time / 60000;
+        if (time % 60000 < 0) {
+            minute--;
+        }
+        if (minute != mTimePrefixMinute) {
+            mCalendar.setTimeInMillis(minute * 60000);
+            int p = 0;
+            p = putDigits(mTimePrefix, p, mCalendar.get(Calendar.YEAR), 4);
+            mTimePrefix[p++] = '-';
+            p = putDigits(mTimePrefix, p, mCalendar.get(Calendar.MONTH) + 1, 2);
+            mTimePrefix[p++] = '-';
+            p = putDigits(mTimePrefix, p, mCalendar.get(Calendar.DAY_OF_MONTH), 2);
+            mTimePrefix[p++] = 'T';
+            p = putDigits(mTimePrefix, p, mCalendar.get(Calendar.HOUR_OF_DAY), 2);
+            mTimePrefix[p++] = ':';
+            p = putDigits(mTimePrefix, p, mCalendar.get(Calendar.MINUTE), 2);
+            mTimePrefix[p] = ':';
+            mTimePrefixMinute = minute;
+        }
+        write(mTimePrefix);
+        ensure(2);
+        mPosition = putDigits(mBuffer, mPosition, (int) ((time - minute * 60000) / 1000), 2);
+    }
+
+    /**
+     * Fixed point formatting, value is rounded to the given number of decimals (max 7).
+     */
+    private void writeDecimal(double value, int decimals) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            value = 0;
+        }
+        ensure(mDigits.length + 12); // sign, digits, point and decimals
+        if (value < 0) {
+            long scaled = Math.round(-value * POW10[decimals]);
+            if (scaled != 0) {
+                mBuffer[mPosition++] = '-';
+            }
+            writeScaled(scaled, decimals);
+        } else {
+            writeScaled(Math.round(value * POW10[decimals]), decimals);
+        }
+    }
+
+    private void writeScaled(long scaled, int decimals) {
+        long integer = scaled / POW10[decimals];
+        long fraction = scaled % POW10[decimals];
+
+        int n = 0;
+        do {
+            mDigits[n++] = (byte) ('0' + (integer % 10));
+            integer /= 10;
+        } while (integer > 0);
+        while (n > 0) {
+            mBuffer[mPosition++] = mDigits[--n];
+        }
+
+        if (decimals > 0) {
+            mBuffer[mPosition++] = '.';
+            for (int d = decimals - 1; d >= 0; d--) {
+                mBuffer[mPosition + d] = (byte) ('0' + (fraction % 10));
+                fraction /= 10;
+            }
+            mPosition += decimals;
+        }
+    }
+
+    private static int putDigits(byte[] target, int position, int value, int width) {
+        for (int d = width - 1; d >= 0; d--) {
+            target[position + d] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        return position + width;
+    }
+
+    private void writeElement(String element, String text) throws IOException {
+        writeAscii("<" + element + ">");
+        if (text != null) {
+            write(escape(text).getBytes(UTF8));
+        }
+        writeAscii("</" + element + ">");
+    }
+
+    private void writeAscii(String text) throws IOException {
+        int length = text.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            mBuffer[mPosition++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        if (bytes.length > BUFFER_SIZE) {
+            flush();
+            if (mChannel != null) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    mChannel.write(buffer);
+                }
+            } else {
+                mOutput.write(bytes);
+            }
+            return;
+        }
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, mBuffer, mPosition, bytes.length);
+        mPosition += bytes.length;
+    }
+
+    private void ensure(int length) throws IOException {
+        if (mPosition + length > BUFFER_SIZE) {
+            flush();
+        }
+    }
+
+    static String escape(String text) {
+        StringBuilder sb = null;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            String replacement;
+            switch (c) {
+                case '<': replacement = "&lt;"; break;
+                case '>': replacement = "&gt;"; break;
+                case '&': replacement = "&amp;"; break;
+                case '"': replacement = "&quot;"; break;
+                case '\'': replacement = "&apos;"; break;
+                default: replacement = null;
+            }
+            if (replacement != null) {
+                if (sb == null) {
+                    sb = new StringBuilder(length + 16);
+                    sb.append(text, 0, i);
+                }
+                sb.append(replacement);
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb != null ? sb.toString() : text;
+    }
+}
@@ -0,0 +1,229 @@
+package com.hmsoft.locationlogger.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Small HTTP client over HttpURLConnection. Response bodies, error bodies included, are always
+ * read to the end and closed and connections are never disconnected, so the platform pool keeps
+ * them alive and the next request to the same host skips the TCP and TLS handshakes. Requests ask
+ * for gzip responses and bodies are sent with a fixed length.
+ */
+public final class HttpClient {
+
+    private static final String TAG = "HttpClient";
+
+    public static final int CONNECT_TIMEOUT = 15 * 1000;
+    public static final int READ_TIMEOUT = 30 * 1000;
+
+    public static final String CONTENT_TYPE_FORM = "application/x-www-form-urlencoded; charset=UTF-8";
+    public static final String CONTENT_TYPE_JSON = "application/json; charset=UTF-8";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final Metrics.Histogram sRequestTime = Metrics.histogram("http.request");
+    private static final Metrics.Counter sErrors = Metrics.counter("http.errors");
+
+    private HttpClient() {
+    }
+
+    public interface StreamReader<T> {
+        /**
+         * Reads the decoded response body, the stream is closed by the caller.
+         */
+        T read(InputStream in) throws IOException;
+    }
+
+    public static class Response {
+        public final int status;
+        public final byte[] body;
+
+        Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        public boolean isOk() {
+            return status >= 200 && status < 300;
+        }
+
+        public String getText() {
+            return new String(body, UTF8);
+        }
+    }
+
+    public static Response get(String url) throws IOException {
+        return execute("GET", url, null, null, READ_TIMEOUT);
+    }
+
+    public static Response get(String url, int readTimeout) throws IOException {
+        return execute("GET", url, null, null, readTimeout);
+    }
+
+    /**
+     * Posts a form, nameValues are name, value pairs. Null values are skipped.
+     */
+    public static Response postForm(String url, String... nameValues) throws IOException {
+        return execute("POST", url, CONTENT_TYPE_FORM, formEncode(nameValues), READ_TIMEOUT);
+    }
+
+    public static Response postJson(String url, String json) throws IOException {
+        return execute("POST", url, CONTENT_TYPE_JSON, json.getBytes(UTF8), READ_TIMEOUT);
+    }
+
+    public static Response post(String url, String contentType, byte[] body, int readTimeout) throws IOException {
+        return execute("POST", url, contentType, body, readTimeout);
+    }
+
+    /**
+     * GET streamed straight to the reader, nothing is buffered. A response that is not 2xx is
+     * read and thrown as an IOException.
+     */
+    public static <T> T get(String url, int readTimeout, StreamReader<T> reader) throws IOException {
+        long start = System.nanoTime();
+        try {
+            HttpURLConnection con = open("GET", url, null, readTimeout);
+            int status = con.getResponseCode();
+            if (status < 200 || status >= 300) {
+                byte[] error = readBody(con, status);
+                throw new IOException("HTTP " + status + ": " + new String(error, UTF8));
+            }
+
+            InputStream raw = con.getInputStream();
+            try {
+                T result = reader.read(decode(con, raw));
+                drain(raw);
+                return result;
+            } finally {
+                raw.close();
+            }
+        } catch (IOException e) {
+            sErrors.inc();
+            throw e;
+        } finally {
+            sRequestTime.recordSince(start);
+        }
+    }
+
+    public static byte[] formEncode(String... nameValues) {
+        StringBuilder form = new StringBuilder(256);
+        try {
+            for (int i = 0; i + 1 < nameValues.length; i += 2) {
+                if (nameValues[i + 1] == null) {
+                    continue;
+                }
+                if (form.length() > 0) {
+                    form.append('&');
+                }
+                form.append(URLEncoder.encode(nameValues[i], "UTF-8")).append('=')
+                        .append(URLEncoder.encode(nameValues[i + 1], "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return form.toString().getBytes(UTF8);
+    }
+
+    static HttpURLConnection open(String method, String url, String contentType, int readTimeout) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+        con.setRequestMethod(method);
+        con.setConnectTimeout(CONNECT_TIMEOUT);
+        con.setReadTimeout(readTimeout);
+        con.setUseCaches(false);
+        // Set explicitly, so it is decoded here the same way on every platform.
+        con.setRequestProperty("Accept-Encoding", "gzip");
+        if (contentType != null) {
+            con.setRequestProperty("Content-Type", contentType);
+        }
+        return con;
+    }
+
+    private static Response execute(String method, String url, String contentType, byte[] body,
+                                    int readTimeout) throws IOException {
+        long start = System.nanoTime();
+        try {
+            Response response = send(method, url, contentType, body, readTimeout);
+            if (response.status >= 400) {
+                sErrors.inc();
+            }
+            return response;
+        } catch (IOException e) {
+            sErrors.inc();
+            throw e;
+        } finally {
+            sRequestTime.recordSince(start);
+        }
+    }
+
+    private static Response send(String method, String url, String contentType, byte[] body,
+                                 int readTimeout) throws IOException {
+        HttpURLConnection con = open(method, url, contentType, readTimeout);
+
+        if (body != null) {
+            con.setDoOutput(true);
+            con.setFixedLengthStreamingMode(body.length);
+            OutputStream out = con.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+        }
+
+        int status = con.getResponseCode();
+        byte[] response = readBody(con, status);
+
+        if (Logger.DEBUG) Logger.debug(TAG, "%s %d: %d bytes", method, status, response.length);
+
+        return new Response(status, response);
+    }
+
+    /**
+     * Reads the whole body, or the error body, and closes it so the connection goes back to the pool.
+     */
+    static byte[] readBody(HttpURLConnection con, int status) throws IOException {
+        InputStream raw = status >= 400 ? con.getErrorStream() : con.getInputStream();
+        if (raw == null) {
+            return EMPTY;
+        }
+        try {
+            InputStream in = decode(con, raw);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(256, con.getContentLength()));
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            drain(raw);
+            return out.toByteArray();
+        } finally {
+            raw.close();
+        }
+    }
+
+    static InputStream decode(HttpURLConnection con, InputStream raw) throws IOException {
+        if ("gzip".equalsIgnoreCase(con.getContentEncoding())) {
+            return new GZIPInputStream(raw, 4096);
+        }
+        return raw;
+    }
+
+    /**
+     * Reads what is left, the gzip stream stops at its trailer.
+     */
+    static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[512];
+        while (in.read(buffer) != -1) {
+            // Discard
+        }
+    }
+}
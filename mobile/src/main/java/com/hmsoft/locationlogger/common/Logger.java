@@ -62,6 +62,9 @@ public final class Logger {
 		
 		try {
 			createLogsFile();
+			if (sLogsFolder == null) {
+				return; // No application context, as in unit tests.
+			}
 
 			Date now = new Date();
 			
@@ -89,7 +92,7 @@ public final class Logger {
 	}
 
 	private static void createLogsFile() {
-		if (sLogsFolder == null) {
+		if (sLogsFolder == null && LocationLoggerApp.getContext() != null) {
 			if ((sLogsFolder = LocationLoggerApp.getContext().getExternalFilesDir(LOGS_FOLDER)) == null) {
 				sLogsFolder = LocationLoggerApp.getContext().getFilesDir();
 			}
@@ -0,0 +1,229 @@
+package com.hmsoft.locationlogger.common;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide counters, gauges and latency histograms for the hot paths. Metrics are created
+ * once, usually into static fields, and updated with atomic operations only, no lock is taken
+ * and nothing is allocated. Histograms keep System.nanoTime durations in log-linear buckets, 8
+ * per power of two, so percentiles are within 12.5% of the recorded values.
+ */
+public final class Metrics {
+
+    private static final ConcurrentHashMap<String, Metric> sMetrics = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    private abstract static class Metric {
+        abstract void format(StringBuilder out);
+
+        abstract void reset();
+    }
+
+    public static final class Counter extends Metric {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void inc() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        @Override
+        void format(StringBuilder out) {
+            out.append(mValue.get());
+        }
+
+        @Override
+        void reset() {
+            mValue.set(0);
+        }
+    }
+
+    public static final class Gauge extends Metric {
+        private final AtomicLong mValue = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        public void set(long value) {
+            mValue.set(value);
+            long max;
+            while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+                // Retry
+            }
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        @Override
+        void format(StringBuilder out) {
+            out.append(mValue.get()).append(" (max ").append(mMax.get()).append(')');
+        }
+
+        @Override
+        void reset() {
+            mMax.set(mValue.get());
+        }
+    }
+
+    public static final class Histogram extends Metric {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // Values below SUB_BUCKETS have a bucket each, then SUB_BUCKETS per power of two.
+        private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            mCounts.incrementAndGet(bucket(nanos));
+            mCount.incrementAndGet();
+            mSum.addAndGet(nanos);
+            long max;
+            while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos)) {
+                // Retry
+            }
+        }
+
+        /**
+         * Records the time elapsed since startNanos, a System.nanoTime value.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        /**
+         * Upper bound of the bucket holding the percentile, never above the max recorded value.
+         */
+        public long getPercentile(double percentile) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+            long seen = 0;
+            long max = mMax.get();
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts.get(i);
+                if (seen >= target) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        void format(StringBuilder out) {
+            long count = mCount.get();
+            out.append("n ").append(count);
+            if (count > 0) {
+                out.append(", avg ").append(millis(mSum.get() / count))
+                        .append(", p50 ").append(millis(getPercentile(50)))
+                        .append(", p90 ").append(millis(getPercentile(90)))
+                        .append(", p99 ").append(millis(getPercentile(99)))
+                        .append(", max ").append(millis(mMax.get()));
+            }
+        }
+
+        @Override
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                mCounts.set(i, 0);
+            }
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+            long lower = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.US, "%.1fms", nanos / 1000000.0);
+        }
+    }
+
+    public static Counter counter(String name) {
+        return register(name, new Counter());
+    }
+
+    public static Gauge gauge(String name) {
+        return register(name, new Gauge());
+    }
+
+    public static Histogram histogram(String name) {
+        return register(name, new Histogram());
+    }
+
+    /**
+     * All metrics, one per line, sorted by name.
+     */
+    public static String dump() {
+        TreeMap<String, Metric> metrics = new TreeMap<>(sMetrics);
+        StringBuilder out = new StringBuilder(metrics.size() * 64);
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            out.append(entry.getKey()).append(": ");
+            entry.getValue().format(out);
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Zeroes counters and histograms, gauges keep their value.
+     */
+    public static void reset() {
+        for (Metric metric : sMetrics.values()) {
+            metric.reset();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Metric> T register(String name, T metric) {
+        Metric existing = sMetrics.putIfAbsent(name, metric);
+        if (existing == null) {
+            return metric;
+        }
+        if (existing.getClass() != metric.getClass()) {
+            throw new IllegalArgumentException(name + " is a " + existing.getClass().getSimpleName());
+        }
+        return (T) existing;
+    }
+}
@@ -0,0 +1,173 @@
+package com.hmsoft.locationlogger.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Streams a multipart/form-data POST. The body length is computed up front and the request is sent
+ * in fixed length streaming mode, so files are read straight from disk to the socket and never
+ * buffered in memory whatever their size. The same uploader can be uploaded again after a failure,
+ * every file is reopened and sent with the length it had when it was added.
+ */
+public class MultipartUploader {
+
+    private static final String TAG = "MultipartUploader";
+
+    private static final String LINE_FEED = "\r\n";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Metrics.Histogram sUploadTime = Metrics.histogram("http.upload");
+    private static final Metrics.Counter sErrors = Metrics.counter("http.errors");
+
+    private static class Part {
+        final byte[] header;
+        final File file;
+        final long fileLength;
+
+        Part(byte[] header, File file, long fileLength) {
+            this.header = header;
+            this.file = file;
+            this.fileLength = fileLength;
+        }
+
+        long getLength() {
+            return header.length + fileLength + LINE_FEED.length();
+        }
+    }
+
+    private final String mUrl;
+    private final String mBoundary;
+    private final ArrayList<Part> mParts = new ArrayList<>();
+    private int mReadTimeout = HttpClient.READ_TIMEOUT;
+
+    public MultipartUploader(String url) {
+        mUrl = url;
+        mBoundary = "===" + System.currentTimeMillis() + "===";
+    }
+
+    public MultipartUploader addFormField(String name, String value) {
+        String header = "--" + mBoundary + LINE_FEED +
+                "Content-Disposition: form-data; name=\"" + name + "\"" + LINE_FEED +
+                "Content-Type: text/plain; charset=UTF-8" + LINE_FEED +
+                LINE_FEED +
+                value;
+        mParts.add(new Part(header.getBytes(UTF8), null, 0));
+        return this;
+    }
+
+    /**
+     * The file length is taken now, a file that shrinks before it is uploaded fails the upload.
+     */
+    public MultipartUploader addFilePart(String fieldName, File file) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("File not found: " + file);
+        }
+        String fileName = file.getName();
+        String contentType = URLConnection.guessContentTypeFromName(fileName);
+        String header = "--" + mBoundary + LINE_FEED +
+                "Content-Disposition: form-data; name=\"" + fieldName + "\"; filename=\"" + fileName + "\"" + LINE_FEED +
+                "Content-Type: " + (contentType != null ? contentType : "application/octet-stream") + LINE_FEED +
+                "Content-Transfer-Encoding: binary" + LINE_FEED +
+                LINE_FEED;
+        mParts.add(new Part(header.getBytes(UTF8), file, file.length()));
+        return this;
+    }
+
+    public MultipartUploader setReadTimeout(int readTimeout) {
+        mReadTimeout = readTimeout;
+        return this;
+    }
+
+    public long getContentLength() {
+        long length = 0;
+        for (Part part : mParts) {
+            length += part.getLength();
+        }
+        return length + getTrailer().length;
+    }
+
+    public HttpClient.Response upload() throws IOException {
+        long start = System.nanoTime();
+        try {
+            HttpClient.Response response = send();
+            if (response.status >= 400) {
+                sErrors.inc();
+            }
+            return response;
+        } catch (IOException e) {
+            sErrors.inc();
+            throw e;
+        } finally {
+            sUploadTime.recordSince(start);
+        }
+    }
+
+    private HttpClient.Response send() throws IOException {
+        long total = getContentLength();
+        HttpURLConnection con = HttpClient.open("POST", mUrl,
+                "multipart/form-data; boundary=" + mBoundary, mReadTimeout);
+        con.setDoOutput(true);
+        con.setFixedLengthStreamingMode(total);
+
+        if (Logger.DEBUG) Logger.debug(TAG, "Uploading %d bytes", total);
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] lineFeed = LINE_FEED.getBytes(UTF8);
+        OutputStream out = con.getOutputStream();
+        try {
+            for (Part part : mParts) {
+                out.write(part.header);
+                if (part.file != null) {
+                    writeFile(out, part, buffer);
+                }
+                out.write(lineFeed);
+            }
+            out.write(getTrailer());
+        } finally {
+            out.close();
+        }
+
+        int status = con.getResponseCode();
+        byte[] body = HttpClient.readBody(con, status);
+
+        if (Logger.DEBUG) Logger.debug(TAG, "POST %d: %d bytes", status, body.length);
+
+        return new HttpClient.Response(status, body);
+    }
+
+    private static void writeFile(OutputStream out, Part part, byte[] buffer) throws IOException {
+        FileInputStream in = new FileInputStream(part.file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            long remaining = part.fileLength;
+            while (remaining > 0) {
+                byteBuffer.clear();
+                if (remaining < buffer.length) {
+                    byteBuffer.limit((int) remaining);
+                }
+                int read = channel.read(byteBuffer);
+                if (read == -1) {
+                    throw new IOException("File changed while uploading: " + part.file);
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private byte[] getTrailer() {
+        return ("--" + mBoundary + "--" + LINE_FEED).getBytes(UTF8);
+    }
+}
@@ -0,0 +1,246 @@
+package com.hmsoft.locationlogger.common;
+
+import com.hmsoft.locationlogger.data.LocationCursor;
+import com.hmsoft.locationlogger.data.LocationSet;
+import com.hmsoft.locationlogger.data.PrimitiveLocationSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact binary track format.
+ *
+ * Header: "LTRK", version byte, flags byte (bit 0: payload is deflated).
+ * Payload: point count, then per point the delta from the previous point of time (ms),
+ * latitude and longitude (1e-7 degrees) and altitude (dm) as zig-zag varints, accuracy (dm)
+ * and speed (cm/s) as varints, battery delta as zig-zag varint and an event code: 0 no event,
+ * 1 new event text follows (length + UTF-8), n > 1 the (n - 2)th event already seen.
+ */
+public final class TrackCodec {
+
+    public static final String FILE_EXTENSION = ".trk";
+
+    private static final byte[] MAGIC = {'L', 'T', 'R', 'K'};
+    private static final int VERSION = 1;
+    private static final int FLAG_DEFLATE = 1;
+
+    private static final double COORDINATE_SCALE = 1e7;
+    private static final double ALTITUDE_SCALE = 10;
+    private static final double ACCURACY_SCALE = 10;
+    private static final double SPEED_SCALE = 100;
+
+    // Counts and lengths come from the input, nothing larger is allocated up front.
+    private static final int MAX_INITIAL_CAPACITY = 4096;
+    private static final int MAX_EVENT_LENGTH = 4096;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private TrackCodec() {
+    }
+
+    /**
+     * Writes all points of the set, the stream is closed.
+     *
+     * @return the number of points written.
+     */
+    public static int write(LocationSet points, OutputStream output, boolean deflate) throws IOException {
+        output.write(MAGIC);
+        output.write(VERSION);
+        output.write(deflate ? FLAG_DEFLATE : 0);
+
+        Deflater deflater = null;
+        OutputStream out;
+        if (deflate) {
+            deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            out = new BufferedOutputStream(new DeflaterOutputStream(output, deflater, 8192), 8192);
+        } else {
+            out = new BufferedOutputStream(output, 8192);
+        }
+
+        LocationCursor cursor = points.cursor();
+        int count = 0;
+        try {
+            writeVarint(out, points.getCount());
+
+            long lastTime = 0;
+            long lastLatitude = 0;
+            long lastLongitude = 0;
+            long lastAltitude = 0;
+            long lastBattery = 0;
+            ArrayList<String> events = new ArrayList<>();
+
+            while (cursor.moveToNext()) {
+                long time = cursor.getTime();
+                long latitude = Math.round(cursor.getLatitude() * COORDINATE_SCALE);
+                long longitude = Math.round(cursor.getLongitude() * COORDINATE_SCALE);
+                long altitude = Math.round(cursor.getAltitude() * ALTITUDE_SCALE);
+                long battery = cursor.getBatteryLevel();
+
+                writeSignedVarint(out, time - lastTime);
+                writeSignedVarint(out, latitude - lastLatitude);
+                writeSignedVarint(out, longitude - lastLongitude);
+                writeSignedVarint(out, altitude - lastAltitude);
+                writeVarint(out, Math.max(0, Math.round(cursor.getAccuracy() * ACCURACY_SCALE)));
+                writeVarint(out, Math.max(0, Math.round(cursor.getSpeed() * SPEED_SCALE)));
+                writeSignedVarint(out, battery - lastBattery);
+
+                String event = cursor.getEvent();
+                if (event == null || event.length() == 0) {
+                    writeVarint(out, 0);
+                } else {
+                    int index = events.indexOf(event);
+                    if (index >= 0) {
+                        writeVarint(out, index + 2);
+                    } else {
+                        byte[] bytes = event.getBytes(UTF8);
+                        writeVarint(out, 1);
+                        writeVarint(out, bytes.length);
+                        out.write(bytes);
+                        events.add(event);
+                    }
+                }
+
+                lastTime = time;
+                lastLatitude = latitude;
+                lastLongitude = longitude;
+                lastAltitude = altitude;
+                lastBattery = battery;
+                count++;
+            }
+        } finally {
+            cursor.close();
+            out.close();
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads a whole track, the stream is closed. Decodes the files sent by GetTripCommand, the
+     * app itself only writes them.
+     */
+    public static PrimitiveLocationSet read(InputStream input) throws IOException {
+        InputStream in = new BufferedInputStream(input, 8192);
+        try {
+            for (byte b : MAGIC) {
+                if (readByte(in) != b) {
+                    throw new IOException("Not a track file");
+                }
+            }
+            int version = readByte(in);
+            if (version != VERSION) {
+                throw new IOException("Unsupported track version " + version);
+            }
+            if ((readByte(in) & FLAG_DEFLATE) != 0) {
+                in = new BufferedInputStream(new InflaterInputStream(in), 8192);
+            }
+
+            long count = readVarint(in);
+            if (count < 0 || count > Integer.MAX_VALUE) {
+                throw new IOException("Malformed point count " + count);
+            }
+            // A wrong count ends in EOFException, the set grows with the points actually read.
+            PrimitiveLocationSet points = new PrimitiveLocationSet((int) Math.min(count, MAX_INITIAL_CAPACITY));
+
+            long time = 0;
+            long latitude = 0;
+            long longitude = 0;
+            long altitude = 0;
+            long battery = 0;
+            ArrayList<String> events = new ArrayList<>();
+
+            for (int i = 0; i < count; i++) {
+                time += readSignedVarint(in);
+                latitude += readSignedVarint(in);
+                longitude += readSignedVarint(in);
+                altitude += readSignedVarint(in);
+                float accuracy = (float) (readVarint(in) / ACCURACY_SCALE);
+                float speed = (float) (readVarint(in) / SPEED_SCALE);
+                battery += readSignedVarint(in);
+
+                String event = null;
+                long code = readVarint(in);
+                if (code == 1) {
+                    long length = readVarint(in);
+                    if (length < 0 || length > MAX_EVENT_LENGTH) {
+                        throw new IOException("Malformed event length " + length);
+                    }
+                    byte[] bytes = new byte[(int) length];
+                    readFully(in, bytes);
+                    event = new String(bytes, UTF8);
+                    events.add(event);
+                } else if (code > 1) {
+                    if (code - 2 >= events.size()) {
+                        throw new IOException("Malformed event code " + code);
+                    }
+                    event = events.get((int) (code - 2));
+                }
+
+                points.add(time, latitude / COORDINATE_SCALE, longitude / COORDINATE_SCALE,
+                        altitude / ALTITUDE_SCALE, accuracy, speed, (int) battery, event);
+            }
+            return points;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeSignedVarint(OutputStream out, long value) throws IOException {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long readSignedVarint(InputStream in) throws IOException {
+        long value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            int read = in.read(bytes, offset, bytes.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+}
@@ -1,9 +1,77 @@
 package com.hmsoft.locationlogger.common.telegram;
 
+import com.hmsoft.locationlogger.common.HttpClient;
+import com.hmsoft.locationlogger.common.Logger;
+import com.hmsoft.locationlogger.common.MultipartUploader;
 import com.hmsoft.locationlogger.common.telegram.data.MessageResponse;
+import com.hmsoft.locationlogger.common.telegram.data.UpdateResponse;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Asynchronous Telegram bot API client. Every request goes through one dispatcher: requests for
+ * the same chat run one at a time in the order they were made, requests for different chats run in
+ * parallel on a small pool. Failed requests are retried with backoff and a 429 waits the
+ * retry_after given by Telegram, both without holding a thread, later requests for that chat wait
+ * behind it.
+ */
 public class TelegramClient {
 
+    private static final String TAG = "TelegramClient";
+
+    private static final int MAX_CONCURRENT_REQUESTS = 4;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY = 1000;
+    private static final int ERROR_TOO_MANY_REQUESTS = 429;
+    // Telegram answers after it has processed the whole file.
+    private static final int DOCUMENT_READ_TIMEOUT = 2 * 60 * 1000;
+    // Enough for every attempt of a document upload, plus the requests queued before it.
+    private static final long AWAIT_TIMEOUT = 10 * 60 * 1000;
+
+    public interface Callback<T> {
+        /**
+         * Called on a dispatcher thread, error is null when a response was received. The next
+         * request for the chat is already started, so a blocking send from here does not deadlock.
+         */
+        void onResult(T response, Exception error);
+    }
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        private int mCount;
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable) {
+            return new Thread(runnable, TAG + "-" + (++mCount));
+        }
+    };
+
+    private static final ThreadPoolExecutor sExecutor;
+    private static final ScheduledThreadPoolExecutor sScheduler;
+    // Per chat queues, the head is the request running or waiting for a retry.
+    private static final HashMap<String, ArrayDeque<Call<?>>> sChatQueues = new HashMap<>();
+
+    static {
+        sExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), sThreadFactory);
+        sExecutor.allowCoreThreadTimeOut(true);
+        sScheduler = new ScheduledThreadPoolExecutor(1, sThreadFactory);
+        sScheduler.setKeepAliveTime(30, TimeUnit.SECONDS);
+        sScheduler.allowCoreThreadTimeOut(true);
+    }
+
     private String mBotKey;
 
     public TelegramClient(String botKey) {
@@ -11,10 +79,239 @@ public class TelegramClient {
     }
 
     public MessageResponse sendMessage(long chatId, String text) {
-        return null;
+        return sendMessage(0, chatId, text);
     }
 
+    /**
+     * Blocks until the message is sent.
+     *
+     * @return null if the request failed.
+     */
     public MessageResponse sendMessage(long replyToMessageId, long chatId, String text) {
+        return await(sendMessageAsync(String.valueOf(chatId),
+                replyToMessageId > 0 ? String.valueOf(replyToMessageId) : null, text, null));
+    }
+
+    public Future<MessageResponse> sendMessageAsync(final String chatId, final String replyToMessageId,
+                                                    final String text, Callback<MessageResponse> callback) {
+        final String url = getUrl("sendMessage");
+        return enqueue(new Call<MessageResponse>(chatId, callback) {
+            @Override
+            MessageResponse execute() throws Exception {
+                HttpClient.Response response = HttpClient.postForm(url,
+                        "chat_id", chatId,
+                        "parse_mode", "Markdown",
+                        "disable_web_page_preview", "true",
+                        "text", text,
+                        "reply_to_message_id", replyToMessageId);
+                return new MessageResponse(response.getText());
+            }
+        });
+    }
+
+    /**
+     * The document is streamed from disk, a failed upload is sent again from the start by the same
+     * uploader, the bot API has no resumable uploads.
+     */
+    public Future<MessageResponse> sendDocumentAsync(final String chatId, final String replyToMessageId,
+                                                     final File document, Callback<MessageResponse> callback) {
+        final String url = getUrl("sendDocument");
+        return enqueue(new Call<MessageResponse>(chatId, callback) {
+            private MultipartUploader mUploader;
+
+            @Override
+            MessageResponse execute() throws Exception {
+                if (Logger.DEBUG) Logger.debug(TAG, "Sending document: %s", document.getAbsolutePath());
+
+                if (mUploader == null) {
+                    MultipartUploader uploader = new MultipartUploader(url)
+                            .setReadTimeout(DOCUMENT_READ_TIMEOUT)
+                            .addFormField("chat_id", chatId);
+                    if (replyToMessageId != null) {
+                        uploader.addFormField("reply_to_message_id", replyToMessageId);
+                    }
+                    mUploader = uploader.addFilePart("document", document);
+                }
+                return new MessageResponse(mUploader.upload().getText());
+            }
+        });
+    }
+
+    /**
+     * Long polls getUpdates on the calling thread, updates are streamed to the handler while the
+     * response is read.
+     *
+     * @return the offset for the next call, the given offset if there was no update.
+     */
+    public long getUpdates(long offset, int timeout, int limit, final UpdateResponse.UpdateHandler handler)
+            throws IOException {
+        StringBuilder url = TelegramHelper.getTelegramApiUrl(mBotKey, "getUpdates");
+        url.append("?timeout=").append(timeout).append("&limit=").append(limit);
+        if (offset > 0) {
+            url.append("&offset=").append(offset);
+        }
+
+        long lastId = HttpClient.get(url.toString(), timeout * 1000 + HttpClient.READ_TIMEOUT,
+                new HttpClient.StreamReader<Long>() {
+                    @Override
+                    public Long read(InputStream in) throws IOException {
+                        return UpdateResponse.read(in, handler);
+                    }
+                });
+        return lastId > 0 ? lastId + 1 : offset;
+    }
+
+    /**
+     * Waits for the request up to AWAIT_TIMEOUT, null if it failed or timed out.
+     */
+    public static <T> T await(Future<T> future) {
+        try {
+            return future.get(AWAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Logger.warning(TAG, "await", e.getCause());
+        } catch (TimeoutException e) {
+            Logger.warning(TAG, "await timed out", e);
+        }
         return null;
     }
+
+    private String getUrl(String method) {
+        return TelegramHelper.getTelegramApiUrl(mBotKey, method).toString();
+    }
+
+    private <T> Call<T> enqueue(Call<T> call) {
+        call.key = mBotKey + ":" + call.chatId;
+        synchronized (sChatQueues) {
+            ArrayDeque<Call<?>> queue = sChatQueues.get(call.key);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                sChatQueues.put(call.key, queue);
+            }
+            queue.add(call);
+            if (queue.size() == 1) {
+                sExecutor.execute(call);
+            }
+        }
+        return call;
+    }
+
+    private static void dequeue(Call<?> call) {
+        synchronized (sChatQueues) {
+            ArrayDeque<Call<?>> queue = sChatQueues.get(call.key);
+            queue.poll();
+            Call<?> next = queue.peek();
+            if (next != null) {
+                sExecutor.execute(next);
+            } else {
+                sChatQueues.remove(call.key);
+            }
+        }
+    }
+
+    private abstract static class Call<T> implements Runnable, Future<T> {
+        final String chatId;
+        final Callback<T> callback;
+        final CountDownLatch done = new CountDownLatch(1);
+        String key;
+        int attempts;
+        T response;
+        Exception error;
+
+        Call(String chatId, Callback<T> callback) {
+            this.chatId = chatId;
+            this.callback = callback;
+        }
+
+        abstract T execute() throws Exception;
+
+        @Override
+        public void run() {
+            attempts++;
+            try {
+                T result = execute();
+                int retryAfter = result instanceof MessageResponse ? getRetryAfter((MessageResponse) result) : 0;
+                if (retryAfter > 0 && attempts < MAX_ATTEMPTS) {
+                    if (Logger.DEBUG) Logger.debug(TAG, "Rate limited, retry after %ds", retryAfter);
+                    retry(retryAfter * 1000L);
+                } else {
+                    complete(result, null);
+                }
+            } catch (Exception e) {
+                if (attempts < MAX_ATTEMPTS) {
+                    Logger.warning(TAG, "Retry: " + (MAX_ATTEMPTS - attempts), e);
+                    retry(RETRY_DELAY << (attempts - 1));
+                } else {
+                    complete(null, e);
+                }
+            }
+        }
+
+        private static int getRetryAfter(MessageResponse response) {
+            return !response.ok && response.errorCore == ERROR_TOO_MANY_REQUESTS ?
+                    Math.max(1, response.retryAfter) : 0;
+        }
+
+        private void retry(long delay) {
+            final Call<T> call = this;
+            sScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sExecutor.execute(call);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void complete(T response, Exception error) {
+            this.response = response;
+            this.error = error;
+            done.countDown();
+            dequeue(this);
+            try {
+                if (callback != null) {
+                    callback.onResult(response, error);
+                }
+            } catch (RuntimeException e) {
+                Logger.warning(TAG, "onResult", e);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            done.await();
+            return getResult();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return getResult();
+        }
+
+        private T getResult() throws ExecutionException {
+            if (error != null) {
+                throw new ExecutionException(error);
+            }
+            return response;
+        }
+    }
 }
@@ -1,45 +1,30 @@
 package com.hmsoft.locationlogger.common.telegram;
 
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 import android.text.TextUtils;
 
-import com.hmsoft.locationlogger.LocationLoggerApp;
 import com.hmsoft.locationlogger.common.HttpUtils;
 import com.hmsoft.locationlogger.common.Logger;
-import com.hmsoft.locationlogger.common.TaskExecutor;
+import com.hmsoft.locationlogger.common.telegram.data.MessageResponse;
+import com.hmsoft.locationlogger.common.telegram.data.TelegramMessage;
+import com.hmsoft.locationlogger.common.telegram.data.TelegramUpdate;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
-import java.net.URLEncoder;
 
 public class TelegramHelper {
 
     private static final String TAG = "TelegramHelper";
 
-    public static final String VOICE_PREFIX = "voice_";
+    public static final String VOICE_PREFIX = TelegramMessage.VOICE_FILE_NAME;
     private static final String TELEGRAM_API_PROTOCOL = "https://";
     private static final String TELEGRAM_API_HOST = "api.telegram.org";
     private static final String TELEGRAM_API_URL = TELEGRAM_API_PROTOCOL + TELEGRAM_API_HOST;
     private static final String TELEGRAM_API_BOT_URL = TELEGRAM_API_URL + "/bot";
 
 
-    private static long updatesOffset = 0;
-
     public interface UpdateCallback {
         void onTelegramUpdateReceived(String chatId, String messageId, String text);
     }
@@ -48,6 +33,11 @@ public class TelegramHelper {
         return sendTelegramMessage(botKey, chatId, null, message);
     }
 
+    public static void sendTelegramDocumentAsync(String botKey, String chatId, String replyId,
+                                                 File documentFile) {
+        new TelegramClient(botKey).sendDocumentAsync(chatId, getReplyId(replyId), documentFile, null);
+    }
+
     public static void sendTelegramMessageAsync(String botKey, String chatId, String message) {
         sendTelegramMessageAsync(botKey, chatId, null, message);
     }
@@ -62,20 +52,17 @@ public class TelegramHelper {
         }
     }
 
-
-
+    /**
+     * Queues the documents, they are sent in order after anything already queued for the chat.
+     */
     public static void sendTelegramDocumentsAsync(final String botKey,
                                                   final String chatId,
                                                   final String replyId,
                                                   final File[] documentFiles) {
-        TaskExecutor.executeOnNewThread(new Runnable() {
-            @Override
-            public void run() {
-                for(File doc  :documentFiles) {
-                    sendTelegramDocument(botKey, chatId, replyId, doc);
-                }
-            }
-        });
+        TelegramClient client = new TelegramClient(botKey);
+        for (File doc : documentFiles) {
+            client.sendDocumentAsync(chatId, getReplyId(replyId), doc, null);
+        }
     }
 
     public static String getBotName(String botKey) {
@@ -97,72 +84,47 @@ public class TelegramHelper {
                                                  final String chatId,
                                                  final String replyId,
                                                  final File documentFile) {
-
-
-        StringBuilder messageUrl = getTelegramApiUrl(botKey, "sendDocument");
-
-        if (Logger.DEBUG) {
-            Logger.debug(TAG, "Sending Telegram document: %s", documentFile.getAbsolutePath());
-        }
-
-        int retryCount = 3;
-        while (retryCount-- > 0) {
-            try {
-                HttpUtils.MultipartUtility multipartUtility = new HttpUtils.MultipartUtility(messageUrl.toString());
-
-                String response =  multipartUtility.addFormField("chat_id", chatId)
-                        .addFilePart("document", documentFile)
-                        .finish();
-
-                Logger.debug(TAG, response);
-                return;
-            } catch (IOException e) {
-                Logger.error(TAG, e.getMessage() + " - Retry: " + retryCount);
-                TaskExecutor.sleep(1);
-            }
-        }
+        TelegramClient.await(new TelegramClient(botKey).sendDocumentAsync(chatId, getReplyId(replyId),
+                documentFile, null));
     }
 
     public static void sendTelegramMessageAsync(final String botKey,
                                                 final String chatId,
                                                 final String replyId,
                                                 final String message) {
-        TaskExecutor.executeOnNewThread(new Runnable() {
-            @Override
-            public void run() {
-                sendTelegramMessage(botKey, chatId, replyId, message);
-            }
-        });
-
+        new TelegramClient(botKey).sendMessageAsync(chatId, getReplyId(replyId), getMessageText(message), null);
     }
 
-    private static long mid = 0;
-
+    /**
+     * Blocks until the message is sent, failed sends are retried by the client.
+     *
+     * @return the id of the message sent, 0 if it could not be sent.
+     */
     public static long sendTelegramMessage(String botKey, String chatId, String replyId,
                                            String message) {
+        MessageResponse response = TelegramClient.await(new TelegramClient(botKey).sendMessageAsync(chatId,
+                getReplyId(replyId), getMessageText(message), null));
+        if (response == null || !response.ok) {
+            if (response != null) Logger.warning(TAG, "sendMessage: " + response.description);
+            return 0;
+        }
+        TelegramMessage result = response.getResult();
+        return result != null ? result.id : 0;
+    }
 
-        int retryCount = 3;
-        while (retryCount-- > 0) {
-            try {
-                String messageUrl = getMessageUrl(botKey, chatId, replyId, message);
-
-                if (Logger.DEBUG) {
-                    Logger.debug(TAG, "Sending Telegram message: %s", message.replace("%", ""));
-                    //Logger.debug(TAG, "Url length: %d", messageUrl.length());
-                }
-
-                int status = HttpUtils.httpGet(messageUrl);
-                return status == 200 ?  ++mid : 0;
+    private static String getReplyId(String replyId) {
+        return TextUtils.isEmpty(replyId) ? null : replyId;
+    }
 
-            } catch (Exception e) {
-                Logger.warning(TAG, "Retry: " + retryCount, e);
-                TaskExecutor.sleep(1);
-            }
+    private static String getMessageText(String message) {
+        if (Logger.DEBUG) {
+            Logger.debug(TAG, "Sending Telegram message: %s", message.replace("%", ""));
+            message = message + "\n\n*----- DEBUG -----*";
         }
-        return 0;
+        return message;
     }
 
-    private static StringBuilder getTelegramApiUrl(String botKey, String method) {
+    static StringBuilder getTelegramApiUrl(String botKey, String method) {
         StringBuilder builderUrl = new StringBuilder(256);
 
         builderUrl
@@ -173,130 +135,22 @@ public class TelegramHelper {
         return builderUrl;
     }
 
-    private static String getMessageUrl(String botKey, String chatId, String replyId, String message) {
-        StringBuilder messageUrl = getTelegramApiUrl(botKey, "sendMessage");
-
-        if (Logger.DEBUG) {
-            message = message + "\n\n*----- DEBUG -----*";
-        }
-
-        try {
-            messageUrl
-                    .append("?chat_id=").append(chatId).append("&")
-                    .append("parse_mode=Markdown&")
-                    .append("disable_web_page_preview=true&")
-                    .append("text=").append(URLEncoder.encode(message, "UTF-8"));
-
-            if (!TextUtils.isEmpty(replyId)) {
-                messageUrl.append("&reply_to_message_id=").append(replyId);
-            }
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+    /**
+     * Passes the update text to the callback, documents and voice notes as
+     * "document fileName|fileId".
+     */
+    static void dispatchUpdate(TelegramUpdate update, UpdateCallback updateCallback) {
+        TelegramMessage message = update.message;
+        if (message == null || message.chat == null) {
+            return;
         }
-
-        return messageUrl.toString();
-    }
-
-    private static Thread updaterThread = null;
-
-    private static class Updater implements Runnable {
-
-        private int mCount;
-        private String mBotKey;
-        private UpdateCallback mUpdateCallback;
-
-        public Updater(String botKey, UpdateCallback updateCallback, int count) {
-            mBotKey = botKey;
-            mUpdateCallback = updateCallback;
-            mCount = count < 0 ? count * -1 : count;
+        String text = message.text;
+        if (TextUtils.isEmpty(text) && message.document != null) {
+            text = String.format("document %s|%s", message.document.fileName, message.document.id);
         }
-
-        @Override
-        public void run() {
-            final String OFFSET_PREF_KEY = "telegram_update_offset";
-            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(LocationLoggerApp.getContext());
-            if(updatesOffset == 0) {
-                updatesOffset = preferences.getLong(OFFSET_PREF_KEY,0);
-            }
-
-            try {
-                while (mCount-- > 0) {
-                    try {
-
-                        StringBuilder updatesUrl = getTelegramApiUrl(mBotKey, "getUpdates");
-
-                        updatesUrl
-                                .append("?timeout=60")
-                                .append("&limit=10");
-
-                        if (updatesOffset > 0) {
-                            updatesUrl.append("&offset=").append(updatesOffset);
-                        }
-
-                        String url = updatesUrl.toString();
-
-                        if (Logger.DEBUG)
-                            Logger.debug(TAG, url + " - ThreadId:" + Thread.currentThread().getId());
-
-
-                        if (mUpdateCallback != null) {
-
-                            String responseText = HttpUtils.httpGetResponseText(url);
-
-                            if (Logger.DEBUG) {
-                                Logger.debug(TAG, "Count:" + mCount);
-                            }
-
-                            JSONObject jsonObject = new JSONObject(responseText);
-
-                            if (jsonObject.getBoolean("ok")) {
-
-                                JSONArray results = jsonObject.getJSONArray("result");
-                                for (int c = 0; c < results.length(); c++) {
-
-                                    JSONObject result = results.getJSONObject(c);
-
-                                    updatesOffset = result.getInt("update_id") + 1;
-                                    JSONObject message = result.optJSONObject("channel_post");
-                                    if (message == null) {
-                                        message = result.optJSONObject("message");
-                                    }
-                                    if (message != null) {
-                                        String text = message.optString("text");
-                                        if (TextUtils.isEmpty(text)) {
-                                            JSONObject document = message.optJSONObject("document");
-                                            if(document == null) {
-                                                document = message.optJSONObject("voice");
-                                                if(document != null) {
-                                                    document.put("file_name", VOICE_PREFIX);
-                                                }
-                                            }
-                                            if (document != null) {
-                                                text = String.format("document %s|%s",
-                                                        document.optString("file_name"),
-                                                        document.getString("file_id"));
-                                            }
-                                        }
-                                        if (!TextUtils.isEmpty(text)) {
-                                            String chatId = message.getJSONObject("chat").getString("id");
-                                            String messageId = message.optString("message_id");
-                                            mUpdateCallback.onTelegramUpdateReceived(chatId, messageId, text);
-                                        }
-                                    }
-                                }
-                            }
-                        }
-
-                    } catch (Exception e) {
-                        Logger.error(TAG, e.getMessage());
-                    }
-                }
-            } finally {
-                updaterThread = null;
-                preferences.edit().putLong(OFFSET_PREF_KEY, updatesOffset).commit();
-                if (Logger.DEBUG)
-                    Logger.debug(TAG, "Ending telegram update thread. Offset: %d - ThreadId:%d", updatesOffset, Thread.currentThread().getId());
-            }
+        if (!TextUtils.isEmpty(text)) {
+            updateCallback.onTelegramUpdateReceived(String.valueOf(message.chat.id),
+                    String.valueOf(message.id), text);
         }
     }
 
@@ -323,21 +177,12 @@ public class TelegramHelper {
         return null;
     }
 
-    public static synchronized void getUpdates(String botKey, UpdateCallback updateCallback,
-                                               int count) {
-
-        if (updaterThread == null) {
-
-            updaterThread = new Thread(new Updater(botKey, updateCallback, count));
-
-            if (Logger.DEBUG)
-                Logger.debug(TAG, "Starting telegram update thread. - ThreadId:%d", updaterThread.getId());
-
-            updaterThread.start();
-        } else {
-            if (Logger.DEBUG)
-                Logger.debug(TAG, "Updater still running. - ThreadId:%d", updaterThread.getId());
-        }
-
+    /**
+     * Asks the update poller for count immediate polls, the poller is started if needed.
+     */
+    public static void getUpdates(String botKey, UpdateCallback updateCallback, int count) {
+        TelegramUpdatePoller poller = TelegramUpdatePoller.getInstance();
+        poller.start(botKey, updateCallback);
+        poller.poll(count < 0 ? -count : count);
     }
 }
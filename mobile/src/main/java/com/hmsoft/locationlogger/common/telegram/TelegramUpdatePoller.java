@@ -0,0 +1,242 @@
+package com.hmsoft.locationlogger.common.telegram;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+
+import com.hmsoft.locationlogger.LocationLoggerApp;
+import com.hmsoft.locationlogger.common.Logger;
+import com.hmsoft.locationlogger.common.Utils;
+import com.hmsoft.locationlogger.common.telegram.data.TelegramUpdate;
+import com.hmsoft.locationlogger.common.telegram.data.UpdateResponse;
+
+import java.io.IOException;
+
+/**
+ * Single long lived thread polling getUpdates. On Wi-Fi or while charging a long poll is always
+ * outstanding, so commands arrive within seconds. On battery the idle interval doubles after every
+ * empty poll (1 to 15 minutes) and resets when a command arrives, {@link #poll(int)} forces
+ * immediate polls. The offset past an update is committed before the update is dispatched, so
+ * a command never runs twice after the process dies. Other offset changes are saved at most once
+ * a minute and on stop.
+ */
+public class TelegramUpdatePoller {
+
+    private static final String TAG = "TelegramUpdatePoller";
+
+    private static final String OFFSET_PREF_KEY = "telegram_update_offset";
+
+    private static final int LONG_POLL_TIMEOUT = 50; // seconds
+    private static final int BATTERY_POLL_TIMEOUT = 20; // seconds
+    private static final int UPDATES_LIMIT = 10;
+    private static final long MIN_IDLE_INTERVAL = 60 * 1000;
+    private static final long MAX_IDLE_INTERVAL = 15 * 60 * 1000;
+    private static final long MIN_ERROR_BACKOFF = 5 * 1000;
+    private static final long MAX_ERROR_BACKOFF = 5 * 60 * 1000;
+    private static final long OFFSET_SAVE_INTERVAL = 60 * 1000;
+
+    private static TelegramUpdatePoller sInstance;
+
+    private final Object mLock = new Object();
+    private final SharedPreferences mPreferences;
+    private final ConnectivityManager mConnectivityManager;
+
+    // Guarded by mLock.
+    private Thread mThread;
+    private boolean mStopped = true;
+    private String mBotKey;
+    private TelegramHelper.UpdateCallback mUpdateCallback;
+    private int mPendingPolls;
+
+    // Poller thread only, handed over under mLock when the thread is restarted.
+    private long mOffset;
+    private long mSavedOffset;
+    private long mLastSaveTime;
+    private long mIdleInterval = MIN_IDLE_INTERVAL;
+    private int mErrorCount;
+
+    private TelegramUpdatePoller() {
+        Context context = LocationLoggerApp.getContext();
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mConnectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    public static synchronized TelegramUpdatePoller getInstance() {
+        if (sInstance == null) {
+            sInstance = new TelegramUpdatePoller();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts the poller thread if it is not running, the bot key and callback are replaced.
+     */
+    public void start(String botKey, TelegramHelper.UpdateCallback updateCallback) {
+        synchronized (mLock) {
+            mBotKey = botKey;
+            mUpdateCallback = updateCallback;
+            if (!mStopped) {
+                return;
+            }
+            mStopped = false;
+            mPendingPolls = 1;
+            if (mThread == null) {
+                mThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        pollLoop();
+                    }
+                }, TAG);
+                mThread.start();
+                if (Logger.DEBUG) Logger.debug(TAG, "Started");
+            }
+        }
+    }
+
+    /**
+     * The thread exits after the outstanding poll returns.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            mStopped = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Requests count polls right away.
+     */
+    public void poll(int count) {
+        synchronized (mLock) {
+            if (count > mPendingPolls) {
+                mPendingPolls = count;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    private void pollLoop() {
+        if (mOffset == 0) {
+            // Later threads keep the offset of the previous one, it may not be saved yet.
+            mOffset = mPreferences.getLong(OFFSET_PREF_KEY, 0);
+            mSavedOffset = mOffset;
+        }
+        long nextPoll = 0;
+
+        try {
+            while (true) {
+                String botKey;
+                TelegramHelper.UpdateCallback callback;
+                boolean continuous;
+                synchronized (mLock) {
+                    while (true) {
+                        if (mStopped) {
+                            mThread = null;
+                            return;
+                        }
+                        continuous = isContinuous();
+                        long wait = nextPoll - SystemClock.elapsedRealtime();
+                        if (mPendingPolls > 0 || wait <= 0) {
+                            break;
+                        }
+                        if (continuous && mErrorCount == 0) {
+                            break;
+                        }
+                        try {
+                            mLock.wait(wait);
+                        } catch (InterruptedException e) {
+                            // Poll
+                        }
+                    }
+                    if (mPendingPolls > 0) {
+                        mPendingPolls--;
+                    }
+                    botKey = mBotKey;
+                    callback = mUpdateCallback;
+                }
+
+                long delay;
+                try {
+                    int received = pollOnce(botKey, callback, continuous ? LONG_POLL_TIMEOUT : BATTERY_POLL_TIMEOUT);
+                    mErrorCount = 0;
+                    if (received > 0) {
+                        // Replies to commands tend to trigger more commands.
+                        mIdleInterval = MIN_IDLE_INTERVAL;
+                    } else if (!continuous) {
+                        mIdleInterval = Math.min(MAX_IDLE_INTERVAL, mIdleInterval * 2);
+                    }
+                    delay = continuous ? 0 : mIdleInterval;
+                } catch (Exception e) {
+                    Logger.warning(TAG, "pollOnce", e);
+                    delay = Math.min(MAX_ERROR_BACKOFF, MIN_ERROR_BACKOFF << Math.min(mErrorCount, 10));
+                    mErrorCount++;
+                }
+                nextPoll = SystemClock.elapsedRealtime() + delay;
+                saveOffset(false);
+            }
+        } finally {
+            saveOffset(true);
+            synchronized (mLock) {
+                if (mThread == Thread.currentThread()) {
+                    mThread = null;
+                }
+            }
+            if (Logger.DEBUG) Logger.debug(TAG, "Stopped. Offset: %d", mOffset);
+        }
+    }
+
+    /**
+     * @return the number of updates received.
+     */
+    private int pollOnce(String botKey, final TelegramHelper.UpdateCallback callback, int timeout) throws IOException {
+        if (Logger.DEBUG) Logger.debug(TAG, "getUpdates timeout:%d offset:%d", timeout, mOffset);
+
+        final int[] received = new int[1];
+        long offset = new TelegramClient(botKey).getUpdates(mOffset, timeout, UPDATES_LIMIT,
+                new UpdateResponse.UpdateHandler() {
+                    @Override
+                    public void onUpdate(TelegramUpdate update) {
+                        // Committed per update, before it runs, so it is never dispatched twice.
+                        mOffset = update.id + 1;
+                        saveOffset(true);
+                        received[0]++;
+                        TelegramHelper.dispatchUpdate(update, callback);
+                    }
+                });
+        mOffset = Math.max(mOffset, offset);
+        return received[0];
+    }
+
+    /**
+     * Force commits right away, otherwise the offset is applied at most once a minute.
+     */
+    private void saveOffset(boolean force) {
+        if (mOffset == mSavedOffset) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (!force && now - mLastSaveTime < OFFSET_SAVE_INTERVAL) {
+            return;
+        }
+        SharedPreferences.Editor editor = mPreferences.edit().putLong(OFFSET_PREF_KEY, mOffset);
+        if (force) {
+            editor.commit();
+        } else {
+            editor.apply();
+        }
+        mSavedOffset = mOffset;
+        mLastSaveTime = now;
+    }
+
+    private boolean isContinuous() {
+        if (Utils.getBatteryLevel() > 100) {
+            return true;
+        }
+        NetworkInfo networkInfo = mConnectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected() &&
+                networkInfo.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+}
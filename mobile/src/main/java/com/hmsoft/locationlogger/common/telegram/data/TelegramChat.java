@@ -1,7 +1,11 @@
 package com.hmsoft.locationlogger.common.telegram.data;
 
+import android.util.JsonReader;
+
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 public class TelegramChat {
     public final long id;
     public final String title;
@@ -25,4 +29,31 @@ public class TelegramChat {
 
         this.title = title;
     }
+
+    TelegramChat(JsonReader reader) throws IOException {
+        long id = 0;
+        String type = "";
+        String firstName = "";
+        String lastName = "";
+        String title = "";
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id": id = reader.nextLong(); break;
+                case "type": type = reader.nextString(); break;
+                case "first_name": firstName = reader.nextString(); break;
+                case "last_name": lastName = reader.nextString(); break;
+                case "title": title = reader.nextString(); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        this.id = id;
+        this.type = type;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.title = title.length() == 0 ? firstName + " " + lastName : title;
+    }
 }
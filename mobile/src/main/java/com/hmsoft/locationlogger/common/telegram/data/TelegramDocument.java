@@ -1,7 +1,11 @@
 package com.hmsoft.locationlogger.common.telegram.data;
 
+import android.util.JsonReader;
+
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 public class TelegramDocument {
 
     public final String id;
@@ -15,4 +19,31 @@ public class TelegramDocument {
         fileSize = result.optLong("file_size");
         mimeType = result.optString("mime_type");
     }
+
+    /**
+     * @param fixedFileName used instead of the file_name field when not null.
+     */
+    TelegramDocument(JsonReader reader, String fixedFileName) throws IOException {
+        String id = "";
+        String fileName = "";
+        long fileSize = 0;
+        String mimeType = "";
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "file_id": id = reader.nextString(); break;
+                case "file_name": fileName = reader.nextString(); break;
+                case "file_size": fileSize = reader.nextLong(); break;
+                case "mime_type": mimeType = reader.nextString(); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        this.id = id;
+        this.fileName = fixedFileName != null ? fixedFileName : fileName;
+        this.fileSize = fileSize;
+        this.mimeType = mimeType;
+    }
 }
@@ -1,10 +1,19 @@
 package com.hmsoft.locationlogger.common.telegram.data;
 
+import android.util.JsonReader;
+
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 
 public class TelegramMessage {
 
+    /**
+     * File name given to voice notes, they are handled as documents.
+     */
+    public static final String VOICE_FILE_NAME = "voice_";
+
     public final long date;
     public final long id;
     public final String text;
@@ -22,5 +31,39 @@ public class TelegramMessage {
         JSONObject documentObj = result.optJSONObject("document");
         document =  documentObj != null ? new TelegramDocument(documentObj) : null;
     }
+
+    TelegramMessage(JsonReader reader) throws IOException {
+        long date = 0;
+        long id = 0;
+        String text = "";
+        TelegramChat chat = null;
+        TelegramDocument document = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "date": date = reader.nextLong(); break;
+                case "message_id": id = reader.nextLong(); break;
+                case "text": text = reader.nextString(); break;
+                case "chat": chat = new TelegramChat(reader); break;
+                case "document": document = new TelegramDocument(reader, null); break;
+                case "voice":
+                    if (document == null) {
+                        document = new TelegramDocument(reader, VOICE_FILE_NAME);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        this.date = date;
+        this.id = id;
+        this.text = text;
+        this.chat = chat;
+        this.document = document;
+    }
 }
 
@@ -9,6 +9,10 @@ public class TelegramResponse<T> {
     public final boolean ok;
     public final int errorCore;
     public final String description;
+    /**
+     * Seconds to wait before retrying, set with error 429.
+     */
+    public final int retryAfter;
 
     public final JSONArray results;
 
@@ -22,6 +26,8 @@ public class TelegramResponse<T> {
         ok = response.optBoolean("ok");
         errorCore = response.optInt("error_code");
         description = response.optString("description");
+        JSONObject parameters = response.optJSONObject("parameters");
+        retryAfter = parameters != null ? parameters.optInt("retry_after") : 0;
 
         results = response.optJSONArray("result");
 
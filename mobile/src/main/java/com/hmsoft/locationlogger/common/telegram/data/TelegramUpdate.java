@@ -1,7 +1,11 @@
 package com.hmsoft.locationlogger.common.telegram.data;
 
+import android.util.JsonReader;
+
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 public class TelegramUpdate {
     public final long id;
     public final TelegramMessage message;
@@ -17,4 +21,29 @@ public class TelegramUpdate {
         message = messageObj != null ? new TelegramMessage(messageObj) : null;
 
     }
+
+    TelegramUpdate(JsonReader reader) throws IOException {
+        long id = 0;
+        TelegramMessage message = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "update_id": id = reader.nextLong(); break;
+                case "channel_post": message = new TelegramMessage(reader); break;
+                case "message":
+                    if (message == null) {
+                        message = new TelegramMessage(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        this.id = id;
+        this.message = message;
+    }
 }
@@ -1,10 +1,21 @@
 package com.hmsoft.locationlogger.common.telegram.data;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
 public class UpdateResponse extends TelegramResponse<TelegramUpdate> {
 
+    public interface UpdateHandler {
+        void onUpdate(TelegramUpdate update);
+    }
+
     public UpdateResponse(String responseText) throws JSONException {
         super(responseText);
     }
@@ -17,4 +28,32 @@ public class UpdateResponse extends TelegramResponse<TelegramUpdate> {
     protected void processResult(int index, JSONObject result) {
 
     }
+
+    /**
+     * Pull parses a getUpdates response, every update is passed to the handler as soon as it is
+     * read so the whole response is never held in memory. The stream is not closed.
+     *
+     * @return the id of the last update read, 0 if there was none.
+     */
+    public static long read(InputStream input, UpdateHandler handler) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(input, "UTF-8"));
+        long lastId = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("result".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    TelegramUpdate update = new TelegramUpdate(reader);
+                    lastId = update.id;
+                    handler.onUpdate(update);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return lastId;
+    }
 }
@@ -5,12 +5,15 @@ import android.location.Address;
 import android.location.Location;
 import android.text.TextUtils;
 
+import com.hmsoft.locationlogger.LocationLoggerApp;
 import com.hmsoft.locationlogger.common.Logger;
 import com.hmsoft.locationlogger.data.sqlite.GeocoderTable;
 import com.hmsoft.locationlogger.data.sqlite.Helper;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Locale;
 
 public class Geocoder {
 
@@ -18,68 +21,107 @@ public class Geocoder {
 
     static final double ROUND = 1000.0;
 
-    static class GeoCoderMemCache {
-        private static final int MAX_ENTRIES = 6;
-        private static final double[] LAT_ENTRIES = new double[MAX_ENTRIES];
-        private static final double[] LON_ENTRIES = new double[MAX_ENTRIES];
-        private static final String[] ADD_ENTRIES = new String[MAX_ENTRIES];
+    public static final int DEFAULT_NEAREST_RADIUS = 150; // meters
+    private static final int MAX_NEAREST_RADIUS = 5000;
 
-        private static int sIndex = -1;
+    private static final int CACHE_SIZE = 512;
+    private static final GeocoderCache sCache = new GeocoderCache(CACHE_SIZE);
 
-        public static synchronized void addAddress(double lat, double lon, String address) {
-            if (++sIndex == MAX_ENTRIES) {
-                sIndex = 0;
-            }
-            LAT_ENTRIES[sIndex] = lat;
-            LON_ENTRIES[sIndex] = lon;
-            ADD_ENTRIES[sIndex] = address;
-        }
+    private static final String PLACES_FILE_NAME = "places.bin";
+
+    private static volatile int sNearestRadius = DEFAULT_NEAREST_RADIUS;
+
+    /**
+     * Addresses saved up to radius meters away are used when the location cell has none, 0
+     * disables it.
+     */
+    public static void setNearestRadius(int radius) {
+        sNearestRadius = Math.max(0, Math.min(radius, MAX_NEAREST_RADIUS));
+    }
 
-        public static synchronized String getAddress(double lat, double lon) {
-            for (int c = 0; c < MAX_ENTRIES; c++) {
-                double la = LAT_ENTRIES[c];
-                double lo = LON_ENTRIES[c];
+    private static long cacheKey(double lat, double lon) {
+        return GeocoderCache.key(Math.round(lat * ROUND), Math.round(lon * ROUND));
+    }
 
-                if (la == 0 || lo == 0) {
-                    return null;
-                }
+    /**
+     * Identifies the geocoder cell of the location, locations with the same key share an address.
+     */
+    public static long getCellKey(Location location) {
+        return cacheKey(location.getLatitude(), location.getLongitude());
+    }
 
-                if (la == lat && lo == lon) {
-                    return ADD_ENTRIES[c];
-                }
+    private static File getPlacesFile() {
+        return new File(LocationLoggerApp.getContext().getFilesDir(), PLACES_FILE_NAME);
+    }
+
+    /**
+     * Replaces the offline places with the ones in a CSV of name,latitude,longitude lines.
+     *
+     * @return the number of places imported.
+     */
+    public static int importPlaces(File csvFile) throws IOException {
+        return OfflinePlaces.compile(csvFile, getPlacesFile());
+    }
+
+    /**
+     * Maps the offline places and loads the latest addresses of the geocoder table into the
+     * memory cache.
+     */
+    public static void warmCache() {
+        OfflinePlaces.open(getPlacesFile());
+        GeocoderTable.loadLatest(CACHE_SIZE, new GeocoderTable.AddressCallback() {
+            @Override
+            public void onAddress(double latitude, double longitude, String address) {
+                sCache.put(cacheKey(latitude, longitude), address);
             }
-            return null;
-        }
+        });
+        if(Logger.DEBUG) Logger.debug(TAG, "Cache warmed with %d addresses", sCache.size());
+    }
+
+    public static String getCacheStatus() {
+        return String.format(Locale.US, "Geocoder cache: %d entries, %d hits, %d misses, %d offline places\n",
+                sCache.size(), sCache.getHits(), sCache.getMisses(), OfflinePlaces.getCount());
     }
 
     public static String getFromCache(Location location) {
         double lat = Math.round(location.getLatitude() * ROUND) / ROUND;
         double lon = Math.round(location.getLongitude() * ROUND) / ROUND;
+        long key = cacheKey(lat, lon);
+
+        String address = sCache.get(key);
 
-        String address = GeoCoderMemCache.getAddress(lat, lon);
-        
         if(TextUtils.isEmpty(address)) {
-           address = GeocoderTable.getAddress(lat, lon);
+            address = GeocoderTable.getAddress(lat, lon);
+            if(TextUtils.isEmpty(address) && sNearestRadius > 0) {
+                // Kept in memory for this cell, so the next fix in it is an exact hit.
+                address = GeocoderTable.getNearestAddress(location.getLatitude(), location.getLongitude(),
+                        sNearestRadius);
+            }
             if(!TextUtils.isEmpty(address)) {
-                // add to mem cache
-                GeoCoderMemCache.addAddress(lat, lon, address);
-                if(Logger.DEBUG) {
-                    if(Logger.DEBUG) Logger.debug(TAG, "Address '%s' retrieved from SQL cache.", address);
-                }
+                sCache.put(key, address);
+                if(Logger.DEBUG) Logger.debug(TAG, "Address '%s' retrieved from SQL cache.", address);
             }
-		} else {
-			if(Logger.DEBUG) {
-                if(Logger.DEBUG) Logger.debug(TAG, "Address '%s' retrieved from MEM cache.", address);
-			}
-        }        
+        } else if(Logger.DEBUG) {
+            Logger.debug(TAG, "Address '%s' retrieved from MEM cache.", address);
+        }
         return address;
     }
 
+    /**
+     * Name of the nearest offline place, for when the remote geocoder is unavailable or fails.
+     * It is not cached, so a later remote lookup of the cell still runs.
+     *
+     * @return null if there is no place nearby.
+     */
+    public static String getOffline(Location location) {
+        return OfflinePlaces.getNearest(location.getLatitude(), location.getLongitude());
+    }
+
     public static void addToCache(Location location, String address) {
         double lat = Math.round(location.getLatitude() * ROUND) / ROUND;
         double lon = Math.round(location.getLongitude() * ROUND) / ROUND;
 
-        GeoCoderMemCache.addAddress(lat, lon, address);
+        sCache.put(cacheKey(lat, lon), address);
 		GeocoderTable.saveAddress(location.getTime(), lat, lon, address);
         if(Logger.DEBUG) Logger.debug(TAG, "Address '%s' added to MEM/SQL cache.", address);
     }
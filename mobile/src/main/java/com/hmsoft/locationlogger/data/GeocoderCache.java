@@ -0,0 +1,161 @@
+package com.hmsoft.locationlogger.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Addresses of the grid cells visited lately, keyed by the rounded latitude and longitude packed
+ * into a long. Open addressing with linear probing over immutable entries, so lookups take no
+ * lock, writers are serialized. When full, the clock hand evicts the first entry that was not read
+ * since it last passed. A lookup racing with an eviction can miss, the caller then reads the
+ * geocoder table.
+ */
+class GeocoderCache {
+
+    private static final long NO_KEY = Long.MIN_VALUE;
+
+    private static class Entry {
+        final long key;
+        final String address;
+        volatile boolean referenced;
+
+        Entry(long key, String address) {
+            this.key = key;
+            this.address = address;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> mTable;
+    private final int mMask;
+    private final int mMaxEntries;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    // Guarded by this.
+    private int mSize;
+    private int mClockHand;
+
+    /**
+     * The table is kept at most half full.
+     */
+    GeocoderCache(int maxEntries) {
+        int capacity = Integer.highestOneBit(Math.max(2, maxEntries) * 2 - 1) << 1;
+        mTable = new AtomicReferenceArray<>(capacity);
+        mMask = capacity - 1;
+        mMaxEntries = Math.max(1, maxEntries);
+    }
+
+    /**
+     * @param lat latitude in thousandths of a degree.
+     * @param lon longitude in thousandths of a degree.
+     */
+    static long key(long lat, long lon) {
+        return (lat << 32) | (lon & 0xffffffffL);
+    }
+
+    String get(long key) {
+        int slot = slot(key);
+        Entry entry;
+        while ((entry = mTable.get(slot)) != null) {
+            if (entry.key == key) {
+                if (!entry.referenced) {
+                    entry.referenced = true;
+                }
+                mHits.incrementAndGet();
+                return entry.address;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    synchronized void put(long key, String address) {
+        if (key == NO_KEY) {
+            return;
+        }
+        int slot = slot(key);
+        Entry entry;
+        while ((entry = mTable.get(slot)) != null) {
+            if (entry.key == key) {
+                Entry replacement = new Entry(key, address);
+                replacement.referenced = entry.referenced;
+                mTable.set(slot, replacement);
+                return;
+            }
+            slot = (slot + 1) & mMask;
+        }
+
+        if (mSize >= mMaxEntries) {
+            evict();
+            // The eviction may have shifted the chain, find the free slot again.
+            slot = slot(key);
+            while (mTable.get(slot) != null) {
+                slot = (slot + 1) & mMask;
+            }
+        }
+        mTable.set(slot, new Entry(key, address));
+        mSize++;
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < mTable.length(); i++) {
+            mTable.set(i, null);
+        }
+        mSize = 0;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    long getHits() {
+        return mHits.get();
+    }
+
+    long getMisses() {
+        return mMisses.get();
+    }
+
+    private void evict() {
+        while (true) {
+            int slot = mClockHand;
+            mClockHand = (mClockHand + 1) & mMask;
+            Entry entry = mTable.get(slot);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else {
+                remove(slot);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Backward shift deletion, entries after the slot move back so no probe chain is broken.
+     */
+    private void remove(int slot) {
+        int hole = slot;
+        int next = (slot + 1) & mMask;
+        Entry entry;
+        while ((entry = mTable.get(next)) != null) {
+            int home = slot(entry.key);
+            // Moves unless its home slot is cyclically in (hole, next].
+            if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+                mTable.set(hole, entry);
+                hole = next;
+            }
+            next = (next + 1) & mMask;
+        }
+        mTable.set(hole, null);
+        mSize--;
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & mMask;
+    }
+}
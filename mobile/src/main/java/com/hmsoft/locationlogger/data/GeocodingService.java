@@ -0,0 +1,319 @@
+package com.hmsoft.locationlogger.data;
+
+import android.content.Context;
+import android.location.Location;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.hmsoft.locationlogger.common.Logger;
+import com.hmsoft.locationlogger.common.Utils;
+import com.hmsoft.locationlogger.data.sqlite.TripSummaryTable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reverse geocodes on a single worker thread. Requests are keyed by geocoder cell: a cell already
+ * queued or being resolved is never queued twice, later requests wait for the same answer. Remote
+ * lookups are spaced by MIN_REMOTE_INTERVAL. While the service is started, charging and on Wi-Fi,
+ * the worker also fills the addresses of trip endpoints when there is nothing else to do.
+ */
+public class GeocodingService {
+
+    private static final String TAG = "GeocodingService";
+
+    private static final long MIN_REMOTE_INTERVAL = 1000;
+    private static final long BACKFILL_CHECK_INTERVAL = 15 * 60 * 1000;
+    private static final int BACKFILL_BATCH_SIZE = 20;
+
+    public interface Callback {
+        /**
+         * Called on the worker thread, address is empty if it could not be resolved.
+         */
+        void onAddress(Location location, String address);
+    }
+
+    private static class Request {
+        final long key;
+        final Location location;
+        final boolean backfill;
+        final List<Callback> callbacks = new ArrayList<>(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String address;
+
+        Request(long key, Location location, boolean backfill) {
+            this.key = key;
+            this.location = location;
+            this.backfill = backfill;
+        }
+    }
+
+    private static GeocodingService sInstance;
+
+    private final Context mContext;
+    private final ConnectivityManager mConnectivityManager;
+    private final Object mLock = new Object();
+
+    // Guarded by mLock. mRequests has the queued and the running requests, backfill requests
+    // only run when mQueue is empty.
+    private final HashMap<Long, Request> mRequests = new HashMap<>();
+    private final ArrayDeque<Request> mQueue = new ArrayDeque<>();
+    private final ArrayDeque<Request> mBackfillQueue = new ArrayDeque<>();
+    private Thread mThread;
+    private boolean mStarted;
+
+    // Worker thread only.
+    // Cells the backfill could not write to the trips, skipped until restart.
+    private final HashSet<Long> mBackfillFailed = new HashSet<>();
+    private long mNextRemoteTime;
+    private long mNextBackfillCheck;
+
+    private GeocodingService(Context context) {
+        mContext = context.getApplicationContext();
+        mConnectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    public static synchronized GeocodingService getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new GeocodingService(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Enables the trip address backfill, requests are served whether started or not.
+     */
+    public void start() {
+        synchronized (mLock) {
+            mStarted = true;
+            ensureThread();
+            mLock.notifyAll();
+        }
+    }
+
+    public void stop() {
+        synchronized (mLock) {
+            mStarted = false;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Cached address of the location or, if there is none, waits up to timeout milliseconds for
+     * the remote geocoder. The request keeps running after a timeout and its address is cached.
+     * The nearest offline place is returned if the remote address is not known in time.
+     *
+     * @return null if there is no address and no offline place.
+     */
+    public String resolve(Location location, long timeout) {
+        String address = Geocoder.getFromCache(location);
+        if (!TextUtils.isEmpty(address)) {
+            return address;
+        }
+
+        Request request = enqueue(location, null, false);
+        try {
+            if (request.done.await(timeout, TimeUnit.MILLISECONDS)) {
+                if (!TextUtils.isEmpty(request.address)) {
+                    return request.address;
+                }
+            } else if (Logger.DEBUG) {
+                Logger.debug(TAG, "Address not resolved in %dms", timeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Geocoder.getOffline(location);
+    }
+
+    /**
+     * Resolves the address in the background, the callback is called right away on a cache hit.
+     */
+    public void resolveAsync(Location location, Callback callback) {
+        String address = Geocoder.getFromCache(location);
+        if (!TextUtils.isEmpty(address)) {
+            callback.onAddress(location, address);
+            return;
+        }
+        enqueue(location, callback, false);
+    }
+
+    private Request enqueue(Location location, Callback callback, boolean backfill) {
+        long key = Geocoder.getCellKey(location);
+        synchronized (mLock) {
+            Request request = mRequests.get(key);
+            if (request == null) {
+                request = new Request(key, location, backfill);
+                mRequests.put(key, request);
+                (backfill ? mBackfillQueue : mQueue).add(request);
+                ensureThread();
+                mLock.notifyAll();
+            } else {
+                if (!backfill && mBackfillQueue.remove(request)) {
+                    mQueue.add(request);
+                }
+                if (Logger.DEBUG) Logger.debug(TAG, "Request coalesced");
+            }
+            if (callback != null) {
+                request.callbacks.add(callback);
+            }
+            return request;
+        }
+    }
+
+    // Must hold mLock.
+    private void ensureThread() {
+        if (mThread == null) {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workerLoop();
+                }
+            }, TAG);
+            mThread.start();
+        }
+    }
+
+    private void workerLoop() {
+        while (true) {
+            Request request;
+            boolean backfill;
+            synchronized (mLock) {
+                request = mQueue.peek();
+                if (request == null) {
+                    request = mBackfillQueue.peek();
+                }
+                backfill = request == null && mStarted && SystemClock.elapsedRealtime() >= mNextBackfillCheck;
+                if (request == null && !backfill) {
+                    if (!mStarted) {
+                        mThread = null;
+                        return;
+                    }
+                    try {
+                        mLock.wait(Math.max(1, mNextBackfillCheck - SystemClock.elapsedRealtime()));
+                    } catch (InterruptedException e) {
+                        // Check again
+                    }
+                    continue;
+                }
+            }
+
+            if (request != null) {
+                try {
+                    process(request);
+                } catch (RuntimeException e) {
+                    Logger.warning(TAG, "process", e);
+                    finish(request, "");
+                }
+            } else if (!queueBackfill()) {
+                mNextBackfillCheck = SystemClock.elapsedRealtime() + BACKFILL_CHECK_INTERVAL;
+            }
+        }
+    }
+
+    private void process(Request request) {
+        // An earlier request may have cached it, a nearby cell too.
+        String address = Geocoder.getFromCache(request.location);
+        boolean saved = false;
+        if (TextUtils.isEmpty(address) && isConnected()) {
+            long wait = mNextRemoteTime - SystemClock.elapsedRealtime();
+            if (wait > 0) {
+                SystemClock.sleep(wait);
+            }
+            address = Geocoder.getFromRemote(mContext, request.location);
+            mNextRemoteTime = SystemClock.elapsedRealtime() + MIN_REMOTE_INTERVAL;
+            if (!TextUtils.isEmpty(address)) {
+                if (request.backfill) {
+                    // The geocoder cache is keyed by time, remote lookups are at least a second apart.
+                    request.location.setTime(System.currentTimeMillis());
+                }
+                // Also sets the address of the trips in the cell.
+                Geocoder.addToCache(request.location, address);
+                saved = true;
+            }
+        }
+
+        if (TextUtils.isEmpty(address) && !request.backfill) {
+            // Not saved, trips wait for a remote address.
+            address = Geocoder.getOffline(request.location);
+        }
+
+        if (request.backfill) {
+            if (!saved && !TextUtils.isEmpty(address)) {
+                // Cache hits are not written anywhere, the trips still need the address.
+                saved = TripSummaryTable.setAddress(request.location.getLatitude(),
+                        request.location.getLongitude(), address) > 0;
+            }
+            if (!saved) {
+                mBackfillFailed.add(request.key);
+            }
+        }
+        finish(request, address != null ? address : "");
+    }
+
+    private void finish(Request request, String address) {
+        List<Callback> callbacks;
+        synchronized (mLock) {
+            if (!mQueue.remove(request)) {
+                mBackfillQueue.remove(request);
+            }
+            mRequests.remove(request.key);
+            callbacks = new ArrayList<>(request.callbacks);
+        }
+        request.address = address;
+        request.done.countDown();
+        for (Callback callback : callbacks) {
+            try {
+                callback.onAddress(request.location, address);
+            } catch (RuntimeException e) {
+                Logger.warning(TAG, "onAddress", e);
+            }
+        }
+    }
+
+    /**
+     * Queues trip endpoints that have no address, only while charging on Wi-Fi.
+     *
+     * @return false if there was nothing to queue.
+     */
+    private boolean queueBackfill() {
+        if (Utils.getBatteryLevel() <= 100 || !isWifi()) {
+            return false;
+        }
+
+        int queued = 0;
+        for (double[] cell : TripSummaryTable.getCellsWithoutAddress(BACKFILL_BATCH_SIZE + mBackfillFailed.size())) {
+            Location location = new Location(TAG);
+            location.setLatitude(cell[0]);
+            location.setLongitude(cell[1]);
+            if (!mBackfillFailed.contains(Geocoder.getCellKey(location))) {
+                enqueue(location, null, true);
+                if (++queued == BACKFILL_BATCH_SIZE) {
+                    break;
+                }
+            }
+        }
+
+        if (Logger.DEBUG && queued > 0) Logger.debug(TAG, "Backfill queued %d cells", queued);
+
+        return queued > 0;
+    }
+
+    private boolean isConnected() {
+        NetworkInfo networkInfo = mConnectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+    private boolean isWifi() {
+        NetworkInfo networkInfo = mConnectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected() &&
+                networkInfo.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+}
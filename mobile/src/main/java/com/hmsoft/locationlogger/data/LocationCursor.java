@@ -0,0 +1,21 @@
+package com.hmsoft.locationlogger.data;
+
+/**
+ * Read only, forward only flyweight view over a {@link LocationSet}. The getters return the
+ * values of the current point, no object is created per point.
+ */
+public interface LocationCursor {
+    boolean moveToNext();
+    int getPosition();
+
+    long getTime();
+    double getLatitude();
+    double getLongitude();
+    double getAltitude();
+    float getAccuracy();
+    float getSpeed();
+    int getBatteryLevel();
+    String getEvent();
+
+    void close();
+}
@@ -3,4 +3,5 @@ package com.hmsoft.locationlogger.data;
 public interface LocationSet extends Iterable<LocatrackLocation> {
     int getCount();
     LocatrackLocation[] toArray();
+    LocationCursor cursor();
 }
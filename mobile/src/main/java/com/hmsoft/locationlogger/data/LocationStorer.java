@@ -25,6 +25,26 @@ public abstract class LocationStorer {
 
     }
 
+    /**
+     * Millis after a store when buffered work must be written with {@link #flush()}, 0 if the
+     * storer buffers nothing.
+     */
+    public long getFlushDelay() {
+        return 0;
+    }
+
+    public void flush() {
+
+    }
+
+    /**
+     * True if the storer may miss plain fixes when it falls behind, like a network notifier.
+     * Storers that keep the track must not.
+     */
+    public boolean canSkipFixes() {
+        return false;
+    }
+
     public interface OnCloseCallback {
         void onClose(Bundle extras, Exception error);
     }
@@ -0,0 +1,322 @@
+package com.hmsoft.locationlogger.data;
+
+import com.hmsoft.locationlogger.common.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Named places compiled from a CSV file into a memory mapped binary file, so addresses can be
+ * resolved with no network. Places are sorted by grid cell, a sorted cell index points to the
+ * first place of each cell. Lookups binary search the index and scan the neighbouring cells with
+ * absolute reads of the mapping, the only allocation is the returned name.
+ *
+ * <pre>
+ * header: int magic, int cellCount, int placeCount
+ * cells:  cellCount * (long key, int firstPlace)
+ * places: placeCount * (int latE6, int lonE6, int nameOffset, int nameLength)
+ * names:  UTF-8 bytes
+ * </pre>
+ */
+class OfflinePlaces {
+
+    private static final String TAG = "OfflinePlaces";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x504c4331; // PLC1
+    private static final int HEADER_SIZE = 12;
+    private static final int CELL_SIZE = 12;
+    private static final int PLACE_SIZE = 16;
+    private static final double E6 = 1000000.0;
+
+    // Cells of a tenth of a degree.
+    private static final double GRID = 10.0;
+    private static final double METERS_PER_DEGREE = 111320.0;
+    private static final double MAX_DISTANCE = 10000; // meters
+
+    private static volatile MappedByteBuffer sPlaces;
+
+    private OfflinePlaces() {
+    }
+
+    /**
+     * Maps the compiled file if it exists, keeps the current mapping otherwise.
+     */
+    static void open(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            sPlaces = map(file);
+            if (Logger.DEBUG) Logger.debug(TAG, "%d places mapped", getCount());
+        } catch (IOException e) {
+            Logger.warning(TAG, "open", e);
+        }
+    }
+
+    static int getCount() {
+        ByteBuffer places = sPlaces;
+        return places != null ? places.getInt(8) : 0;
+    }
+
+    /**
+     * Name of the closest place up to MAX_DISTANCE away.
+     *
+     * @return null if there is no such place or no dataset.
+     */
+    static String getNearest(double latitude, double longitude) {
+        ByteBuffer places = sPlaces;
+        if (places == null) {
+            return null;
+        }
+
+        int cellCount = places.getInt(4);
+        int placeCount = places.getInt(8);
+        int placesStart = HEADER_SIZE + cellCount * CELL_SIZE;
+
+        double cos = Math.cos(Math.toRadians(latitude));
+        double maxDegrees = MAX_DISTANCE / METERS_PER_DEGREE;
+        int latCells = (int) Math.ceil(maxDegrees * GRID);
+        int lonCells = (int) Math.min(Math.ceil(maxDegrees * GRID / Math.max(cos, 0.01)), 180 * GRID);
+        long cellLat = (long) Math.floor(latitude * GRID);
+        long cellLon = (long) Math.floor(longitude * GRID);
+
+        double best = maxDegrees * maxDegrees;
+        int bestPlace = -1;
+        for (long y = cellLat - latCells; y <= cellLat + latCells; y++) {
+            for (long x = cellLon - lonCells; x <= cellLon + lonCells; x++) {
+                int cell = findCell(places, cellCount, cellKey(y, x));
+                if (cell < 0) {
+                    continue;
+                }
+                int first = places.getInt(HEADER_SIZE + cell * CELL_SIZE + 8);
+                int end = cell + 1 < cellCount ? places.getInt(HEADER_SIZE + (cell + 1) * CELL_SIZE + 8) : placeCount;
+                for (int place = first; place < end; place++) {
+                    int offset = placesStart + place * PLACE_SIZE;
+                    double dLat = places.getInt(offset) / E6 - latitude;
+                    double dLon = (places.getInt(offset + 4) / E6 - longitude) * cos;
+                    double distance = dLat * dLat + dLon * dLon;
+                    if (distance < best) {
+                        best = distance;
+                        bestPlace = place;
+                    }
+                }
+            }
+        }
+
+        if (bestPlace < 0) {
+            return null;
+        }
+        int offset = placesStart + bestPlace * PLACE_SIZE;
+        int nameOffset = places.getInt(offset + 8);
+        int nameLength = places.getInt(offset + 12);
+        byte[] name = new byte[nameLength];
+        for (int i = 0; i < nameLength; i++) {
+            name[i] = places.get(nameOffset + i);
+        }
+        return new String(name, UTF8);
+    }
+
+    /**
+     * Compiles a CSV of name,latitude,longitude lines, the name may be quoted. Lines that do not
+     * parse, like a header, are skipped. The file is replaced and mapped only if the CSV had places.
+     *
+     * @return the number of places.
+     */
+    static int compile(File csvFile, File file) throws IOException {
+        long start = System.currentTimeMillis();
+        List<byte[]> names = new ArrayList<>();
+        int[] lats = new int[1024];
+        int[] lons = new int[1024];
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csvFile), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (parseLine(line, names, lats, lons, names.size()) && names.size() == lats.length) {
+                    lats = Arrays.copyOf(lats, lats.length * 2);
+                    lons = Arrays.copyOf(lons, lons.length * 2);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        int count = names.size();
+        if (count == 0) {
+            throw new IOException("No places in " + csvFile.getName());
+        }
+
+        final long[] keys = new long[count];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = cellKey((long) Math.floor(lats[i] / E6 * GRID), (long) Math.floor(lons[i] / E6 * GRID));
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return keys[a] < keys[b] ? -1 : (keys[a] == keys[b] ? 0 : 1);
+            }
+        });
+
+        int cellCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || keys[order[i]] != keys[order[i - 1]]) {
+                cellCount++;
+            }
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(cellCount);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                if (i == 0 || keys[order[i]] != keys[order[i - 1]]) {
+                    out.writeLong(keys[order[i]]);
+                    out.writeInt(i);
+                }
+            }
+            int nameOffset = HEADER_SIZE + cellCount * CELL_SIZE + count * PLACE_SIZE;
+            for (int i = 0; i < count; i++) {
+                int place = order[i];
+                byte[] name = names.get(place);
+                out.writeInt(lats[place]);
+                out.writeInt(lons[place]);
+                out.writeInt(nameOffset);
+                out.writeInt(name.length);
+                nameOffset += name.length;
+            }
+            for (int i = 0; i < count; i++) {
+                out.write(names.get(order[i]));
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Could not rename " + tempFile + " to " + file);
+        }
+        sPlaces = map(file);
+
+        if (Logger.DEBUG) Logger.debug(TAG, "Compiled %d places in %d cells in %dms", count, cellCount,
+                System.currentTimeMillis() - start);
+
+        return count;
+    }
+
+    private static boolean parseLine(String line, List<byte[]> names, int[] lats, int[] lons, int index) {
+        String name;
+        int rest;
+        if (line.startsWith("\"")) {
+            StringBuilder builder = new StringBuilder();
+            int i = 1;
+            while (true) {
+                int quote = line.indexOf('"', i);
+                if (quote < 0) {
+                    return false;
+                }
+                builder.append(line, i, quote);
+                if (quote + 1 < line.length() && line.charAt(quote + 1) == '"') {
+                    builder.append('"');
+                    i = quote + 2;
+                } else {
+                    rest = quote + 1;
+                    break;
+                }
+            }
+            name = builder.toString();
+            if (rest >= line.length() || line.charAt(rest) != ',') {
+                return false;
+            }
+            rest++;
+        } else {
+            int comma = line.indexOf(',');
+            if (comma < 0) {
+                return false;
+            }
+            name = line.substring(0, comma);
+            rest = comma + 1;
+        }
+
+        name = name.trim();
+        String[] values = line.substring(rest).split(",");
+        if (name.isEmpty() || values.length < 2) {
+            return false;
+        }
+        double lat;
+        double lon;
+        try {
+            lat = Double.parseDouble(values[0].trim());
+            lon = Double.parseDouble(values[1].trim());
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (!(lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180)) {
+            return false;
+        }
+
+        lats[index] = (int) Math.round(lat * E6);
+        lons[index] = (int) Math.round(lon * E6);
+        names.add(name.getBytes(UTF8));
+        return true;
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer places = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (places.capacity() < HEADER_SIZE || places.getInt(0) != MAGIC) {
+                throw new IOException("Not a places file: " + file);
+            }
+            return places;
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            randomAccessFile.close();
+        }
+    }
+
+    private static int findCell(ByteBuffer places, int cellCount, long key) {
+        int low = 0;
+        int high = cellCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = places.getLong(HEADER_SIZE + mid * CELL_SIZE);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static long cellKey(long lat, long lon) {
+        return (lat << 32) | (lon & 0xffffffffL);
+    }
+}
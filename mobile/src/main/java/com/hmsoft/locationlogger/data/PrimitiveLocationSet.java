@@ -0,0 +1,297 @@
+package com.hmsoft.locationlogger.data;
+
+import com.hmsoft.locationlogger.data.sqlite.DatabaseLocationSet;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link LocationSet} that keeps every point field in a primitive array (struct of arrays).
+ * Events are interned in a small side table and stored as a short index per point, so a point
+ * costs ~50 bytes instead of a full {@link LocatrackLocation} with its extras Bundle.
+ *
+ * Read only consumers should use {@link #cursor()} or the indexed getters, {@link #iterator()}
+ * and {@link #toArray()} create a location object per point and exist for compatibility.
+ */
+public class PrimitiveLocationSet implements LocationSet {
+
+    private static final String PROVIDER = "database";
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final short NO_EVENT = 0;
+
+    private int mSize;
+    private long[] mTime;
+    private double[] mLatitude;
+    private double[] mLongitude;
+    private double[] mAltitude;
+    private float[] mAccuracy;
+    private float[] mSpeed;
+    private int[] mBatteryLevel;
+    private short[] mEvent;
+
+    private String[] mEventTable = new String[] { null };
+    private int mEventCount = 1;
+
+    public PrimitiveLocationSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PrimitiveLocationSet(int capacity) {
+        if (capacity < 1) {
+            capacity = 1;
+        }
+        mTime = new long[capacity];
+        mLatitude = new double[capacity];
+        mLongitude = new double[capacity];
+        mAltitude = new double[capacity];
+        mAccuracy = new float[capacity];
+        mSpeed = new float[capacity];
+        mBatteryLevel = new int[capacity];
+        mEvent = new short[capacity];
+    }
+
+    /**
+     * Takes ownership of the column arrays, no point data is copied.
+     */
+    public PrimitiveLocationSet(DatabaseLocationSet.Columns columns) {
+        mSize = columns.size;
+        mTime = columns.time;
+        mLatitude = columns.latitude;
+        mLongitude = columns.longitude;
+        mAltitude = columns.altitude;
+        mAccuracy = columns.accuracy;
+        mSpeed = columns.speed;
+        mBatteryLevel = columns.batteryLevel;
+        mEvent = new short[Math.max(mSize, 1)];
+        for (int i = 0; i < mSize; i++) {
+            mEvent[i] = internEvent(columns.event[i]);
+        }
+    }
+
+    public static PrimitiveLocationSet load(LocationSet locations) {
+        if (locations instanceof PrimitiveLocationSet) {
+            return (PrimitiveLocationSet) locations;
+        }
+
+        if (locations instanceof DatabaseLocationSet) {
+            return new PrimitiveLocationSet(((DatabaseLocationSet) locations).toColumns());
+        }
+
+        PrimitiveLocationSet result = new PrimitiveLocationSet(locations.getCount());
+        LocationCursor cursor = locations.cursor();
+        try {
+            while (cursor.moveToNext()) {
+                result.add(cursor.getTime(), cursor.getLatitude(), cursor.getLongitude(),
+                        cursor.getAltitude(), cursor.getAccuracy(), cursor.getSpeed(),
+                        cursor.getBatteryLevel(), cursor.getEvent());
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    public void add(long time, double latitude, double longitude, double altitude,
+                    float accuracy, float speed, int batteryLevel, String event) {
+        if (mSize == mTime.length) {
+            grow();
+        }
+        int i = mSize++;
+        mTime[i] = time;
+        mLatitude[i] = latitude;
+        mLongitude[i] = longitude;
+        mAltitude[i] = altitude;
+        mAccuracy[i] = accuracy;
+        mSpeed[i] = speed;
+        mBatteryLevel[i] = batteryLevel;
+        mEvent[i] = internEvent(event);
+    }
+
+    public void add(LocatrackLocation location) {
+        add(location.getTime(), location.getLatitude(), location.getLongitude(),
+                location.getAltitude(), location.getAccuracy(), location.getSpeed(),
+                location.batteryLevel, location.event);
+    }
+
+    public long getTime(int i) {
+        return mTime[i];
+    }
+
+    public double getLatitude(int i) {
+        return mLatitude[i];
+    }
+
+    public double getLongitude(int i) {
+        return mLongitude[i];
+    }
+
+    public double getAltitude(int i) {
+        return mAltitude[i];
+    }
+
+    public float getAccuracy(int i) {
+        return mAccuracy[i];
+    }
+
+    public float getSpeed(int i) {
+        return mSpeed[i];
+    }
+
+    public int getBatteryLevel(int i) {
+        return mBatteryLevel[i];
+    }
+
+    public String getEvent(int i) {
+        return mEventTable[mEvent[i]];
+    }
+
+    public LocatrackLocation get(int i) {
+        LocatrackLocation location = new LocatrackLocation(PROVIDER);
+        location.setTime(mTime[i]);
+        location.setLatitude(mLatitude[i]);
+        location.setLongitude(mLongitude[i]);
+        location.setAltitude(mAltitude[i]);
+        location.setAccuracy(mAccuracy[i]);
+        location.setSpeed(mSpeed[i]);
+        location.batteryLevel = mBatteryLevel[i];
+        location.event = getEvent(i);
+        return location;
+    }
+
+    @Override
+    public int getCount() {
+        return mSize;
+    }
+
+    @Override
+    public LocatrackLocation[] toArray() {
+        LocatrackLocation[] locations = new LocatrackLocation[mSize];
+        for (int i = 0; i < mSize; i++) {
+            locations[i] = get(i);
+        }
+        return locations;
+    }
+
+    @Override
+    public LocationCursor cursor() {
+        return new PointCursor();
+    }
+
+    @Override
+    public Iterator<LocatrackLocation> iterator() {
+        return new Iterator<LocatrackLocation>() {
+            private int mPosition = 0;
+
+            @Override
+            public boolean hasNext() {
+                return mPosition < mSize;
+            }
+
+            @Override
+            public LocatrackLocation next() {
+                if (mPosition >= mSize) {
+                    throw new NoSuchElementException();
+                }
+                return get(mPosition++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private short internEvent(String event) {
+        if (event == null || event.length() == 0) {
+            return NO_EVENT;
+        }
+        for (int c = 1; c < mEventCount; c++) {
+            if (mEventTable[c].equals(event)) {
+                return (short) c;
+            }
+        }
+        if (mEventCount == Short.MAX_VALUE) {
+            throw new IllegalStateException("Too many distinct events");
+        }
+        if (mEventCount == mEventTable.length) {
+            mEventTable = Arrays.copyOf(mEventTable, mEventCount * 2);
+        }
+        mEventTable[mEventCount] = event;
+        return (short) mEventCount++;
+    }
+
+    private void grow() {
+        int capacity = mTime.length + (mTime.length >> 1) + 1;
+        mTime = Arrays.copyOf(mTime, capacity);
+        mLatitude = Arrays.copyOf(mLatitude, capacity);
+        mLongitude = Arrays.copyOf(mLongitude, capacity);
+        mAltitude = Arrays.copyOf(mAltitude, capacity);
+        mAccuracy = Arrays.copyOf(mAccuracy, capacity);
+        mSpeed = Arrays.copyOf(mSpeed, capacity);
+        mBatteryLevel = Arrays.copyOf(mBatteryLevel, capacity);
+        mEvent = Arrays.copyOf(mEvent, capacity);
+    }
+
+    private class PointCursor implements LocationCursor {
+        private int mPosition = -1;
+
+        @Override
+        public boolean moveToNext() {
+            if (mPosition < mSize) {
+                mPosition++;
+            }
+            return mPosition < mSize;
+        }
+
+        @Override
+        public int getPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public long getTime() {
+            return mTime[mPosition];
+        }
+
+        @Override
+        public double getLatitude() {
+            return mLatitude[mPosition];
+        }
+
+        @Override
+        public double getLongitude() {
+            return mLongitude[mPosition];
+        }
+
+        @Override
+        public double getAltitude() {
+            return mAltitude[mPosition];
+        }
+
+        @Override
+        public float getAccuracy() {
+            return mAccuracy[mPosition];
+        }
+
+        @Override
+        public float getSpeed() {
+            return mSpeed[mPosition];
+        }
+
+        @Override
+        public int getBatteryLevel() {
+            return mBatteryLevel[mPosition];
+        }
+
+        @Override
+        public String getEvent() {
+            return mEventTable[mEvent[mPosition]];
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
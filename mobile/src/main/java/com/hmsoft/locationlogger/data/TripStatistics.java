@@ -0,0 +1,164 @@
+package com.hmsoft.locationlogger.data;
+
+import android.location.Location;
+
+/**
+ * Online trip statistics, points are added in time order and every value is updated in O(1).
+ * Speed and altitude values only use points with speed > 0, same as the trip aggregate query
+ * used before.
+ */
+public class TripStatistics {
+
+    private static final float MOVING_SPEED = 0.5f; // m/s
+    private static final double ELEVATION_THRESHOLD = 3.0; // meters, ignores GPS altitude noise
+
+    private long mStartTime;
+    private long mLastTime;
+    private int mCount;
+    private double mMaxSpeed;
+    private double mAvgSpeed;
+    private double mMaxAltitude;
+    private double mMinAltitude;
+    private long mMovingTime;
+    private long mIdleTime;
+    private double mElevationGain;
+    private double mElevationLoss;
+
+    private boolean mHasReferenceAltitude;
+    private double mReferenceAltitude;
+    private float mLastSpeed;
+
+    public TripStatistics() {
+        reset(0);
+    }
+
+    public TripStatistics(long startTime, int count, double maxSpeed, double avgSpeed,
+                          double maxAltitude, double minAltitude, long movingTime, long idleTime,
+                          double elevationGain, double elevationLoss) {
+        mStartTime = startTime;
+        mCount = count;
+        mMaxSpeed = maxSpeed;
+        mAvgSpeed = avgSpeed;
+        mMaxAltitude = maxAltitude;
+        mMinAltitude = minAltitude;
+        mMovingTime = movingTime;
+        mIdleTime = idleTime;
+        mElevationGain = elevationGain;
+        mElevationLoss = elevationLoss;
+    }
+
+    public void reset(long startTime) {
+        mStartTime = startTime;
+        mLastTime = 0;
+        mCount = 0;
+        mMaxSpeed = 0;
+        mAvgSpeed = 0;
+        mMaxAltitude = 0;
+        mMinAltitude = 0;
+        mMovingTime = 0;
+        mIdleTime = 0;
+        mElevationGain = 0;
+        mElevationLoss = 0;
+        mHasReferenceAltitude = false;
+        mReferenceAltitude = 0;
+        mLastSpeed = 0;
+    }
+
+    public void add(Location location) {
+        add(location.getTime(), location.getSpeed(), location.getAltitude());
+    }
+
+    public void add(LocationCursor cursor) {
+        add(cursor.getTime(), cursor.getSpeed(), cursor.getAltitude());
+    }
+
+    public void add(long time, float speed, double altitude) {
+        if (mLastTime > 0 && time > mLastTime) {
+            long elapsed = time - mLastTime;
+            if (mLastSpeed >= MOVING_SPEED || speed >= MOVING_SPEED) {
+                mMovingTime += elapsed;
+            } else {
+                mIdleTime += elapsed;
+            }
+        }
+        mLastTime = time;
+        mLastSpeed = speed;
+
+        if (speed <= 0) {
+            return;
+        }
+
+        mCount++;
+        if (mCount == 1) {
+            mMaxSpeed = speed;
+            mAvgSpeed = speed;
+            mMaxAltitude = altitude;
+            mMinAltitude = altitude;
+        } else {
+            if (speed > mMaxSpeed) mMaxSpeed = speed;
+            mAvgSpeed += (speed - mAvgSpeed) / mCount;
+            if (altitude > mMaxAltitude) mMaxAltitude = altitude;
+            if (altitude < mMinAltitude) mMinAltitude = altitude;
+        }
+
+        if (!mHasReferenceAltitude) {
+            mReferenceAltitude = altitude;
+            mHasReferenceAltitude = true;
+        } else {
+            double delta = altitude - mReferenceAltitude;
+            if (delta >= ELEVATION_THRESHOLD) {
+                mElevationGain += delta;
+                mReferenceAltitude = altitude;
+            } else if (delta <= -ELEVATION_THRESHOLD) {
+                mElevationLoss -= delta;
+                mReferenceAltitude = altitude;
+            }
+        }
+    }
+
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return max speed in m/s.
+     */
+    public double getMaxSpeed() {
+        return mMaxSpeed;
+    }
+
+    /**
+     * @return mean speed in m/s.
+     */
+    public double getAvgSpeed() {
+        return mAvgSpeed;
+    }
+
+    public double getMaxAltitude() {
+        return mMaxAltitude;
+    }
+
+    public double getMinAltitude() {
+        return mMinAltitude;
+    }
+
+    public long getMovingTime() {
+        return mMovingTime;
+    }
+
+    public long getIdleTime() {
+        return mIdleTime;
+    }
+
+    public double getElevationGain() {
+        return mElevationGain;
+    }
+
+    public double getElevationLoss() {
+        return mElevationLoss;
+    }
+}
@@ -3,7 +3,6 @@ package com.hmsoft.locationlogger.data.commands;
 import android.content.Context;
 
 import com.hmsoft.locationlogger.common.Logger;
-import com.hmsoft.locationlogger.common.TaskExecutor;
 import com.hmsoft.locationlogger.common.telegram.TelegramHelper;
 import com.hmsoft.locationlogger.common.Utils;
 
@@ -109,13 +108,15 @@ public abstract class Command {
         setContext(new CommandContext(context, source, botKey, fromId, messageId));
     }
 
+    /**
+     * Queues the reply, telegram replies go out in order after anything already queued for the chat.
+     */
     public static void sendReplyAsync(final CommandContext context, final String message) {
-        TaskExecutor.executeOnNewThread(new Runnable() {
-            @Override
-            public void run() {
-                sendReply(context, message);
-            }
-        });
+        if(context.source == SOURCE_SMS) {
+            Utils.sendSms(context.fromId, message, null);
+        } else {
+            TelegramHelper.sendTelegramMessageAsync(context.botKey, context.fromId, context.messageId, message);
+        }
     }
 
     public static void sendReply(CommandContext context, String message) {
@@ -200,5 +201,7 @@ public abstract class Command {
         registerCommandClass(GetTripCommand.COMMAND_NAME, GetTripCommand.class);
         registerCommandClass(PrefCommand.COMMAND_NAME, PrefCommand.class);
         registerCommandClass(WifiApCommand.COMMAND_NAME, WifiApCommand.class);
+        registerCommandClass(PruneCommand.COMMAND_NAME, PruneCommand.class);
+        registerCommandClass(MetricsCommand.COMMAND_NAME, MetricsCommand.class);
     }
 }
\ No newline at end of file
@@ -17,6 +17,7 @@ import com.hmsoft.locationlogger.common.Logger;
 import com.hmsoft.locationlogger.common.TaskExecutor;
 import com.hmsoft.locationlogger.common.Utils;
 import com.hmsoft.locationlogger.common.telegram.TelegramHelper;
+import com.hmsoft.locationlogger.data.Geocoder;
 import com.hmsoft.locationlogger.data.preferences.PreferenceProfile;
 import com.hmsoft.locationlogger.data.sqlite.Helper;
 
@@ -24,12 +25,20 @@ import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 class DocumentCommand extends InternalCommand {
 
     static final String COMMAND_NAME = "document";
     private static final boolean DEBUG = Logger.DEBUG;
     private static final String TAG = COMMAND_NAME;
+    private static final String DATABASE_BACKUP_NAME = "database.backup.db";
+    private static final String DATABASE_MERGE_NAME = "database.merge.db";
+    private static final String PLACES_NAME = "places.csv";
+
+    // Imports are local work that outlives the receiver, run one at a time off the main thread.
+    private static final ExecutorService sImportExecutor = Executors.newSingleThreadExecutor();
 
     @Override
     public String getName() {
@@ -178,7 +187,7 @@ class DocumentCommand extends InternalCommand {
                     message = "Download done, unknown status.";
                 } else if (DownloadManager.STATUS_SUCCESSFUL == status) {
                     message = "Download done!";
-                    processDownload(fileName);
+                    processDownload(fileName, botKey, channelId, messageId);
                 } else {
                     message = "Download failed. " + reason;
                 }
@@ -190,14 +199,19 @@ class DocumentCommand extends InternalCommand {
             }
         }
 
-        private void processDownload(final String fileName) {
-            if (fileName.endsWith("database.backup.db")) {
-                Helper.getInstance().importDB(fileName);
+        private void processDownload(final String fileName, String botKey, String channelId, String messageId) {
+            if (fileName.endsWith(DATABASE_BACKUP_NAME) || fileName.endsWith(DATABASE_BACKUP_NAME + ".gz")) {
+                importDatabase(fileName, false, botKey, channelId, messageId);
+            } else if (fileName.endsWith(DATABASE_MERGE_NAME) || fileName.endsWith(DATABASE_MERGE_NAME + ".gz")) {
+                importDatabase(fileName, true, botKey, channelId, messageId);
+            } else if (fileName.endsWith(PLACES_NAME)) {
+                importPlaces(fileName, botKey, channelId, messageId);
             } else if (fileName.contains("/LocationLogger-") && fileName.endsWith(".apk")) {
                 Intent intent = new Intent(Intent.ACTION_VIEW);
                 intent.setDataAndType(Uri.fromFile(new File(fileName)),"application/vnd.android.package-archive");
                  LocationLoggerApp.getContext().startActivity(intent);
             } else if(fileName.contains("/" + TelegramHelper.VOICE_PREFIX) && fileName.endsWith(".tmp")) {
+                // Blocks for the length of the clip, it must not delay an import.
                 TaskExecutor.executeOnNewThread(new Runnable() {
                     @Override
                     public void run() {
@@ -206,5 +220,41 @@ class DocumentCommand extends InternalCommand {
                 });
             }
         }
+
+        private void importDatabase(final String fileName, final boolean merge, final String botKey,
+                                    final String channelId, final String messageId) {
+            sImportExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    String message;
+                    try {
+                        long rows = Helper.getInstance().importDB(fileName, merge);
+                        message = merge ? String.format("Database merged, %d new rows.", rows) : "Database imported.";
+                    } catch (Exception e) {
+                        Logger.warning(TAG, "importDB", e);
+                        message = "Database import failed: " + e.getMessage();
+                    }
+                    TelegramHelper.sendTelegramMessageAsync(botKey, channelId, messageId, message);
+                }
+            });
+        }
+
+        private void importPlaces(final String fileName, final String botKey, final String channelId,
+                                  final String messageId) {
+            sImportExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    String message;
+                    try {
+                        int count = Geocoder.importPlaces(new File(fileName));
+                        message = String.format("%d offline places imported.", count);
+                    } catch (Exception e) {
+                        Logger.warning(TAG, "importPlaces", e);
+                        message = "Places import failed: " + e.getMessage();
+                    }
+                    TelegramHelper.sendTelegramMessageAsync(botKey, channelId, messageId, message);
+                }
+            });
+        }
     }
 }
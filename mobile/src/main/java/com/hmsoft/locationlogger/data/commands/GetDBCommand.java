@@ -5,16 +5,21 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 
 import com.hmsoft.locationlogger.R;
+import com.hmsoft.locationlogger.common.Logger;
 import com.hmsoft.locationlogger.common.telegram.TelegramHelper;
 import com.hmsoft.locationlogger.data.preferences.PreferenceProfile;
 import com.hmsoft.locationlogger.data.sqlite.Helper;
 
+import java.io.File;
+
 class GetDBCommand extends Command {
     static final String COMMAND_NAME = "GetDB";
+    private static final String TAG = COMMAND_NAME;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
 
     @Override
     public String getSummary() {
-        return "Get internal database.";
+        return "Get a compressed copy of the internal database. _GetDB [DAYS]_";
     }
 
     @Override
@@ -38,7 +43,24 @@ class GetDBCommand extends Command {
             return;
         }
 
-        TelegramHelper.sendTelegramDocument(context.botKey, context.fromId, context.messageId,
-                Helper.getInstance().getPathFile());
+        long days = getLong(getSubParams(params), 0, 0);
+        long start = days > 0 ? System.currentTimeMillis() - days * DAY_MILLIS : 0;
+
+        File snapshot;
+        try {
+            snapshot = Helper.getInstance().createSnapshot(start, Long.MAX_VALUE);
+        } catch (Exception e) {
+            Logger.warning(TAG, "createSnapshot", e);
+            sendTelegramReply("Database snapshot failed: " + e.getMessage());
+            return;
+        }
+
+        try {
+            TelegramHelper.sendTelegramDocument(context.botKey, context.fromId, context.messageId, snapshot);
+        } finally {
+            if (!snapshot.delete()) {
+                Logger.warning(TAG, "Could not delete " + snapshot);
+            }
+        }
     }
 }
@@ -2,11 +2,12 @@ package com.hmsoft.locationlogger.data.commands;
 
 import android.text.TextUtils;
 
+import com.hmsoft.locationlogger.common.Logger;
+import com.hmsoft.locationlogger.common.TrackCodec;
 import com.hmsoft.locationlogger.common.telegram.TelegramHelper;
 import com.hmsoft.locationlogger.data.sqlite.TripTable;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -15,14 +16,17 @@ import java.util.Date;
 import java.util.Locale;
 
 public class GetTripCommand extends Command {
+    private static final String TAG = "GetTripCommand";
     static final String COMMAND_NAME = "GetTrip";
+    private static final String FORMAT_GPX = "gpx";
+    private static final String FORMAT_TRACK = "trk";
     private String[] supParams;
     private static final SimpleDateFormat TripDateFormat = new SimpleDateFormat("yyyyMMdd", Locale.US);
     private static final SimpleDateFormat TripDateTimeFormat = new SimpleDateFormat("yyyyMMddHHmm", Locale.US);
 
     @Override
     public String getSummary() {
-        return "Get a list of the latest trips. _getTrip [tripid]_ or _getTrip gpx startDate endDate_";
+        return "Get a list of the latest trips. _getTrip [tripid] [gpx|trk]_ or _getTrip gpx|trk startDate endDate_";
     }
 
     @Override
@@ -40,10 +44,10 @@ public class GetTripCommand extends Command {
                 handleTripList(true);
             } else if(supParams.length == 1) {
                 handleSingle(id);
-            } else if(supParams.length == 2 && supParams[1].equals("gpx")) {
-                handleGpx(id);
-            } else if(supParams.length == 3 && supParams[0].equals("gpx")) {
-                 handleGpx(supParams[1], supParams[2]);
+            } else if(supParams.length == 2 && isExportFormat(supParams[1])) {
+                handleExport(id, supParams[1]);
+            } else if(supParams.length == 3 && isExportFormat(supParams[0])) {
+                 handleExport(supParams[1], supParams[2], supParams[0]);
             }
         } else {
             handleTripList(false);
@@ -65,13 +69,17 @@ public class GetTripCommand extends Command {
         }
     }
 
-    private void handleGpx(String startDateStr, String endDateStr) {
+    private static boolean isExportFormat(String format) {
+        return FORMAT_GPX.equals(format) || FORMAT_TRACK.equals(format);
+    }
+
+    private void handleExport(String startDateStr, String endDateStr, String format) {
         try {
             Date startDate = parseDateString(startDateStr, 0);
             Date endDate = parseDateString(endDateStr, 24);
 
             TripTable.TripDetail trip = TripTable.TripDetail.createTrip(startDate.getTime(), endDate.getTime(), 0f);
-            handleGpx(trip, startDateStr + "-" + endDateStr);
+            handleExport(trip, startDateStr + "-" + endDateStr, format);
         } catch (ParseException e) {
             sendReply(context, "Wrong date format.");
             e.printStackTrace();
@@ -102,7 +110,7 @@ public class GetTripCommand extends Command {
         sendReply(context, reply);
     }
 
-    private void handleGpx(String id) {
+    private void handleExport(String id, String format) {
 
         TripTable.TripDetail trip = null;
         if("last".equals(id)) {
@@ -112,35 +120,39 @@ public class GetTripCommand extends Command {
             }
         }
 
-        handleGpx(trip, id);
+        handleExport(trip, id, format);
     }
 
-    private void handleGpx(TripTable.TripDetail trip, String id) {
-
+    private void handleExport(TripTable.TripDetail trip, String id, String format) {
 
-        final File gpxFile = new File(context.androidContext.getCacheDir(), "Trip-" + id + ".gpx");
-        if (!gpxFile.exists()) {
+        boolean track = FORMAT_TRACK.equals(format);
+        final File file = new File(context.androidContext.getCacheDir(), "Trip-" + id +
+                (track ? TrackCodec.FILE_EXTENSION : ".gpx"));
+        if (!file.exists()) {
             if(trip == null) {
                 trip = TripTable.getTripbyId(id);
                 if(trip == null) {
                     sendReply(context, "Trip not found.");
+                    return;
                 }
             }
             try {
-                FileWriter writer = new FileWriter(gpxFile, false);
-                writer.append(trip.toGpxString());
-                writer.flush();
-                writer.close();
-            } catch (IOException ignored) {
-
+                if (track) {
+                    trip.writeTrack(file, true);
+                } else {
+                    trip.writeGpx(file);
+                }
+            } catch (IOException e) {
+                Logger.warning(TAG, "handleExport", e);
+                file.delete();
             }
 
-            if (!gpxFile.exists()) {
-                sendReply(context, "Failed to create GPX for trip.");
+            if (!file.exists()) {
+                sendReply(context, "Failed to create " + format + " file for trip.");
                 return;
             }
         }
 
-        TelegramHelper.sendTelegramDocument(context.botKey, context.fromId, context.messageId, gpxFile);
+        TelegramHelper.sendTelegramDocument(context.botKey, context.fromId, context.messageId, file);
     }
 }
@@ -1,6 +1,8 @@
 package com.hmsoft.locationlogger.data.commands;
 
 import com.hmsoft.locationlogger.common.Utils;
+import com.hmsoft.locationlogger.data.Geocoder;
+import com.hmsoft.locationlogger.data.locatrack.TelegramOutbox;
 import com.hmsoft.locationlogger.service.CoreService;
 
 class InfoCommand extends Command {
@@ -19,7 +21,8 @@ class InfoCommand extends Command {
 
     @Override
     public void execute(String[] params) {
-        String info = Utils.getGeneralInfo(context.androidContext);
+        String info = Utils.getGeneralInfo(context.androidContext) + CoreService.getStoreStatus() + Geocoder.getCacheStatus() +
+                "Outbox pending: " + TelegramOutbox.getInstance(context.androidContext).getPendingCount() + "\n";
 
         if(context.source == Command.SOURCE_SMS) {
             Utils.sendSms(context.fromId, info, null);
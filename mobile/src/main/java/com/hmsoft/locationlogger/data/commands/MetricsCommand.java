@@ -0,0 +1,37 @@
+package com.hmsoft.locationlogger.data.commands;
+
+import com.hmsoft.locationlogger.common.Logger;
+import com.hmsoft.locationlogger.common.Metrics;
+
+class MetricsCommand extends Command {
+
+    static final String COMMAND_NAME = "Metrics";
+
+    private static final String METRICS_FILE = "metrics-%s.log";
+
+    @Override
+    public String getSummary() {
+        return "Latency percentiles and counters of the hot paths. Metrics [save|reset]";
+    }
+
+    @Override
+    public String getName() {
+        return COMMAND_NAME;
+    }
+
+    @Override
+    public void execute(String[] params) {
+        String[] subParams = getSubParams(params);
+        String metrics = Metrics.dump();
+
+        if(contains(subParams, "save")) {
+            // Kept with the logs, the Logs command sends it.
+            Logger.log2file(COMMAND_NAME, "\n" + metrics, METRICS_FILE, null);
+        }
+        if(contains(subParams, "reset")) {
+            Metrics.reset();
+        }
+
+        sendTelegramReply(metrics.isEmpty() ? "No metrics." : metrics);
+    }
+}
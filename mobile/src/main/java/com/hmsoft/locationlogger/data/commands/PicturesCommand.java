@@ -12,7 +12,6 @@ import android.provider.MediaStore;
 import com.hmsoft.locationlogger.LocationLoggerApp;
 import com.hmsoft.locationlogger.R;
 import com.hmsoft.locationlogger.common.Logger;
-import com.hmsoft.locationlogger.common.TaskExecutor;
 import com.hmsoft.locationlogger.common.telegram.TelegramHelper;
 import com.hmsoft.locationlogger.data.preferences.PreferenceProfile;
 
@@ -52,20 +51,15 @@ class PicturesCommand extends Command {
             }
 
             if(sent) {
-                TaskExecutor.executeOnNewThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        Context context = LocationLoggerApp.getContext();
-                        CommandContext cmdContext = new CommandContext(
-                                context,
-                                SOURCE_TELEGRAM,
-                                PreferenceProfile.get(context).getString(R.string.pref_telegram_botkey_key, context.getString(R.string.pref_telegram_botkey_default)),
-                                PreferenceProfile.get(context).getString(R.string.pref_telegram_chatid_key, mContext.getString(R.string.pref_telegram_chatid_default)),
-                                null
-                        );
-                        sendPictures(cmdContext, mUri);
-                    }
-                });
+                Context context = LocationLoggerApp.getContext();
+                CommandContext cmdContext = new CommandContext(
+                        context,
+                        SOURCE_TELEGRAM,
+                        PreferenceProfile.get(context).getString(R.string.pref_telegram_botkey_key, context.getString(R.string.pref_telegram_botkey_default)),
+                        PreferenceProfile.get(context).getString(R.string.pref_telegram_chatid_key, mContext.getString(R.string.pref_telegram_chatid_default)),
+                        null
+                );
+                sendPictures(cmdContext, mUri);
             }
         }
 
@@ -124,6 +118,9 @@ class PicturesCommand extends Command {
         return COMMAND_NAME;
     }
 
+    /**
+     * Queues the pictures added since the last call, the uploads run on the Telegram client.
+     */
     public static void sendPictures(CommandContext context, Uri contentUri) {
         final String[] PROJECTION_COLUMNS = new String[] {
                 MediaStore.Images.ImageColumns.DATA,
@@ -156,13 +153,13 @@ class PicturesCommand extends Command {
         int c = 0;
         while(result.moveToNext()) {
             String fileName = result.getString(0);
-            TelegramHelper.sendTelegramDocument(context.botKey, context.fromId, context.messageId, new File(fileName));
+            TelegramHelper.sendTelegramDocumentAsync(context.botKey, context.fromId, context.messageId, new File(fileName));
             lastPictureDate = result.getLong(1);
             c++;
         }
 
         if(c == 0) {
-            sendReply(context,"No pictures found.");
+            sendReplyAsync(context, "No pictures found.");
         }
 
         if (lastPictureDate > 1) {
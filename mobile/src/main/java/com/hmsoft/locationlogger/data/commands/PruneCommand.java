@@ -0,0 +1,48 @@
+package com.hmsoft.locationlogger.data.commands;
+
+import com.hmsoft.locationlogger.data.sqlite.Helper;
+import com.hmsoft.locationlogger.data.sqlite.LocationTable;
+
+import java.io.File;
+import java.util.Calendar;
+
+class PruneCommand extends Command {
+
+    static final String COMMAND_NAME = "Prune";
+
+    private static final String ARCHIVE_DATABASE_NAME = "locatrack.archive.db";
+
+    @Override
+    public String getSummary() {
+        return "Remove locations older than the given months. Prune <months> [archive]";
+    }
+
+    @Override
+    public String getName() {
+        return COMMAND_NAME;
+    }
+
+    @Override
+    public void execute(String[] params) {
+        String[] subParams = getSubParams(params);
+        long months = getLong(subParams, 0, 0);
+        if(months < 1) {
+            sendTelegramReply("Months to keep required.");
+            return;
+        }
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.MONTH, -(int)months);
+        long timestamp = calendar.getTimeInMillis();
+
+        int count;
+        if(contains(subParams, "archive")) {
+            File archive = new File(Helper.getInstance().getPathFile().getParentFile(), ARCHIVE_DATABASE_NAME);
+            count = LocationTable.archiveBefore(timestamp, archive);
+        } else {
+            count = LocationTable.dropBefore(timestamp);
+        }
+
+        sendTelegramReply(count + " months removed.");
+    }
+}
@@ -40,6 +40,10 @@ public class LocatrackDb extends LocationStorer {
         return LocationTable.getLast();
     }
 
+    public static void flush() {
+        LocationTable.flushPendingWrites();
+    }
+
     @Override
     public boolean storeLocation(LocatrackLocation location) {
         mTotalItems++;
@@ -68,9 +72,30 @@ public class LocatrackDb extends LocationStorer {
         mMinimunDistance = preferences.getInt(R.string.pref_minimun_distance_key, String.valueOf(mMinimunDistance));
         LocationTable.prepareDmlStatements();
 
+        int groupCommitRows = preferences.getInt(R.string.pref_group_commit_rows_key,
+                String.valueOf(LocationTable.DEFAULT_GROUP_COMMIT_ROWS));
+        if (groupCommitRows > 1) {
+            int groupCommitAge = preferences.getInt(R.string.pref_group_commit_age_key,
+                    String.valueOf(LocationTable.DEFAULT_GROUP_COMMIT_AGE)); // seconds
+            LocationTable.enableGroupCommit(groupCommitRows, groupCommitAge * 1000L);
+        } else {
+            LocationTable.disableGroupCommit();
+        }
+
         return this;
     }
 
+    // Buffered rows do not wait for the next fix to reach the database.
+    @Override
+    public long getFlushDelay() {
+        return LocationTable.getGroupCommitMaxAge();
+    }
+
+    @Override
+    public void flush() {
+        LocationTable.flushPendingWrites();
+    }
+
     @Override
     public void open() throws IOException {
         super.open();
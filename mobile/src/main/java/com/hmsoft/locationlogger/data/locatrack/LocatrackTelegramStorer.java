@@ -7,10 +7,8 @@ import android.text.TextUtils;
 
 import com.hmsoft.locationlogger.R;
 import com.hmsoft.locationlogger.common.Logger;
-import com.hmsoft.locationlogger.common.TaskExecutor;
-import com.hmsoft.locationlogger.common.Utils;
-import com.hmsoft.locationlogger.common.telegram.TelegramHelper;
 import com.hmsoft.locationlogger.data.Geocoder;
+import com.hmsoft.locationlogger.data.GeocodingService;
 import com.hmsoft.locationlogger.data.LocationStorer;
 import com.hmsoft.locationlogger.data.LocatrackLocation;
 import com.hmsoft.locationlogger.data.preferences.PreferenceProfile;
@@ -25,6 +23,7 @@ public class LocatrackTelegramStorer extends LocationStorer {
     private static final String TAG = "LocatrackTelegramStorer";
     private static final boolean DEBUG = Logger.DEBUG;
     private static final long EVENT_TIME_WINDOW = 60 * 1000 * 3;
+    private static final long ADDRESS_TIMEOUT = 10 * 1000;
 
     private final Context mContext;
 
@@ -62,43 +61,17 @@ public class LocatrackTelegramStorer extends LocationStorer {
         }
 
         String netTypeName = "-";
-
-        int waitCount = 10;
-        while(waitCount-- > 0) {
-            NetworkInfo networkInfo = mConnectivityManager.getActiveNetworkInfo();
-            if((networkInfo != null && networkInfo.isConnected())) {
-                netTypeName = networkInfo.getTypeName();
-                if(DEBUG) Logger.debug(TAG, "Connected to network:" + networkInfo.getTypeName());
-                break;
-            }
-            if(DEBUG) Logger.debug(TAG, "Not connected waiting for connection... " + waitCount);
-            TaskExecutor.sleep(5);
+        NetworkInfo networkInfo = mConnectivityManager.getActiveNetworkInfo();
+        boolean connected = networkInfo != null && networkInfo.isConnected();
+        if (connected) {
+            netTypeName = networkInfo.getTypeName();
         }
 
-        String message = getEventMessage(location, netTypeName);
-        long messageId = TelegramHelper.sendTelegramMessage(mBotKey, mChatId, message);
-
-        boolean success = messageId > 0;
-        if(!success) {
-            sendBackupMessage(message);
-        }
+        // Queued and sent by the outbox worker, so an event is recorded without waiting for a network.
+        String message = getEventMessage(location, netTypeName, connected);
+        TelegramOutbox.getInstance(mContext).append(mChatId, message);
 
-        return success;
-    }
-
-    private void sendBackupMessage(String message) {
-        if(Logger.DEBUG) {
-            Logger.debug(TAG, "Sending sms event notification.");
-        }
-
-        String number = PreferenceProfile.get(mContext).getString(R.string.pref_notification_number_key,
-                mContext.getString(R.string.pref_notification_number_default));
-        if(!TextUtils.isEmpty(number)) {
-            message = message.replace("*", "").replace("_", "").replace("%", "");
-            Utils.sendSms(number, message, null);
-        } else if(Logger.DEBUG) {
-            Logger.debug(TAG, "No notification number.");
-        }
+        return true;
     }
 
     private boolean eventTooFast(LocatrackLocation location) {
@@ -126,7 +99,7 @@ public class LocatrackTelegramStorer extends LocationStorer {
         return false;
     }
 
-    private String getEventMessage(LocatrackLocation location, String netWorkType) {
+    private String getEventMessage(LocatrackLocation location, String netWorkType, boolean connected) {
         StringBuilder message = new StringBuilder(128);
 
         String event = TextUtils.isEmpty(location.event) ? "INFO" : location.event.toUpperCase();
@@ -143,7 +116,7 @@ public class LocatrackTelegramStorer extends LocationStorer {
         }
 
         message
-            .append("*Location:*\t[").append(getAddressLabel(location)).append("](https://www.google.com/maps/search/?api=1&query=").append(location.getLatitude()).append(",").append(location.getLongitude()).append(")\n")
+            .append("*Location:*\t[").append(getAddressLabel(location, connected)).append("](https://www.google.com/maps/search/?api=1&query=").append(location.getLatitude()).append(",").append(location.getLongitude()).append(")\n")
             .append("*Accuracy:*\t").append(Math.round(location.getAccuracy() * 100.0) / 100.0).append("m ").append(location.getProvider().charAt(0)).append(netWorkType.charAt(0)).append("\n")
             .append("*Time:*\t").append(mDateFormat.format(new Date(location.getTime()))).append("\n")
             .append("*Battery:*\t").append(batteryLevel).append("%");
@@ -151,13 +124,12 @@ public class LocatrackTelegramStorer extends LocationStorer {
         return message.toString();
     }
 
-    private String getAddressLabel(LocatrackLocation location) {
-        String address = Geocoder.getFromCache(location);
+    private String getAddressLabel(LocatrackLocation location, boolean connected) {
+        String address = connected ?
+                GeocodingService.getInstance(mContext).resolve(location, ADDRESS_TIMEOUT) :
+                Geocoder.getFromCache(location);
         if(TextUtils.isEmpty(address)) {
-            address = Geocoder.getFromRemote(mContext, location);
-            if (!TextUtils.isEmpty(address)) {
-                Geocoder.addToCache(location, address);
-            }
+            address = Geocoder.getOffline(location);
         }
         if(TextUtils.isEmpty(address)) {
             address = location.getLatitude() + "," + location.getLongitude();
@@ -166,6 +138,11 @@ public class LocatrackTelegramStorer extends LocationStorer {
         return address;
     }
 
+    @Override
+    public boolean canSkipFixes() {
+        return true;
+    }
+
     public boolean isConfigured() {
         return !TextUtils.isEmpty(mChatId) && !TextUtils.isEmpty(mChatId);
     }
@@ -10,6 +10,7 @@ import com.hmsoft.locationlogger.common.Logger;
 import com.hmsoft.locationlogger.common.Utils;
 import com.hmsoft.locationlogger.data.LocationStorer;
 import com.hmsoft.locationlogger.data.LocatrackLocation;
+import com.hmsoft.locationlogger.data.TripStatistics;
 import com.hmsoft.locationlogger.data.preferences.PreferenceProfile;
 import com.hmsoft.locationlogger.data.sqlite.TripTable;
 
@@ -25,6 +26,7 @@ public class LocatrackTripStorer extends LocationStorer {
     private Location mLastTripLocation = null;
     private Location mStopedLocation = null;
     private float mDistance;
+    private final TripStatistics mStatistics = new TripStatistics();
 
     private boolean mIsMoving = false;
     private boolean mIsStoped = false;
@@ -54,6 +56,7 @@ public class LocatrackTripStorer extends LocationStorer {
         if (LocatrackLocation.EVENT_START.equals(location.event)) {
             if (mLastTripLocation == null) {
                 mDistance = 0;
+                mStatistics.reset(location.getTime());
                 mLastTripLocation = location;
                 if(Logger.DEBUG) {
                     Logger.debug(TAG, "Starting new trip.");
@@ -61,10 +64,12 @@ public class LocatrackTripStorer extends LocationStorer {
             } else {
                 location.event = LocatrackLocation.EVENT_RESTART;
             }
+            mStatistics.add(location);
             configure();
         } else if (LocatrackLocation.EVENT_STOP.equals(location.event)) {
             if(mDistance > 500) {
-                TripTable.TripDetail trip = TripTable.insertTrip(location.getTime(), mDistance, true);
+                mStatistics.add(location);
+                TripTable.TripDetail trip = TripTable.insertTrip(location, mDistance, mStatistics);
                 if (Logger.DEBUG) {
                     Logger.debug(TAG, "Ending trip. Distance:" + (mDistance * 3.6));
                 }
@@ -85,6 +90,7 @@ public class LocatrackTripStorer extends LocationStorer {
                     float distanceTo = mLastTripLocation.distanceTo(location);
                     mDistance += distanceTo;
                 }
+                mStatistics.add(location);
                 mLastTripLocation = location;
             }
 
@@ -0,0 +1,287 @@
+package com.hmsoft.locationlogger.data.locatrack;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkInfo;
+import android.text.TextUtils;
+
+import com.hmsoft.locationlogger.R;
+import com.hmsoft.locationlogger.common.Logger;
+import com.hmsoft.locationlogger.common.Utils;
+import com.hmsoft.locationlogger.common.telegram.TelegramHelper;
+import com.hmsoft.locationlogger.data.preferences.PreferenceProfile;
+import com.hmsoft.locationlogger.data.sqlite.OutboxTable;
+
+import java.util.ArrayList;
+
+/**
+ * Sends the messages queued in the outbox table. Appending only writes the row, a single worker
+ * thread sends when there is a network, several pending messages for the same chat go out as one
+ * telegram message. Failed sends are retried with exponential backoff, a message that can not be
+ * sent is also sent by SMS to the notification number once.
+ */
+public class TelegramOutbox {
+
+    private static final String TAG = "TelegramOutbox";
+
+    private static final int BATCH_SIZE = 10;
+    private static final int MAX_MESSAGE_LENGTH = 4000;
+    private static final String MESSAGE_SEPARATOR = "\n\n";
+    private static final long MIN_BACKOFF = 15 * 1000;
+    private static final long MAX_BACKOFF = 30 * 60 * 1000;
+    private static final int SMS_AFTER_ATTEMPTS = 3;
+    private static final long SMS_OFFLINE_DELAY = 2 * 60 * 1000;
+
+    private static TelegramOutbox sInstance;
+
+    private final Context mContext;
+    private final ConnectivityManager mConnectivityManager;
+    private final Object mLock = new Object();
+    private Thread mThread;
+    private boolean mStopped = true;
+    private boolean mWake;
+    private boolean mNetworkChanged;
+
+    private final ConnectivityManager.NetworkCallback mNetworkCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(Network network) {
+            if (Logger.DEBUG) Logger.debug(TAG, "Network available");
+            synchronized (mLock) {
+                mNetworkChanged = true;
+            }
+            wake();
+        }
+    };
+
+    private TelegramOutbox(Context context) {
+        mContext = context.getApplicationContext();
+        mConnectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    public static synchronized TelegramOutbox getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TelegramOutbox(context);
+        }
+        return sInstance;
+    }
+
+    public void start() {
+        synchronized (mLock) {
+            if (!mStopped) {
+                return;
+            }
+            mStopped = false;
+            mWake = true;
+            // A worker still finishing its drain after stop() sees mStopped cleared and keeps going.
+            if (mThread == null) {
+                mThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        drainLoop();
+                    }
+                }, TAG);
+                mThread.start();
+            } else {
+                mLock.notifyAll();
+            }
+        }
+        mConnectivityManager.registerDefaultNetworkCallback(mNetworkCallback);
+        if (Logger.DEBUG) Logger.debug(TAG, "Started");
+    }
+
+    public void stop() {
+        synchronized (mLock) {
+            if (mStopped) {
+                return;
+            }
+            mStopped = true;
+            mLock.notifyAll();
+        }
+        try {
+            mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+        } catch (IllegalArgumentException e) {
+            Logger.warning(TAG, "stop", e);
+        }
+        if (Logger.DEBUG) Logger.debug(TAG, "Stopped");
+    }
+
+    /**
+     * Stores the message and wakes the worker, never waits for the network.
+     */
+    public void append(String chatId, String message) {
+        OutboxTable.append(chatId, message, System.currentTimeMillis());
+        wake();
+    }
+
+    public void wake() {
+        synchronized (mLock) {
+            mWake = true;
+            mLock.notifyAll();
+        }
+    }
+
+    public long getPendingCount() {
+        return OutboxTable.getCount();
+    }
+
+    private void drainLoop() {
+        while (true) {
+            boolean force;
+            synchronized (mLock) {
+                if (mStopped) {
+                    mThread = null;
+                    return;
+                }
+                force = mNetworkChanged;
+                mNetworkChanged = false;
+                mWake = false;
+            }
+
+            long wait;
+            try {
+                wait = drain(force);
+            } catch (RuntimeException e) {
+                Logger.warning(TAG, "drain", e);
+                wait = MIN_BACKOFF;
+            }
+
+            synchronized (mLock) {
+                if (!mWake && !mStopped) {
+                    try {
+                        mLock.wait(wait);
+                    } catch (InterruptedException e) {
+                        // Drain again
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends every message that is due, all of them when the network just came back.
+     *
+     * @return milliseconds until the next retry, 0 to wait for a wake up.
+     */
+    private long drain(boolean force) {
+        String botKey = PreferenceProfile.get(mContext).getString(R.string.pref_telegram_botkey_key,
+                mContext.getString(R.string.pref_telegram_botkey_default));
+
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (!isConnected()) {
+                return sendOfflineSms(now);
+            }
+
+            ArrayList<OutboxTable.Message> due = OutboxTable.getDue(force ? Long.MAX_VALUE : now, BATCH_SIZE);
+            if (due.isEmpty()) {
+                return nextWait(now);
+            }
+
+            int start = 0;
+            while (start < due.size()) {
+                int end = coalesceEnd(due, start);
+                if (!send(botKey, due, start, end, now)) {
+                    return nextWait(now);
+                }
+                start = end;
+            }
+        }
+    }
+
+    /**
+     * @return the end (exclusive) of the run of messages starting at start that fit in one
+     * telegram message for the same chat.
+     */
+    private static int coalesceEnd(ArrayList<OutboxTable.Message> messages, int start) {
+        String chatId = messages.get(start).chatId;
+        int length = messages.get(start).message.length();
+        int end = start + 1;
+        while (end < messages.size()) {
+            OutboxTable.Message next = messages.get(end);
+            length += MESSAGE_SEPARATOR.length() + next.message.length();
+            if (!TextUtils.equals(chatId, next.chatId) || length > MAX_MESSAGE_LENGTH) {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    private boolean send(String botKey, ArrayList<OutboxTable.Message> messages, int start, int end, long now) {
+        StringBuilder text = new StringBuilder(MAX_MESSAGE_LENGTH);
+        long[] ids = new long[end - start];
+        for (int i = start; i < end; i++) {
+            if (i > start) text.append(MESSAGE_SEPARATOR);
+            text.append(messages.get(i).message);
+            ids[i - start] = messages.get(i).id;
+        }
+
+        if (Logger.DEBUG) Logger.debug(TAG, "Sending %d queued messages", ids.length);
+
+        if (TelegramHelper.sendTelegramMessage(botKey, messages.get(start).chatId, text.toString()) > 0) {
+            OutboxTable.delete(ids);
+            return true;
+        }
+
+        int attempts = messages.get(start).attempts + 1;
+        long backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(attempts - 1, 16));
+        OutboxTable.setFailed(ids, now + backoff);
+        if (Logger.DEBUG) Logger.debug(TAG, "Send failed, retry in %ds", backoff / 1000);
+
+        for (int i = start; i < end; i++) {
+            OutboxTable.Message message = messages.get(i);
+            if (!message.smsSent && message.attempts + 1 >= SMS_AFTER_ATTEMPTS) {
+                sendSms(message);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Without a network, messages waiting longer than SMS_OFFLINE_DELAY are sent by SMS.
+     */
+    private long sendOfflineSms(long now) {
+        while (true) {
+            ArrayList<OutboxTable.Message> pending = OutboxTable.getSmsPending(BATCH_SIZE);
+            for (OutboxTable.Message message : pending) {
+                long age = now - message.timestamp;
+                if (age < SMS_OFFLINE_DELAY) {
+                    // Oldest first, the rest are newer.
+                    return SMS_OFFLINE_DELAY - age;
+                }
+                sendSms(message);
+            }
+            if (pending.size() < BATCH_SIZE) {
+                // The network callback wakes the worker for the rest.
+                return 0;
+            }
+        }
+    }
+
+    private void sendSms(OutboxTable.Message message) {
+        String number = PreferenceProfile.get(mContext).getString(R.string.pref_notification_number_key,
+                mContext.getString(R.string.pref_notification_number_default));
+        if (!TextUtils.isEmpty(number)) {
+            if (Logger.DEBUG) Logger.debug(TAG, "Sending sms event notification.");
+            String text = message.message.replace("*", "").replace("_", "").replace("%", "");
+            Utils.sendSms(number, text, null);
+        } else if (Logger.DEBUG) {
+            Logger.debug(TAG, "No notification number.");
+        }
+        OutboxTable.setSmsSent(message.id);
+    }
+
+    private static long nextWait(long now) {
+        long next = OutboxTable.getNextAttempt();
+        if (next == 0) {
+            return 0;
+        }
+        return Math.max(1000, next - now);
+    }
+
+    private boolean isConnected() {
+        NetworkInfo networkInfo = mConnectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+}
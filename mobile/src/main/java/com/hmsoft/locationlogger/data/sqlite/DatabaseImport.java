@@ -0,0 +1,255 @@
+package com.hmsoft.locationlogger.data.sqlite;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import com.hmsoft.locationlogger.common.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Stages a database backup, plain or gzip compressed, next to the live database and checks it
+ * before anything is touched: SQLite header, integrity check, schema version and location table.
+ * A staged file is either renamed over the closed live database or merged into it with INSERT OR
+ * IGNORE, so existing rows win.
+ */
+class DatabaseImport {
+
+    private static final String TAG = "DatabaseImport";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String STAGED_FILE_NAME = "import.db";
+    private static final byte[] SQLITE_HEADER = "SQLite format 3\0".getBytes(Charset.forName("US-ASCII"));
+    private static final String[] SIDECAR_SUFFIXES = {"-journal", "-wal", "-shm"};
+    // Besides the location shards, only tables whose rows mean the same in any database.
+    private static final String[] MERGED_TABLES = {GeocoderTable.TABLE_NAME, FuelLogTable.TABLE_NAME};
+
+    private DatabaseImport() {
+    }
+
+    /**
+     * Copies the backup next to the database file and validates it.
+     *
+     * @return the staged file, the caller deletes it with {@link #delete(File)} if it is not used.
+     * @throws IOException if the backup can not be read or is not a valid database.
+     */
+    static File stage(File backupFile, File databaseFile) throws IOException {
+        File staged = new File(databaseFile.getParentFile(), STAGED_FILE_NAME);
+        delete(staged);
+        boolean valid = false;
+        try {
+            copy(backupFile, staged);
+            validate(staged);
+            valid = true;
+            return staged;
+        } finally {
+            if (!valid) {
+                delete(staged);
+            }
+        }
+    }
+
+    /**
+     * Renames the staged file over the database file, the database must be closed.
+     */
+    static void replace(File staged, File databaseFile) throws IOException {
+        // A WAL left behind would be applied to the new file.
+        deleteSidecars(databaseFile);
+        if (!staged.renameTo(databaseFile)) {
+            throw new IOException("Could not rename " + staged + " to " + databaseFile);
+        }
+    }
+
+    /**
+     * Inserts the staged location rows, geocoder cache and fuel logs that are not in the live
+     * database yet. The staged file is read from its own connection, attaching it to the live one
+     * would turn off its WAL.
+     *
+     * @return the number of rows inserted.
+     * @throws IOException if the staged schema version is not the current one, rows are copied
+     * by column position.
+     */
+    static long merge(SQLiteDatabase db, File staged) throws IOException {
+        SQLiteDatabase source;
+        try {
+            source = SQLiteDatabase.openDatabase(staged.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        } catch (SQLiteException e) {
+            throw new IOException("Could not open database: " + e.getMessage());
+        }
+        long inserted = 0;
+        try {
+            int version = source.getVersion();
+            if (version != Helper.DATABASE_VERSION) {
+                throw new IOException("Can not merge database version " + version + ", import it instead");
+            }
+            List<String> tables = getTables(source);
+            boolean merged = false;
+            db.beginTransactionNonExclusive();
+            try {
+                for (String table : tables) {
+                    if (table.startsWith(LocationPartitions.SHARD_PREFIX)) {
+                        // Same name as the staged shard, its triggers keep the event index up to date.
+                        LocationPartitions.ensureShard(db, LocationPartitions.shardStart(table));
+                    } else if (!Arrays.asList(MERGED_TABLES).contains(table)) {
+                        continue;
+                    }
+                    inserted += DatabaseSnapshot.copyTable(source, db, table, 0, Long.MAX_VALUE);
+                }
+                db.setTransactionSuccessful();
+                merged = true;
+            } finally {
+                db.endTransaction();
+                if (!merged) {
+                    // The shards created by ensureShard were rolled back.
+                    LocationPartitions.reset();
+                }
+            }
+        } finally {
+            source.close();
+        }
+
+        if (Logger.DEBUG) Logger.debug(TAG, "Merged %d rows", inserted);
+
+        return inserted;
+    }
+
+    static void delete(File staged) {
+        if (staged.exists() && !staged.delete()) {
+            Logger.warning(TAG, "Could not delete " + staged);
+        }
+        deleteSidecars(staged);
+    }
+
+    private static void copy(File backupFile, File staged) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(backupFile), BUFFER_SIZE);
+        try {
+            in.mark(2);
+            boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+            in.reset();
+
+            FileOutputStream out = new FileOutputStream(staged);
+            try {
+                if (gzip) {
+                    InputStream gzipIn = new GZIPInputStream(in, BUFFER_SIZE);
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = gzipIn.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                } else {
+                    transfer(backupFile, out);
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void transfer(File file, FileOutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel source = in.getChannel();
+            FileChannel target = out.getChannel();
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = source.transferTo(position, size - position, target);
+                if (transferred <= 0) {
+                    throw new IOException("File changed while copying: " + file);
+                }
+                position += transferred;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void validate(File staged) throws IOException {
+        byte[] header = new byte[SQLITE_HEADER.length];
+        InputStream in = new FileInputStream(staged);
+        try {
+            if (in.read(header) != header.length || !Arrays.equals(header, SQLITE_HEADER)) {
+                throw new IOException("Not a SQLite database");
+            }
+        } finally {
+            in.close();
+        }
+
+        SQLiteDatabase db;
+        try {
+            db = SQLiteDatabase.openDatabase(staged.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        } catch (SQLiteException e) {
+            throw new IOException("Could not open database: " + e.getMessage());
+        }
+        try {
+            int version = db.getVersion();
+            if (version < 1 || version > Helper.DATABASE_VERSION) {
+                throw new IOException("Unsupported database version " + version);
+            }
+            if (!hasLocationTable(db)) {
+                throw new IOException("No location table");
+            }
+            Cursor cursor = db.rawQuery("PRAGMA integrity_check", null);
+            try {
+                String result = cursor.moveToFirst() ? cursor.getString(0) : null;
+                if (!"ok".equals(result)) {
+                    throw new IOException("Integrity check failed: " + result);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (Logger.DEBUG) Logger.debug(TAG, "Valid database, version %d", version);
+        } catch (SQLiteException e) {
+            throw new IOException("Invalid database: " + e.getMessage());
+        } finally {
+            db.close();
+        }
+    }
+
+    private static boolean hasLocationTable(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT 1 FROM sqlite_master WHERE name = ?",
+                new String[]{LocationTable.TABLE_NAME});
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static List<String> getTables(SQLiteDatabase db) {
+        List<String> tables = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table'", null);
+        try {
+            while (cursor.moveToNext()) {
+                tables.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return tables;
+    }
+
+    private static void deleteSidecars(File databaseFile) {
+        for (String suffix : SIDECAR_SUFFIXES) {
+            File file = new File(databaseFile.getPath() + suffix);
+            if (file.exists() && !file.delete()) {
+                Logger.warning(TAG, "Could not delete " + file);
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.hmsoft.locationlogger.data.sqlite;
 import android.database.Cursor;
 
 import com.hmsoft.locationlogger.common.Logger;
+import com.hmsoft.locationlogger.data.LocationCursor;
 import com.hmsoft.locationlogger.data.LocationSet;
 import com.hmsoft.locationlogger.data.LocatrackLocation;
 
@@ -13,18 +14,54 @@ public class DatabaseLocationSet implements LocationSet, Iterator<LocatrackLocat
     private final String TAG = "DatabaseLocationSet";
 
     private final Cursor cursor;
+    private final LocationRowMapper mapper;
     private boolean hasNext;
     private boolean autoClose = true;
 
+    /**
+     * Location rows as parallel primitive arrays, index i of every array is the same row.
+     */
+    public static final class Columns {
+        public final int size;
+        public final long[] time;
+        public final double[] latitude;
+        public final double[] longitude;
+        public final double[] altitude;
+        public final float[] accuracy;
+        public final float[] speed;
+        public final int[] batteryLevel;
+        public final String[] event;
+
+        public Columns(int size) {
+            this.size = size;
+            time = new long[size];
+            latitude = new double[size];
+            longitude = new double[size];
+            altitude = new double[size];
+            accuracy = new float[size];
+            speed = new float[size];
+            batteryLevel = new int[size];
+            event = new String[size];
+        }
+    }
+
     DatabaseLocationSet(Cursor cursor) {
         this.cursor = cursor;
         this.hasNext = cursor != null && cursor.moveToFirst();
+        this.mapper = cursor != null ? new LocationRowMapper(cursor) : null;
     }
 
     public void setAutoClose(boolean autoClose) {
         this.autoClose = autoClose;
     }
 
+    public void close() {
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.close();
+            if (Logger.DEBUG) Logger.debug(TAG, "Cursor closed.");
+        }
+    }
+
     @Override
     public int getCount() {
         return cursor == null ? 0 : cursor.getCount();
@@ -36,7 +73,7 @@ public class DatabaseLocationSet implements LocationSet, Iterator<LocatrackLocat
         int i = 0;
         if(hasNext) {
             while (true) {
-                locations[i++] = LocationTable.loadFromCursor(cursor);
+                locations[i++] = mapper.load(cursor);
                 if(!cursor.moveToNext()) {
                     break;
                 }
@@ -49,6 +86,38 @@ public class DatabaseLocationSet implements LocationSet, Iterator<LocatrackLocat
         return locations;
     }
 
+    /**
+     * Loads all rows straight from the cursor into primitive arrays without creating a
+     * location object per row.
+     */
+    public Columns toColumns() {
+        Columns columns = new Columns(getCount());
+        if (columns.size > 0) {
+            int i = 0;
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                mapper.load(cursor, columns, i++);
+            }
+        }
+
+        hasNext = false;
+        hasNext();
+
+        return columns;
+    }
+
+    /**
+     * Reads the rows in place from the underlying cursor. Closing the returned cursor closes the
+     * database cursor unless auto close was disabled.
+     */
+    @Override
+    public LocationCursor cursor() {
+        if (cursor != null) {
+            cursor.moveToPosition(-1);
+        }
+        return new RowCursor();
+    }
+
     @Override
     public Iterator<LocatrackLocation> iterator() {
         return this;
@@ -72,7 +141,7 @@ public class DatabaseLocationSet implements LocationSet, Iterator<LocatrackLocat
     public LocatrackLocation next() {
         LocatrackLocation loc = null;
         if (hasNext) {
-            loc = LocationTable.loadFromCursor(cursor);
+            loc = mapper.load(cursor);
             hasNext = cursor.moveToNext();
         }
         return loc;
@@ -82,4 +151,63 @@ public class DatabaseLocationSet implements LocationSet, Iterator<LocatrackLocat
     public void remove() {
         throw new UnsupportedOperationException();
     }
+
+    private class RowCursor implements LocationCursor {
+
+        @Override
+        public boolean moveToNext() {
+            return cursor != null && !cursor.isClosed() && cursor.moveToNext();
+        }
+
+        @Override
+        public int getPosition() {
+            return cursor != null ? cursor.getPosition() : -1;
+        }
+
+        @Override
+        public long getTime() {
+            return cursor.getLong(mapper.timestamp);
+        }
+
+        @Override
+        public double getLatitude() {
+            return cursor.getDouble(mapper.latitude);
+        }
+
+        @Override
+        public double getLongitude() {
+            return cursor.getDouble(mapper.longitude);
+        }
+
+        @Override
+        public double getAltitude() {
+            return cursor.getDouble(mapper.altitude);
+        }
+
+        @Override
+        public float getAccuracy() {
+            return cursor.getFloat(mapper.accuracy);
+        }
+
+        @Override
+        public float getSpeed() {
+            return cursor.getFloat(mapper.speed);
+        }
+
+        @Override
+        public int getBatteryLevel() {
+            return cursor.getInt(mapper.batteryLevel);
+        }
+
+        @Override
+        public String getEvent() {
+            return cursor.isNull(mapper.event) ? null : cursor.getString(mapper.event);
+        }
+
+        @Override
+        public void close() {
+            hasNext = false;
+            hasNext();
+        }
+    }
 }
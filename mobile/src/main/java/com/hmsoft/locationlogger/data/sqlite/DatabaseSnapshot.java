@@ -0,0 +1,244 @@
+package com.hmsoft.locationlogger.data.sqlite;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.hmsoft.locationlogger.common.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Copies the database into a new file and gzips it. Rows are read on a dedicated read only
+ * connection inside a single read transaction, so every table is copied as of the same instant
+ * while the location writer keeps committing to the WAL. Location shards can be limited to a time
+ * range, the event index is rebuilt by the shard triggers from the copied rows.
+ */
+class DatabaseSnapshot {
+
+    private static final String TAG = "DatabaseSnapshot";
+
+    private static final int PAGE_SIZE = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String TEMP_FILE_NAME = "snapshot.db";
+    // Created by openOrCreateDatabase in the target already.
+    private static final String ANDROID_METADATA = "android_metadata";
+
+    private DatabaseSnapshot() {
+    }
+
+    private static class SchemaObject {
+        final String type;
+        final String name;
+        final String sql;
+
+        SchemaObject(String type, String name, String sql) {
+            this.type = type;
+            this.name = name;
+            this.sql = sql;
+        }
+    }
+
+    /**
+     * Use 0 and Long.MAX_VALUE to copy every location.
+     *
+     * @return the gzip file, in the given directory.
+     */
+    static File create(File databaseFile, File directory, long startTimestamp, long endTimestamp) throws IOException {
+        long start = System.currentTimeMillis();
+        File tempFile = new File(directory, TEMP_FILE_NAME);
+        SQLiteDatabase.deleteDatabase(tempFile);
+
+        SQLiteDatabase source = SQLiteDatabase.openDatabase(databaseFile.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        SQLiteDatabase target = null;
+        long rows = 0;
+        try {
+            target = SQLiteDatabase.openOrCreateDatabase(tempFile, null);
+            Helper.execPragma(target, "PRAGMA journal_mode=OFF");
+            Helper.execPragma(target, "PRAGMA synchronous=OFF");
+
+            // beginTransaction() is a BEGIN EXCLUSIVE, a read only connection can not run it. A
+            // SAVEPOINT outside a transaction is a deferred BEGIN, the first read takes the WAL
+            // snapshot and writers are not blocked.
+            source.execSQL("SAVEPOINT snapshot");
+            target.beginTransaction();
+            try {
+                List<SchemaObject> schema = loadSchema(source);
+                createSchema(target, schema, true);
+                for (SchemaObject object : schema) {
+                    if ("table".equals(object.type) && !EventIndexTable.TABLE_NAME.equals(object.name)) {
+                        rows += copyTable(source, target, object.name, startTimestamp, endTimestamp);
+                    }
+                }
+                createSchema(target, schema, false);
+                target.setVersion(source.getVersion());
+                target.setTransactionSuccessful();
+            } finally {
+                target.endTransaction();
+                source.execSQL("RELEASE snapshot");
+            }
+        } finally {
+            source.close();
+            if (target != null) {
+                target.close();
+            }
+        }
+
+        File snapshotFile = new File(directory, "locatrack-" +
+                new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".db.gz");
+        try {
+            gzip(tempFile, snapshotFile);
+        } finally {
+            SQLiteDatabase.deleteDatabase(tempFile);
+        }
+
+        if (Logger.DEBUG) Logger.debug(TAG, "Snapshot of %d rows, %d bytes in %dms", rows,
+                snapshotFile.length(), System.currentTimeMillis() - start);
+
+        return snapshotFile;
+    }
+
+    private static List<SchemaObject> loadSchema(SQLiteDatabase db) {
+        List<SchemaObject> schema = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT type, name, sql FROM sqlite_master " +
+                "WHERE sql IS NOT NULL AND name NOT LIKE 'sqlite_%' AND name != ?", new String[]{ANDROID_METADATA});
+        try {
+            while (cursor.moveToNext()) {
+                schema.add(new SchemaObject(cursor.getString(0), cursor.getString(1), cursor.getString(2)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return schema;
+    }
+
+    /**
+     * Tables and triggers go before the rows, indices and views after them.
+     */
+    private static void createSchema(SQLiteDatabase db, List<SchemaObject> schema, boolean beforeRows) {
+        for (SchemaObject object : schema) {
+            boolean early = "table".equals(object.type) || "trigger".equals(object.type);
+            if (early == beforeRows) {
+                db.execSQL(object.sql);
+            }
+        }
+    }
+
+    /**
+     * Copies the table in rowid order, one page per query, rows already in the target are kept.
+     * Out of range shards are left empty, the location view still needs them.
+     *
+     * @return the number of rows inserted.
+     */
+    static long copyTable(SQLiteDatabase source, SQLiteDatabase target, String table,
+                                  long startTimestamp, long endTimestamp) {
+        String range = "";
+        if (table.startsWith(LocationPartitions.SHARD_PREFIX)) {
+            if (LocationPartitions.shardEnd(table) < startTimestamp ||
+                    LocationPartitions.shardStart(table) > endTimestamp) {
+                return 0;
+            }
+            // The shard timestamp is its rowid.
+            range = " AND rowid BETWEEN " + startTimestamp + " AND " + endTimestamp;
+        }
+
+        long count = 0;
+        long lastRowId = Long.MIN_VALUE;
+        SQLiteStatement insert = null;
+        try {
+            while (true) {
+                Cursor cursor = source.rawQuery("SELECT rowid, * FROM " + table + " WHERE rowid > " + lastRowId +
+                        range + " ORDER BY rowid LIMIT " + PAGE_SIZE, null);
+                try {
+                    if (insert == null) {
+                        insert = target.compileStatement(insertSql(table, cursor.getColumnCount() - 1));
+                    }
+                    int pageCount = 0;
+                    while (cursor.moveToNext()) {
+                        lastRowId = cursor.getLong(0);
+                        bindRow(insert, cursor);
+                        if (insert.executeInsert() != -1) {
+                            count++;
+                        }
+                        pageCount++;
+                    }
+                    if (pageCount < PAGE_SIZE) {
+                        break;
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } finally {
+            if (insert != null) {
+                insert.close();
+            }
+        }
+
+        if (Logger.DEBUG) Logger.debug(TAG, "%s: %d rows", table, count);
+
+        return count;
+    }
+
+    private static String insertSql(String table, int columnCount) {
+        StringBuilder sql = new StringBuilder("INSERT OR IGNORE INTO ").append(table).append(" VALUES (");
+        for (int i = 0; i < columnCount; i++) {
+            sql.append(i > 0 ? ",?" : "?");
+        }
+        return sql.append(')').toString();
+    }
+
+    // Column 0 is the rowid.
+    private static void bindRow(SQLiteStatement insert, Cursor cursor) {
+        insert.clearBindings();
+        for (int i = 1; i < cursor.getColumnCount(); i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    insert.bindNull(i);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    insert.bindLong(i, cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    insert.bindDouble(i, cursor.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    insert.bindBlob(i, cursor.getBlob(i));
+                    break;
+                default:
+                    insert.bindString(i, cursor.getString(i));
+                    break;
+            }
+        }
+    }
+
+    private static void gzip(File inFile, File outFile) throws IOException {
+        InputStream in = new FileInputStream(inFile);
+        try {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(outFile), BUFFER_SIZE);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.hmsoft.locationlogger.data.sqlite;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Timestamps of the location rows that have an event, keyed by (event, timestamp) so the
+ * previous start/stop of a given time is a single index seek. Rows are maintained by triggers
+ * on every location shard, so all write paths keep it up to date.
+ */
+public class EventIndexTable {
+    public static final String TABLE_NAME = "event_index";
+
+    public static final String COLUMN_NAME_EVENT = "event";
+    public static final String COLUMN_NAME_TIMESTAMP = "timestamp";
+
+    public static final String SQL_CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                    COLUMN_NAME_EVENT + Helper.TYPE_TEXT + " NOT NULL" + Helper.COMMA_SEP +
+                    COLUMN_NAME_TIMESTAMP + Helper.TYPE_INTEGER + " NOT NULL" + Helper.COMMA_SEP +
+                    "PRIMARY KEY (" + COLUMN_NAME_EVENT + Helper.COMMA_SEP + COLUMN_NAME_TIMESTAMP + ")" +
+                    ") WITHOUT ROWID";
+
+    public static final String SQL_BACKFILL = "INSERT OR IGNORE INTO " + TABLE_NAME + " (" +
+            COLUMN_NAME_EVENT + Helper.COMMA_SEP + COLUMN_NAME_TIMESTAMP + ") SELECT " +
+            LocationTable.COLUMN_NAME_EVENT + Helper.COMMA_SEP + LocationTable.COLUMN_NAME_TIMESTAMP +
+            " FROM " + LocationTable.TABLE_NAME + " WHERE " + LocationTable.COLUMN_NAME_EVENT + " <> ''";
+
+    private static final String[] QUERY_COLUMNS = new String[] {
+            COLUMN_NAME_TIMESTAMP
+    };
+
+    private static final String[] queryValues = new String[2];
+
+    static String[] createTriggersSql(String locationTable) {
+        return new String[] {
+                "CREATE TRIGGER IF NOT EXISTS " + locationTable + "_event_insert AFTER INSERT ON " + locationTable +
+                        " WHEN NEW.event <> '' BEGIN " +
+                        "INSERT OR IGNORE INTO " + TABLE_NAME + " VALUES (NEW.event, NEW.timestamp); END",
+                "CREATE TRIGGER IF NOT EXISTS " + locationTable + "_event_update AFTER UPDATE OF " +
+                        LocationTable.COLUMN_NAME_EVENT + Helper.COMMA_SEP + LocationTable.COLUMN_NAME_TIMESTAMP +
+                        " ON " + locationTable + " BEGIN " +
+                        "DELETE FROM " + TABLE_NAME + " WHERE event = OLD.event AND timestamp = OLD.timestamp; " +
+                        "INSERT OR IGNORE INTO " + TABLE_NAME + " SELECT NEW.event, NEW.timestamp WHERE NEW.event <> ''; END"
+        };
+    }
+
+    static void deleteRange(SQLiteDatabase db, long startTimestamp, long endTimestamp) {
+        db.execSQL("DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_NAME_TIMESTAMP + " BETWEEN ? AND ?",
+                new Object[]{startTimestamp, endTimestamp});
+    }
+
+    /**
+     * @return the timestamp of the last location with the given event before the given
+     * timestamp, or 0 if there is none.
+     */
+    public static synchronized long getPrevious(String event, long beforeTimestamp) {
+        Helper helper = Helper.getInstance();
+
+        queryValues[0] = event;
+        queryValues[1] = String.valueOf(beforeTimestamp);
+
+        Cursor cursor = helper.getReaderDatabase().query(TABLE_NAME, QUERY_COLUMNS,
+                COLUMN_NAME_EVENT + " = ? AND " + COLUMN_NAME_TIMESTAMP + " < ?", queryValues,
+                null, null, COLUMN_NAME_TIMESTAMP + " DESC", "1");
+
+        long result = 0;
+        try {
+            if (cursor.moveToFirst()) {
+                result = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+}
@@ -128,21 +128,31 @@ public class FuelLogTable {
         insertValues.put(COLUMN_NAME_PRICE_PER_LITRE, pricePerLitre);
 
         Helper helper = Helper.getInstance();
-        helper.getWritableDatabase().insertWithOnConflict(TABLE_NAME, null, insertValues,
-                SQLiteDatabase.CONFLICT_REPLACE);
+        helper.beginWrite();
+        try {
+            helper.getWritableDatabase().insertWithOnConflict(TABLE_NAME, null, insertValues,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+        } finally {
+            helper.endWrite();
+        }
 
         return getCount();
     }
 
     public static void delete(long id) {
         Helper helper = Helper.getInstance();
-        helper.getWritableDatabase().execSQL("DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_NAME_TIMESTAMP + " = " + id);
+        helper.beginWrite();
+        try {
+            helper.getWritableDatabase().execSQL("DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_NAME_TIMESTAMP + " = " + id);
+        } finally {
+            helper.endWrite();
+        }
     }
 
     public static FuelLog getById(long id) {
 
         Helper helper = Helper.getInstance();
-        Cursor cursor = helper.getReadableDatabase().query(VIEW_NAME, QUERY_COLUMNS,
+        Cursor cursor = helper.getReaderDatabase().query(VIEW_NAME, QUERY_COLUMNS,
                 COLUMN_NAME_TIMESTAMP + " = " + id, null, null, null, null, null);
 
         if(cursor != null) {
@@ -161,7 +171,7 @@ public class FuelLogTable {
         String slimit = limit > 0 ? String.valueOf(limit) : null;
         Helper helper = Helper.getInstance();
 
-        Cursor cursor = helper.getReadableDatabase().query(VIEW_NAME, QUERY_COLUMNS,
+        Cursor cursor = helper.getReaderDatabase().query(VIEW_NAME, QUERY_COLUMNS,
                 null, null, null, null,
                 COLUMN_NAME_TIMESTAMP + " DESC ", slimit);
 
@@ -191,7 +201,7 @@ public class FuelLogTable {
         };
 
         Helper helper = Helper.getInstance();
-        Cursor cursor = helper.getReadableDatabase().query(TABLE_NAME, QUERY_COLUMNS,
+        Cursor cursor = helper.getReaderDatabase().query(TABLE_NAME, QUERY_COLUMNS,
                 null, null, null, null,
                 COLUMN_NAME_TIMESTAMP + " DESC ", "2");
 
@@ -15,11 +15,17 @@ public class GeocoderTable {
     public static final String COLUMN_NAME_LONGITUDE = "longitude";
     public static final String COLUMN_NAME_ADDRESS = "address";
 
+    private static final double METERS_PER_DEGREE = 111320.0;
+
     public static final String[] SQL_CREATE_INDICES = new String[]{
             "CREATE UNIQUE INDEX idx_latlong ON " + TABLE_NAME + " (" + COLUMN_NAME_LATITUDE +
                     Helper.COMMA_SEP + COLUMN_NAME_LONGITUDE + ")"
     };
 
+    public interface AddressCallback {
+        void onAddress(double latitude, double longitude, String address);
+    }
+
     private static final String[] QUERY_COLUMNS = new String[] {
             COLUMN_NAME_ADDRESS
     };
@@ -36,7 +42,7 @@ public class GeocoderTable {
                     ")";
 
 
-    public static  void saveAddress(long ts, double latitude, double longitude,
+    public static synchronized void saveAddress(long ts, double latitude, double longitude,
                                     String address) {
 
         insertValues.put(COLUMN_NAME_TIMESTAMP, ts);
@@ -45,16 +51,22 @@ public class GeocoderTable {
         insertValues.put(COLUMN_NAME_ADDRESS, address);
 
         Helper helper = Helper.getInstance();
-        helper.getWritableDatabase().insertWithOnConflict(TABLE_NAME, null, insertValues,
-                SQLiteDatabase.CONFLICT_REPLACE);
+        helper.beginWrite();
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.insertWithOnConflict(TABLE_NAME, null, insertValues, SQLiteDatabase.CONFLICT_REPLACE);
+            TripSummaryTable.updateAddress(db, latitude, longitude, address);
+        } finally {
+            helper.endWrite();
+        }
     }
 
-    public static String getAddress(double latitude, double longitude) {
+    public static synchronized String getAddress(double latitude, double longitude) {
         queryValues[0] = String.valueOf(latitude);
         queryValues[1] = String.valueOf(longitude);
 
         Helper helper = Helper.getInstance();
-        Cursor cursor = helper.getReadableDatabase().query(TABLE_NAME, QUERY_COLUMNS,
+        Cursor cursor = helper.getReaderDatabase().query(TABLE_NAME, QUERY_COLUMNS,
                 COLUMN_NAME_LATITUDE + " = ? AND " + COLUMN_NAME_LONGITUDE + " = ?",
                 queryValues, null, null, null);
 
@@ -71,4 +83,58 @@ public class GeocoderTable {
         return null;
     }
 
+    /**
+     * Passes the latest saved addresses to the callback, newest first.
+     */
+    public static void loadLatest(int limit, AddressCallback callback) {
+        Helper helper = Helper.getInstance();
+        Cursor cursor = helper.getReaderDatabase().query(TABLE_NAME, new String[] {
+                        COLUMN_NAME_LATITUDE, COLUMN_NAME_LONGITUDE, COLUMN_NAME_ADDRESS
+                }, null, null, null, null, COLUMN_NAME_TIMESTAMP + " DESC", String.valueOf(limit));
+
+        if(cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    callback.onAddress(cursor.getDouble(0), cursor.getDouble(1), cursor.getString(2));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Nearest saved address within maxDistance meters. The bounding box is read through the
+     * (latitude, longitude) index, candidates are ordered by equirectangular distance.
+     *
+     * @return null if there is none.
+     */
+    public static String getNearestAddress(double latitude, double longitude, double maxDistance) {
+        double latDelta = maxDistance / METERS_PER_DEGREE;
+        double lonScale = Math.cos(Math.toRadians(latitude));
+        double lonDelta = latDelta / Math.max(lonScale, 0.01);
+
+        String distance = "(" + COLUMN_NAME_LATITUDE + " - " + latitude + ") * (" + COLUMN_NAME_LATITUDE + " - " + latitude + ") + " +
+                "(" + COLUMN_NAME_LONGITUDE + " - " + longitude + ") * (" + COLUMN_NAME_LONGITUDE + " - " + longitude + ") * " +
+                (lonScale * lonScale);
+
+        Helper helper = Helper.getInstance();
+        Cursor cursor = helper.getReaderDatabase().rawQuery("SELECT " + COLUMN_NAME_ADDRESS + ", " + distance +
+                " FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_NAME_LATITUDE + " BETWEEN " + (latitude - latDelta) + " AND " + (latitude + latDelta) +
+                " AND " + COLUMN_NAME_LONGITUDE + " BETWEEN " + (longitude - lonDelta) + " AND " + (longitude + lonDelta) +
+                " ORDER BY 2 LIMIT 1", null);
+
+        if(cursor != null) {
+            try {
+                if (cursor.moveToFirst() && Math.sqrt(cursor.getDouble(1)) * METERS_PER_DEGREE <= maxDistance) {
+                    return cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        return null;
+    }
 }
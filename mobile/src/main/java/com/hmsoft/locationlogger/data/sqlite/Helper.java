@@ -6,12 +6,14 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
 import com.hmsoft.locationlogger.LocationLoggerApp;
+import com.hmsoft.locationlogger.R;
 import com.hmsoft.locationlogger.common.Logger;
+import com.hmsoft.locationlogger.common.Metrics;
+import com.hmsoft.locationlogger.data.preferences.PreferenceProfile;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 public class Helper extends SQLiteOpenHelper {
@@ -24,14 +26,25 @@ public class Helper extends SQLiteOpenHelper {
     public static final String TYPE_PRIMARY_KEY = " PRIMARY KEY";
     public static final String COMMA_SEP = ",";
 
-    public static final int DATABASE_VERSION = 22;
+    public static final int DATABASE_VERSION = 27;
     public static final String DATABASE_NAME = "locatrack.db";
 
+    private static final int CACHE_SIZE = -4096; // KiB
+    private static final long MMAP_SIZE = 32 * 1024 * 1024;
+    private static final int WAL_AUTOCHECKPOINT = 512; // pages
+    private static final long JOURNAL_SIZE_LIMIT = 4 * 1024 * 1024;
+
+    private static final Metrics.Histogram sCheckpointTime = Metrics.histogram("sqlite.checkpoint");
+
     private static Helper instance;
 
+    private final boolean mWalEnabled;
+    private final ReentrantReadWriteLock mReplaceLock = new ReentrantReadWriteLock();
+
     private Helper(Context context, String name, SQLiteDatabase.CursorFactory factory,
                    int version) {
         super(context, name, factory, version);
+        mWalEnabled = PreferenceProfile.get(context).getBoolean(R.string.pref_sqlite_wal_key, true);
     }
 
     private Helper() {
@@ -45,8 +58,70 @@ public class Helper extends SQLiteOpenHelper {
         return instance;
     }
 
+    public boolean isWalEnabled() {
+        return mWalEnabled;
+    }
+
+    /**
+     * Returns the database used by read-heavy queries. With WAL the framework pool runs them on
+     * its own read connections, so they neither wait for the location writes nor for each other.
+     */
+    public SQLiteDatabase getReaderDatabase() {
+        return getReadableDatabase();
+    }
+
+    /**
+     * Writes that do not hold the LocationTable lock run between beginWrite and endWrite, so
+     * importDB never closes or replaces the database under them. Must not be called with the
+     * LocationTable lock held.
+     */
+    void beginWrite() {
+        mReplaceLock.readLock().lock();
+    }
+
+    void endWrite() {
+        mReplaceLock.readLock().unlock();
+    }
+
+    /**
+     * Moves the WAL content into the database file and truncates the WAL.
+     */
+    public void checkpoint() {
+        if (!mWalEnabled) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Cursor cursor = getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+        if(cursor != null) {
+            try	{
+                if(cursor.moveToFirst() && Logger.DEBUG) {
+                    Logger.debug(TAG, "checkpoint: busy:%d log:%d checkpointed:%d", cursor.getInt(0),
+                            cursor.getInt(1), cursor.getInt(2));
+                }
+            }
+            finally	{
+                cursor.close();
+            }
+        }
+        sCheckpointTime.recordSince(start);
+    }
+
+    // Some pragmas return a row, those can not be executed with execSQL.
+    static void execPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        if(cursor != null) {
+            try	{
+                cursor.moveToFirst();
+            }
+            finally	{
+                cursor.close();
+            }
+        }
+    }
+
     public double getDoubleScalar(String query) {
-        Cursor cursor = this.getReadableDatabase().rawQuery(query, null);
+        Cursor cursor = this.getReaderDatabase().rawQuery(query, null);
         if(cursor != null) {
             try	{
                 if(cursor.moveToFirst()) {
@@ -64,45 +139,84 @@ public class Helper extends SQLiteOpenHelper {
         return  new File(this.getReadableDatabase().getPath());
     }
 
-    public void importDB(String inFileName) {
+    /**
+     * Writes a consistent, gzip compressed copy of the database to the cache dir, location writes
+     * are not blocked while it runs. Only locations in the given range are copied, use 0 and
+     * Long.MAX_VALUE for all of them. The caller deletes the file.
+     */
+    public File createSnapshot(long startTimestamp, long endTimestamp) throws IOException {
+        LocationTable.flushPendingWrites(startTimestamp, endTimestamp);
+        return DatabaseSnapshot.create(getPathFile(), LocationLoggerApp.getContext().getCacheDir(),
+                startTimestamp, endTimestamp);
+    }
 
-        final File outFile = getPathFile();
+    /**
+     * Imports a database backup, plain or gzip compressed. The backup is validated before the
+     * live database is touched. When merge is false the database is closed and replaced by the
+     * backup, otherwise the locations, geocoder cache and fuel logs not already stored are
+     * inserted from it.
+     *
+     * @return the number of rows merged, 0 when the database is replaced.
+     */
+    public long importDB(String inFileName, boolean merge) throws IOException {
+        File databaseFile = getPathFile();
+        File staged = DatabaseImport.stage(new File(inFileName), databaseFile);
         try {
-
-            File dbFile = new File(inFileName);
-            FileInputStream fis = new FileInputStream(dbFile);
-
-            // Open the empty db as the output stream
-            OutputStream output = new FileOutputStream(outFile);
-
-            // Transfer bytes from the input file to the output file
-            byte[] buffer = new byte[1024];
-            int length;
-            while ((length = fis.read(buffer)) > 0) {
-                output.write(buffer, 0, length);
+            if (merge) {
+                return DatabaseImport.merge(getWritableDatabase(), staged);
             }
 
-            // Close the streams
-            output.flush();
-            output.close();
-            fis.close();
+            // Waits for the other writers, then same lock order as the location writes,
+            // LocationTable then Helper.
+            mReplaceLock.writeLock().lock();
+            try {
+                synchronized (LocationTable.class) {
+                    synchronized (this) {
+                        LocationTable.resetStatements();
+                        close();
+                        LocationPartitions.reset();
+                        DatabaseImport.replace(staged, databaseFile);
+                        // Reopened here, an older backup is upgraded right away.
+                        getWritableDatabase();
+                    }
+                }
+            } finally {
+                mReplaceLock.writeLock().unlock();
+            }
+            if(Logger.DEBUG) Logger.debug(TAG, "Database replaced by %s", inFileName);
+            return 0;
+        } finally {
+            DatabaseImport.delete(staged);
+        }
+    }
 
-        } catch (Exception e) {
-            Logger.warning(TAG, "importDB", e);
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        if (mWalEnabled) {
+            db.enableWriteAheadLogging();
+            execPragma(db, "PRAGMA synchronous=NORMAL");
+            execPragma(db, "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT);
+            execPragma(db, "PRAGMA journal_size_limit=" + JOURNAL_SIZE_LIMIT);
+        } else {
+            db.disableWriteAheadLogging();
         }
+        execPragma(db, "PRAGMA cache_size=" + CACHE_SIZE);
+        execPragma(db, "PRAGMA mmap_size=" + MMAP_SIZE);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         if(Logger.DEBUG) Logger.debug(TAG, "onCreate");
 
-        db.execSQL(LocationTable.SQL_CREATE_TABLE);
+        db.execSQL(EventIndexTable.SQL_CREATE_TABLE);
+        LocationPartitions.create(db);
         db.execSQL(GeocoderTable.SQL_CREATE_TABLE);
         db.execSQL(FuelLogTable.SQL_CREATE_TABLE);
         db.execSQL(FuelLogTable.SQL_CREATE_VIEW);
         db.execSQL(TripTable.SQL_CREATE_TABLE);
-        db.execSQL(TripTable.SQL_CREATE_VIEW);
+        db.execSQL(TripSummaryTable.SQL_CREATE_TABLE);
         db.execSQL(TripTable.SQL_CREATE_DETAIL_VIEW);
+        db.execSQL(OutboxTable.SQL_CREATE_TABLE);
 
         for (String index : LocationTable.SQL_CREATE_INDICES) {
             db.execSQL(index);
@@ -111,11 +225,42 @@ public class Helper extends SQLiteOpenHelper {
         for (String index : GeocoderTable.SQL_CREATE_INDICES) {
             db.execSQL(index);
         }
+
+        for (String index : TripSummaryTable.SQL_CREATE_INDICES) {
+            db.execSQL(index);
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         if(Logger.DEBUG) Logger.debug(TAG, "onUpgrade");
+        if(oldVersion < 24) {
+            db.execSQL(EventIndexTable.SQL_CREATE_TABLE);
+        }
+        if(oldVersion < 23) {
+            // Shards are created with the event index triggers, the copy fills the index.
+            LocationPartitions.migrate(db);
+        } else if(oldVersion < 24) {
+            LocationPartitions.createTriggers(db);
+            db.execSQL(EventIndexTable.SQL_BACKFILL);
+        }
+        if(oldVersion < 25) {
+            // Existing trips keep NULL statistics, they are computed on first read.
+            for (String column : TripTable.SQL_ADD_STATISTICS_COLUMNS) {
+                db.execSQL("ALTER TABLE " + TripTable.TABLE_NAME + " ADD COLUMN " + column);
+            }
+        }
+        if(oldVersion < 26) {
+            db.execSQL(TripSummaryTable.SQL_CREATE_TABLE);
+            for (String index : TripSummaryTable.SQL_CREATE_INDICES) {
+                db.execSQL(index);
+            }
+            db.execSQL(TripSummaryTable.SQL_MIGRATE);
+            db.execSQL(TripTable.SQL_DROP_VIEW);
+        }
+        if(oldVersion < 27) {
+            db.execSQL(OutboxTable.SQL_CREATE_TABLE);
+        }
         if(newVersion > 20) {
             db.execSQL("DROP VIEW " + FuelLogTable.VIEW_NAME);
             db.execSQL(FuelLogTable.SQL_CREATE_VIEW);
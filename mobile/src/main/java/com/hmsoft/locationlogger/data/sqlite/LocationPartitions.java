@@ -0,0 +1,299 @@
+package com.hmsoft.locationlogger.data.sqlite;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.hmsoft.locationlogger.common.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.TreeSet;
+
+/**
+ * Location rows are stored in one table per UTC month (location_YYYYMM). The {@link LocationTable#TABLE_NAME}
+ * view is the UNION ALL of every shard, so existing queries and views keep working, while range
+ * queries can read only the shards they need and old months can be dropped without a DELETE.
+ */
+class LocationPartitions {
+
+    private static final String TAG = "LocationPartitions";
+
+    static final String SHARD_PREFIX = LocationTable.TABLE_NAME + "_";
+    private static final String SHARD_GLOB = SHARD_PREFIX + "[0-9][0-9][0-9][0-9][0-9][0-9]";
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final Calendar sCalendar = Calendar.getInstance(UTC);
+
+    private static TreeSet<String> sShards = null;
+
+    private LocationPartitions() {
+    }
+
+    static synchronized String shardName(long timestamp) {
+        sCalendar.setTimeInMillis(timestamp);
+        int month = sCalendar.get(Calendar.YEAR) * 100 + sCalendar.get(Calendar.MONTH) + 1;
+        return SHARD_PREFIX + month;
+    }
+
+    /**
+     * @return the first millisecond of the month stored in the given shard.
+     */
+    static synchronized long shardStart(String shard) {
+        int month = Integer.parseInt(shard.substring(SHARD_PREFIX.length()));
+        sCalendar.clear();
+        sCalendar.set(month / 100, (month % 100) - 1, 1, 0, 0, 0);
+        return sCalendar.getTimeInMillis();
+    }
+
+    static synchronized long shardEnd(String shard) {
+        long start = shardStart(shard);
+        sCalendar.setTimeInMillis(start);
+        sCalendar.add(Calendar.MONTH, 1);
+        return sCalendar.getTimeInMillis() - 1;
+    }
+
+    static synchronized List<String> getShards(SQLiteDatabase db) {
+        if (sShards == null) {
+            sShards = loadShards(db);
+        }
+        return new ArrayList<>(sShards);
+    }
+
+    /**
+     * Forgets the cached shard list, needed when the database file is replaced.
+     */
+    static synchronized void reset() {
+        sShards = null;
+    }
+
+    /**
+     * Creates the shard for the given timestamp, if needed, and returns its name.
+     */
+    static synchronized String ensureShard(SQLiteDatabase db, long timestamp) {
+        String shard = shardName(timestamp);
+        if (sShards == null) {
+            sShards = loadShards(db);
+        }
+        if (!sShards.contains(shard)) {
+            createShardTable(db, shard);
+            sShards.add(shard);
+            recreateView(db);
+            if (Logger.DEBUG) Logger.debug(TAG, "Shard %s created", shard);
+        }
+        return shard;
+    }
+
+    /**
+     * Returns a FROM source that only reads the shards overlapping the given range. The empty
+     * result of the full view is used when no shard holds rows in that range.
+     */
+    static synchronized String source(SQLiteDatabase db, long startTimestamp, long endTimestamp) {
+        List<String> shards = getShards(db, startTimestamp, endTimestamp);
+        if (shards.isEmpty()) {
+            return "(SELECT * FROM " + LocationTable.TABLE_NAME + " WHERE 0)";
+        }
+        if (shards.size() == 1) {
+            return shards.get(0);
+        }
+        return "(" + unionAll(shards) + ")";
+    }
+
+    /**
+     * @return the shard that holds the given timestamp or null if it does not exist.
+     */
+    static synchronized String findShard(SQLiteDatabase db, long timestamp) {
+        String shard = shardName(timestamp);
+        if (sShards == null) {
+            sShards = loadShards(db);
+        }
+        return sShards.contains(shard) ? shard : null;
+    }
+
+    /**
+     * Use Long.MAX_VALUE as end timestamp for open ended ranges.
+     */
+    static synchronized List<String> getShards(SQLiteDatabase db, long startTimestamp, long endTimestamp) {
+        String first = shardName(startTimestamp);
+        String last = endTimestamp == Long.MAX_VALUE ? null : shardName(endTimestamp);
+        List<String> result = new ArrayList<>();
+        for (String shard : getShards(db)) {
+            if (shard.compareTo(first) >= 0 && (last == null || shard.compareTo(last) <= 0)) {
+                result.add(shard);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drops every shard whose whole month is older than the given timestamp.
+     *
+     * @return the number of dropped shards.
+     */
+    static synchronized int dropBefore(SQLiteDatabase db, long timestamp) {
+        return removeBefore(db, timestamp, null);
+    }
+
+    /**
+     * Moves every shard whose whole month is older than the given timestamp to the given
+     * database file, then drops it from the live database.
+     *
+     * @return the number of archived shards.
+     */
+    static synchronized int archiveBefore(SQLiteDatabase db, long timestamp, File archiveFile) {
+        return removeBefore(db, timestamp, archiveFile);
+    }
+
+    /**
+     * Moves rows from a plain location table into monthly shards and replaces the table with the
+     * UNION ALL view. Runs inside the upgrade transaction.
+     */
+    static synchronized void migrate(SQLiteDatabase db) {
+        // The table is not renamed, newer SQLite versions would rewrite the views that use it.
+        String legacy = LocationTable.TABLE_NAME;
+
+        List<String> months = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT DISTINCT strftime('%Y%m', " + LocationTable.COLUMN_NAME_TIMESTAMP +
+                " / 1000, 'unixepoch') FROM " + legacy, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (!cursor.isNull(0)) {
+                    months.add(SHARD_PREFIX + cursor.getString(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        sShards = new TreeSet<>();
+        for (String shard : months) {
+            createShardTable(db, shard);
+            db.execSQL("INSERT INTO " + shard + " SELECT * FROM " + legacy + " WHERE " +
+                    LocationTable.COLUMN_NAME_TIMESTAMP + " BETWEEN " + shardStart(shard) + " AND " + shardEnd(shard));
+            sShards.add(shard);
+            if (Logger.DEBUG) Logger.debug(TAG, "Migrated %s", shard);
+        }
+
+        db.execSQL("DROP TABLE " + legacy);
+
+        String current = shardName(System.currentTimeMillis());
+        if (!sShards.contains(current)) {
+            createShardTable(db, current);
+            sShards.add(current);
+        }
+        recreateView(db);
+    }
+
+    static synchronized void create(SQLiteDatabase db) {
+        sShards = new TreeSet<>();
+        ensureShard(db, System.currentTimeMillis());
+    }
+
+    private static int removeBefore(SQLiteDatabase db, long timestamp, File archiveFile) {
+        List<String> shards = getShards(db);
+        List<String> removed = new ArrayList<>();
+        for (String shard : shards) {
+            // Always keep the newest shard, the view needs at least one.
+            if (shardEnd(shard) < timestamp && removed.size() < shards.size() - 1) {
+                removed.add(shard);
+            }
+        }
+        if (removed.isEmpty()) {
+            return 0;
+        }
+
+        if (archiveFile != null) {
+            archive(db, removed, archiveFile);
+        }
+
+        db.beginTransactionNonExclusive();
+        try {
+            for (String shard : removed) {
+                db.execSQL("DROP TABLE IF EXISTS " + shard);
+                EventIndexTable.deleteRange(db, shardStart(shard), shardEnd(shard));
+                sShards.remove(shard);
+            }
+            recreateView(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (Logger.DEBUG) Logger.debug(TAG, "%s %d shards", archiveFile != null ? "Archived" : "Dropped", removed.size());
+
+        return removed.size();
+    }
+
+    /**
+     * Copies the shards into the archive through its own connection. ATTACH is never run on the
+     * helper connection, Android turns WAL off for a connection with attached databases.
+     */
+    private static void archive(SQLiteDatabase db, List<String> shards, File archiveFile) {
+        SQLiteDatabase archive = SQLiteDatabase.openOrCreateDatabase(archiveFile, null);
+        try {
+            archive.beginTransaction();
+            try {
+                for (String shard : shards) {
+                    archive.execSQL(LocationTable.createTableSql("IF NOT EXISTS " + shard));
+                    DatabaseSnapshot.copyTable(db, archive, shard, 0, Long.MAX_VALUE);
+                }
+                archive.setTransactionSuccessful();
+            } finally {
+                archive.endTransaction();
+            }
+        } finally {
+            archive.close();
+        }
+    }
+
+    /**
+     * Creates the event index triggers on every existing shard.
+     */
+    static synchronized void createTriggers(SQLiteDatabase db) {
+        for (String shard : getShards(db)) {
+            for (String trigger : EventIndexTable.createTriggersSql(shard)) {
+                db.execSQL(trigger);
+            }
+        }
+    }
+
+    private static void createShardTable(SQLiteDatabase db, String shard) {
+        db.execSQL(LocationTable.createTableSql("IF NOT EXISTS " + shard));
+        for (String trigger : EventIndexTable.createTriggersSql(shard)) {
+            db.execSQL(trigger);
+        }
+    }
+
+    private static void recreateView(SQLiteDatabase db) {
+        db.execSQL("DROP VIEW IF EXISTS " + LocationTable.TABLE_NAME);
+        db.execSQL("CREATE VIEW " + LocationTable.TABLE_NAME + " AS " + unionAll(sShards));
+    }
+
+    private static String unionAll(Iterable<String> shards) {
+        StringBuilder sql = new StringBuilder();
+        for (String shard : shards) {
+            if (sql.length() > 0) {
+                sql.append(" UNION ALL ");
+            }
+            sql.append("SELECT * FROM ").append(shard);
+        }
+        return sql.toString();
+    }
+
+    private static TreeSet<String> loadShards(SQLiteDatabase db) {
+        TreeSet<String> shards = new TreeSet<>();
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name GLOB ?",
+                new String[]{SHARD_GLOB});
+        try {
+            while (cursor.moveToNext()) {
+                shards.add(cursor.getString(0).toLowerCase(Locale.US));
+            }
+        } finally {
+            cursor.close();
+        }
+        return shards;
+    }
+}
@@ -0,0 +1,64 @@
+package com.hmsoft.locationlogger.data.sqlite;
+
+import android.database.Cursor;
+
+import com.hmsoft.locationlogger.data.LocatrackLocation;
+
+/**
+ * Maps location rows from a cursor. Column ordinals are resolved once per cursor instead of
+ * once per row and column.
+ */
+class LocationRowMapper {
+
+    static final String CACHED_LOCATION_PROVIDER = "database";
+
+    final int timestamp;
+    final int latitude;
+    final int longitude;
+    final int altitude;
+    final int accuracy;
+    final int speed;
+    final int batteryLevel;
+    final int event;
+
+    LocationRowMapper(Cursor cursor) {
+        timestamp = cursor.getColumnIndexOrThrow(LocationTable.COLUMN_NAME_TIMESTAMP);
+        latitude = cursor.getColumnIndexOrThrow(LocationTable.COLUMN_NAME_LATITUDE);
+        longitude = cursor.getColumnIndexOrThrow(LocationTable.COLUMN_NAME_LONGITUD);
+        altitude = cursor.getColumnIndexOrThrow(LocationTable.COLUMN_NAME_ALTITUDE);
+        accuracy = cursor.getColumnIndexOrThrow(LocationTable.COLUMN_NAME_ACCURACY);
+        speed = cursor.getColumnIndexOrThrow(LocationTable.COLUMN_NAME_SPEED);
+        batteryLevel = cursor.getColumnIndexOrThrow(LocationTable.COLUMN_NAME_BATTERY_LEVEL);
+        event = cursor.getColumnIndexOrThrow(LocationTable.COLUMN_NAME_EVENT);
+    }
+
+    LocatrackLocation load(Cursor cursor) {
+        LocatrackLocation location = new LocatrackLocation(CACHED_LOCATION_PROVIDER);
+        location.setTime(cursor.getLong(timestamp));
+        location.setLatitude(cursor.getDouble(latitude));
+        location.setLongitude(cursor.getDouble(longitude));
+        location.setAltitude(cursor.getDouble(altitude));
+        location.setAccuracy(cursor.getFloat(accuracy));
+        location.setSpeed(cursor.getFloat(speed));
+
+        location.batteryLevel = cursor.getInt(batteryLevel);
+        location.event = cursor.getString(event);
+
+        return location;
+    }
+
+    /**
+     * Copies the current row into position i of the given columns, no objects are created
+     * except for the event text.
+     */
+    void load(Cursor cursor, DatabaseLocationSet.Columns columns, int i) {
+        columns.time[i] = cursor.getLong(timestamp);
+        columns.latitude[i] = cursor.getDouble(latitude);
+        columns.longitude[i] = cursor.getDouble(longitude);
+        columns.altitude[i] = cursor.getDouble(altitude);
+        columns.accuracy[i] = cursor.getFloat(accuracy);
+        columns.speed[i] = cursor.getFloat(speed);
+        columns.batteryLevel[i] = cursor.getInt(batteryLevel);
+        columns.event[i] = cursor.isNull(event) ? null : cursor.getString(event);
+    }
+}
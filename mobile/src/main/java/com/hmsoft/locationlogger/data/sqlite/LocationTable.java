@@ -8,16 +8,17 @@ import android.location.Location;
 import android.text.TextUtils;
 
 import com.hmsoft.locationlogger.common.Logger;
+import com.hmsoft.locationlogger.common.Metrics;
 import com.hmsoft.locationlogger.data.LocationSet;
 import com.hmsoft.locationlogger.data.LocatrackLocation;
 
-import java.util.Iterator;
+import java.io.File;
+import java.util.List;
 
 public class LocationTable {
 
     private static final String TAG = "Location";
 
-    private static final String CACHED_LOCATION_PROVIDER = "database";
     public static final String TABLE_NAME = "location";
 
     public static final String COLUMN_NAME_TIMESTAMP = "timestamp";
@@ -30,11 +31,10 @@ public class LocationTable {
     public static final String COLUMN_NAME_BATTERY_LEVEL = "batteryLevel";
     public static final String COLUMN_NAME_EVENT = "event";
 
-    public static final String SQL_DROP_TABLE = "DROP TABLE IF EXISTS " + TABLE_NAME;
-
     public static final String[] SQL_CREATE_INDICES = new String[]{};
-    public static final String SQL_CREATE_TABLE =
-            "CREATE TABLE " + TABLE_NAME + " (" +
+
+    static String createTableSql(String tableName) {
+        return "CREATE TABLE " + tableName + " (" +
                     COLUMN_NAME_TIMESTAMP + Helper.TYPE_INTEGER + Helper.TYPE_PRIMARY_KEY + Helper.COMMA_SEP +
                     COLUMN_NAME_LATITUDE + Helper.TYPE_REAL + Helper.COMMA_SEP +
                     COLUMN_NAME_LONGITUD + Helper.TYPE_REAL + Helper.COMMA_SEP +
@@ -45,8 +45,10 @@ public class LocationTable {
                     COLUMN_NAME_BATTERY_LEVEL + Helper.TYPE_INTEGER  + Helper.COMMA_SEP +
                     COLUMN_NAME_EVENT + Helper.TYPE_TEXT  +
                     ")";
+    }
 
-    public static final String INSERT_SQL = "INSERT OR IGNORE INTO " + TABLE_NAME + " (" +
+    static String insertSql(String tableName) {
+        return "INSERT OR IGNORE INTO " + tableName + " (" +
             COLUMN_NAME_TIMESTAMP + Helper.COMMA_SEP +
             COLUMN_NAME_LATITUDE + Helper.COMMA_SEP +
             COLUMN_NAME_LONGITUD + Helper.COMMA_SEP +
@@ -56,8 +58,10 @@ public class LocationTable {
             COLUMN_NAME_BATTERY_LEVEL + Helper.COMMA_SEP +
             COLUMN_NAME_EVENT + Helper.COMMA_SEP +
             COLUMN_NAME_UPLOAD_DATE  + ") VALUES (?,?,?,?,?,?,?,?,?)";
+    }
 
-    public static final String UPDATE_SQL = "UPDATE " + TABLE_NAME + " SET " +
+    static String updateSql(String tableName) {
+        return "UPDATE " + tableName + " SET " +
             COLUMN_NAME_TIMESTAMP + "=?" + Helper.COMMA_SEP +
             COLUMN_NAME_LATITUDE  + "=?" + Helper.COMMA_SEP +
             COLUMN_NAME_LONGITUD  + "=?" + Helper.COMMA_SEP +
@@ -68,67 +72,116 @@ public class LocationTable {
             COLUMN_NAME_EVENT + "=?" + Helper.COMMA_SEP +
             COLUMN_NAME_SPEED     + "=? WHERE " +
             COLUMN_NAME_TIMESTAMP + "=?";
+    }
+
+    public static final int DEFAULT_GROUP_COMMIT_ROWS = LocationWriteBuffer.DEFAULT_MAX_ROWS;
+    public static final int DEFAULT_GROUP_COMMIT_AGE = (int)(LocationWriteBuffer.DEFAULT_MAX_AGE / 1000); // seconds
 
     private static final String TIMESTAMP_WHERE_CONDITION = COLUMN_NAME_TIMESTAMP + " = ?";
 
+    private static final Metrics.Histogram sSaveTime = Metrics.histogram("sqlite.save");
+    private static final Metrics.Histogram sFlushTime = Metrics.histogram("sqlite.flush");
+    private static final Metrics.Counter sFlushedRows = Metrics.counter("sqlite.flush.rows");
+
     private static ContentValues sUpdateValues = new ContentValues(1);
     private static String[] sUpdateValuesValues = new String[1];
     private static ContentValues sInsertValues = new ContentValues(7);
     private static SQLiteStatement sInsertStatement = null;
     private static SQLiteStatement sUpdateStatement = null;
+    private static String sStatementShard = null;
     private static LocatrackLocation sLastInsertedLocation = null;
+    private static LocationWriteBuffer sWriteBuffer = null;
+    // Timestamp range of the buffered rows, read without the lock. 0 when nothing is buffered.
+    private static volatile long sBufferedMin = 0;
+    private static volatile long sBufferedMax = 0;
 
     public static LocatrackLocation loadFromCursor(Cursor cursor) {
-        LocatrackLocation location = new LocatrackLocation(CACHED_LOCATION_PROVIDER);
-        location.setTime(cursor.getLong(cursor.getColumnIndex(COLUMN_NAME_TIMESTAMP)));
-        location.setLatitude(cursor.getDouble(cursor.getColumnIndex(COLUMN_NAME_LATITUDE)));
-        location.setLongitude(cursor.getDouble(cursor.getColumnIndex(COLUMN_NAME_LONGITUD)));
-        location.setAltitude(cursor.getDouble(cursor.getColumnIndex(COLUMN_NAME_ALTITUDE)));
-        location.setAccuracy(cursor.getFloat(cursor.getColumnIndex(COLUMN_NAME_ACCURACY)));
-        location.setSpeed(cursor.getFloat(cursor.getColumnIndex(COLUMN_NAME_SPEED)));
-
-        //location.uploadTime = cursor.getLong(cursor.getColumnIndex(COLUMN_NAME_UPLOAD_DATE));
-        location.batteryLevel = cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_BATTERY_LEVEL));
-        location.event = cursor.getString(cursor.getColumnIndex(COLUMN_NAME_EVENT));
+        return new LocationRowMapper(cursor).load(cursor);
+    }
 
-        return location;
+    /**
+     * Returns a FROM source that only reads the monthly shards overlapping the given range.
+     */
+    public static String getSource(long startTimestamp, long endTimestamp) {
+        return LocationPartitions.source(Helper.getInstance().getWritableDatabase(), startTimestamp,
+                endTimestamp);
     }
 
     public static LocationSet getAllFromDate(long date) {
+        flushPendingWrites(date, Long.MAX_VALUE);
         Helper helper = Helper.getInstance();
         sUpdateValuesValues[0] = String.valueOf(date);
-        Cursor cursor = helper.getReadableDatabase().query(TABLE_NAME, null,
+        Cursor cursor = helper.getReaderDatabase().query(getSource(date, Long.MAX_VALUE), null,
                 COLUMN_NAME_TIMESTAMP + " > ?", sUpdateValuesValues, null, null, COLUMN_NAME_TIMESTAMP, null);
         return new DatabaseLocationSet(cursor);
     }
 
     public static void setUploadDate(Location location) {
+        flushPendingWrites(location.getTime(), location.getTime());
         Helper helper = Helper.getInstance();
         SQLiteDatabase writable = helper.getWritableDatabase();
+        String shard = LocationPartitions.findShard(writable, location.getTime());
+        if(shard == null) {
+            return;
+        }
         sUpdateValues.put(COLUMN_NAME_UPLOAD_DATE, System.currentTimeMillis());
         sUpdateValuesValues[0] = String.valueOf(location.getTime());
-        writable.update(TABLE_NAME, sUpdateValues, TIMESTAMP_WHERE_CONDITION, sUpdateValuesValues);
+        writable.update(shard, sUpdateValues, TIMESTAMP_WHERE_CONDITION, sUpdateValuesValues);
     }
 
+    /**
+     * The newest row, the buffered tail if there is one.
+     */
     public static LocatrackLocation getLast() {
-        Helper helper = Helper.getInstance();
-        Cursor cursor = helper.getReadableDatabase().query(TABLE_NAME, null, null, null, null,
-                null, COLUMN_NAME_TIMESTAMP + " DESC", "1");
-        if(cursor != null) {
-            try	{
-                if(cursor.moveToFirst()) {
-                    return loadFromCursor(cursor);
+        if(sBufferedMax != 0) {
+            synchronized (LocationTable.class) {
+                if(sWriteBuffer != null && !sWriteBuffer.isEmpty()) {
+                    return sWriteBuffer.getTail();
                 }
             }
-            finally	{
-                cursor.close();
+        }
+        Helper helper = Helper.getInstance();
+        List<String> shards = LocationPartitions.getShards(helper.getWritableDatabase());
+        for(int i = shards.size() - 1; i >= 0; i--) {
+            Cursor cursor = helper.getReaderDatabase().query(shards.get(i), null, null, null, null,
+                    null, COLUMN_NAME_TIMESTAMP + " DESC", "1");
+            if(cursor != null) {
+                try	{
+                    if(cursor.moveToFirst()) {
+                        return loadFromCursor(cursor);
+                    }
+                }
+                finally	{
+                    cursor.close();
+                }
             }
         }
         return null;
     }
 
+    /**
+     * Drops the monthly shards older than the given timestamp, rows of the month that contains
+     * the timestamp are kept.
+     *
+     * @return the number of months removed.
+     */
+    public static synchronized int dropBefore(long timestamp) {
+        flushWriteBuffer();
+        return LocationPartitions.dropBefore(Helper.getInstance().getWritableDatabase(), timestamp);
+    }
+
+    /**
+     * Same as {@link #dropBefore(long)} but copies the shards to the given database file first.
+     */
+    public static synchronized int archiveBefore(long timestamp, File archiveFile) {
+        flushWriteBuffer();
+        return LocationPartitions.archiveBefore(Helper.getInstance().getWritableDatabase(), timestamp,
+                archiveFile);
+    }
+
 
     public static synchronized long saveToDatabase(LocatrackLocation location, float minDistance) {
+        long start = System.nanoTime();
 
         if(sLastInsertedLocation == null) {
             sLastInsertedLocation = getLast();
@@ -136,12 +189,37 @@ public class LocationTable {
 
         long c = 1;
 
+        String shard = LocationPartitions.shardName(location.getTime());
 
+        // Updates move the row timestamp, never move it out of its monthly shard.
         boolean update = (TextUtils.isEmpty(location.event)) && (sLastInsertedLocation != null) &&
                 TextUtils.isEmpty(sLastInsertedLocation.event)
-                && (sLastInsertedLocation.distanceTo(location) < minDistance);
+                && (sLastInsertedLocation.distanceTo(location) < minDistance)
+                && shard.equals(LocationPartitions.shardName(sLastInsertedLocation.getTime()));
 
-        if(sInsertStatement != null) {
+        if(sInsertStatement != null && !shard.equals(sStatementShard)) {
+            compileStatements(location.getTime());
+        }
+
+        if(sWriteBuffer != null && sInsertStatement != null &&
+                (!update || sWriteBuffer.isTailBuffered(sLastInsertedLocation.getTime()))) {
+            if(update) {
+                sWriteBuffer.updateTail(location);
+                sLastInsertedLocation.setTime(location.getTime());
+            } else {
+                if(sWriteBuffer.isFull()) {
+                    flushWriteBuffer();
+                }
+                sWriteBuffer.append(location);
+                sLastInsertedLocation = location;
+            }
+
+            if(sWriteBuffer.shouldFlush()) {
+                flushWriteBuffer();
+            } else {
+                updateBufferedRange();
+            }
+        } else if(sInsertStatement != null) {
             SQLiteStatement statement;
             if(update) {
                 sUpdateStatement.bindLong(1, location.getTime());
@@ -186,14 +264,15 @@ public class LocationTable {
 
             Helper helper = Helper.getInstance();
             SQLiteDatabase db = helper.getWritableDatabase();
+            shard = LocationPartitions.ensureShard(db, location.getTime());
 
             if(update) {
                 sUpdateValuesValues[0] = String.valueOf(sLastInsertedLocation.getTime());
-                c = db.updateWithOnConflict(TABLE_NAME, sInsertValues, TIMESTAMP_WHERE_CONDITION,
+                c = db.updateWithOnConflict(shard, sInsertValues, TIMESTAMP_WHERE_CONDITION,
                         sUpdateValuesValues, SQLiteDatabase.CONFLICT_IGNORE);
                 sLastInsertedLocation.setTime(location.getTime());
             } else {
-                c = db.insertWithOnConflict(TABLE_NAME, null, sInsertValues, SQLiteDatabase.CONFLICT_IGNORE);
+                c = db.insertWithOnConflict(shard, null, sInsertValues, SQLiteDatabase.CONFLICT_IGNORE);
                 if(c > 0) {
                     sLastInsertedLocation = location;
                 }
@@ -204,17 +283,119 @@ public class LocationTable {
             if(Logger.DEBUG) Logger.debug(TAG, "Location %s %d", update ? "updated" : "inserted", c);
         }
 
+        sSaveTime.recordSince(start);
         return c;
     }
 
-    public static synchronized void prepareDmlStatements() {
-        Helper helper = Helper.getInstance();
-        SQLiteDatabase db = helper.getWritableDatabase();
-        if(sInsertStatement == null) {
-            sInsertStatement = db.compileStatement(INSERT_SQL);
+    /**
+     * Enables group commit: inserted rows are buffered and written in a single transaction
+     * when maxRows rows are pending, the oldest one is maxAge millis old or an event row arrives.
+     */
+    public static synchronized void enableGroupCommit(int maxRows, long maxAge) {
+        flushWriteBuffer();
+        sWriteBuffer = new LocationWriteBuffer(maxRows, maxAge);
+    }
+
+    public static synchronized void disableGroupCommit() {
+        flushWriteBuffer();
+        sWriteBuffer = null;
+    }
+
+    public static synchronized long getGroupCommitMaxAge() {
+        return sWriteBuffer != null ? sWriteBuffer.getMaxAge() : 0;
+    }
+
+    /**
+     * Writes buffered rows, if any.
+     */
+    public static synchronized int flushPendingWrites() {
+        return flushWriteBuffer();
+    }
+
+    /**
+     * Writes the buffered rows if any of them is in the given range, must be called before
+     * reading the range. Reads of other ranges neither wait for the writer nor commit for it.
+     */
+    public static void flushPendingWrites(long startTimestamp, long endTimestamp) {
+        long max = sBufferedMax;
+        if(max != 0 && max >= startTimestamp && sBufferedMin <= endTimestamp) {
+            flushPendingWrites();
+        }
+    }
+
+    private static int flushWriteBuffer() {
+        if(sWriteBuffer == null || sWriteBuffer.isEmpty()) {
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        SQLiteDatabase db = Helper.getInstance().getWritableDatabase();
+        SQLiteStatement statement = sInsertStatement;
+        if(statement == null) {
+            statement = db.compileStatement(insertSql(sStatementShard != null ? sStatementShard :
+                    LocationPartitions.ensureShard(db, System.currentTimeMillis())));
+        }
+        int rows = sWriteBuffer.flush(db, statement);
+        updateBufferedRange();
+        sFlushTime.recordSince(start);
+        sFlushedRows.add(rows);
+        return rows;
+    }
+
+    private static void updateBufferedRange() {
+        if(sWriteBuffer == null || sWriteBuffer.isEmpty()) {
+            sBufferedMax = 0;
+            sBufferedMin = 0;
+        } else {
+            // Min first, readers only look at it once max is set.
+            sBufferedMin = sWriteBuffer.getMinTimestamp();
+            sBufferedMax = sWriteBuffer.getMaxTimestamp();
         }
-        if(sUpdateStatement == null) {
-            sUpdateStatement = db.compileStatement(UPDATE_SQL);
+    }
+
+    /**
+     * Compiles the insert and update statements for the shard of the given timestamp. Buffered
+     * rows belong to the previous shard, so they are written first.
+     */
+    private static void compileStatements(long timestamp) {
+        flushWriteBuffer();
+
+        SQLiteDatabase db = Helper.getInstance().getWritableDatabase();
+        String shard = LocationPartitions.ensureShard(db, timestamp);
+        if(sInsertStatement != null) {
+            sInsertStatement.close();
+        }
+        if(sUpdateStatement != null) {
+            sUpdateStatement.close();
+        }
+        sInsertStatement = db.compileStatement(insertSql(shard));
+        sUpdateStatement = db.compileStatement(updateSql(shard));
+        sStatementShard = shard;
+
+        if(Logger.DEBUG) Logger.debug(TAG, "Statements compiled for %s", shard);
+    }
+
+    /**
+     * Writes the buffered rows and forgets the compiled statements and the last inserted
+     * location, needed before the database file is replaced.
+     */
+    static synchronized void resetStatements() {
+        flushWriteBuffer();
+        if(sInsertStatement != null) {
+            sInsertStatement.close();
+            sInsertStatement = null;
+        }
+        if(sUpdateStatement != null) {
+            sUpdateStatement.close();
+            sUpdateStatement = null;
+        }
+        sStatementShard = null;
+        sLastInsertedLocation = null;
+    }
+
+    public static synchronized void prepareDmlStatements() {
+        if(sInsertStatement == null || sUpdateStatement == null) {
+            compileStatements(System.currentTimeMillis());
         }
     }
 
@@ -225,8 +406,7 @@ public class LocationTable {
             if(!db.inTransaction()) {
                 db.beginTransaction();
             }
-            sInsertStatement = db.compileStatement(INSERT_SQL);
-            sUpdateStatement = db.compileStatement(UPDATE_SQL);
+            compileStatements(System.currentTimeMillis());
         }
     }
 
@@ -234,12 +414,16 @@ public class LocationTable {
         Helper helper = Helper.getInstance();
         SQLiteDatabase db = helper.getWritableDatabase();
         if(sInsertStatement != null) {
+            flushWriteBuffer();
             if(db.inTransaction()) {
                 db.setTransactionSuccessful();
                 db.endTransaction();
             }
+            sInsertStatement.close();
+            sUpdateStatement.close();
             sInsertStatement = null;
             sUpdateStatement = null;
+            sStatementShard = null;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,220 @@
+package com.hmsoft.locationlogger.data.sqlite;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.hmsoft.locationlogger.common.Logger;
+import com.hmsoft.locationlogger.data.LocatrackLocation;
+
+/**
+ * Group-commit buffer for location rows. Rows are kept in a preallocated ring and written to
+ * the database in a single transaction when the ring is full, when the oldest row is older
+ * than the max age or when an event row is appended.
+ *
+ * Not thread safe, callers must synchronize (see {@link LocationTable}).
+ */
+class LocationWriteBuffer {
+
+    private static final String TAG = "LocationWriteBuffer";
+
+    public static final int DEFAULT_MAX_ROWS = 16;
+    public static final long DEFAULT_MAX_AGE = 1000 * 60 * 2;
+
+    private final int mCapacity;
+    private final long mMaxAge;
+
+    private final long[] mTimestamps;
+    private final double[] mLatitudes;
+    private final double[] mLongitudes;
+    private final double[] mAltitudes;
+    private final float[] mAccuracies;
+    private final float[] mSpeeds;
+    private final int[] mBatteryLevels;
+    private final long[] mUploadTimes;
+    private final String[] mEvents;
+
+    private int mHead = 0;
+    private int mSize = 0;
+    private long mFirstRowTime = 0;
+
+    LocationWriteBuffer(int capacity, long maxAge) {
+        mCapacity = capacity > 0 ? capacity : DEFAULT_MAX_ROWS;
+        mMaxAge = maxAge;
+
+        mTimestamps = new long[mCapacity];
+        mLatitudes = new double[mCapacity];
+        mLongitudes = new double[mCapacity];
+        mAltitudes = new double[mCapacity];
+        mAccuracies = new float[mCapacity];
+        mSpeeds = new float[mCapacity];
+        mBatteryLevels = new int[mCapacity];
+        mUploadTimes = new long[mCapacity];
+        mEvents = new String[mCapacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean isFull() {
+        return mSize == mCapacity;
+    }
+
+    public long getMaxAge() {
+        return mMaxAge;
+    }
+
+    /**
+     * Oldest buffered timestamp, rows are not always appended in time order.
+     */
+    public long getMinTimestamp() {
+        long min = Long.MAX_VALUE;
+        for (int c = 0; c < mSize; c++) {
+            min = Math.min(min, mTimestamps[(mHead + c) % mCapacity]);
+        }
+        return min;
+    }
+
+    public long getMaxTimestamp() {
+        long max = Long.MIN_VALUE;
+        for (int c = 0; c < mSize; c++) {
+            max = Math.max(max, mTimestamps[(mHead + c) % mCapacity]);
+        }
+        return max;
+    }
+
+    /**
+     * @return a copy of the last appended row, null if the buffer is empty.
+     */
+    public LocatrackLocation getTail() {
+        if (mSize == 0) {
+            return null;
+        }
+        int i = tailIndex();
+        LocatrackLocation location = new LocatrackLocation(LocationRowMapper.CACHED_LOCATION_PROVIDER);
+        location.setTime(mTimestamps[i]);
+        location.setLatitude(mLatitudes[i]);
+        location.setLongitude(mLongitudes[i]);
+        location.setAltitude(mAltitudes[i]);
+        location.setAccuracy(mAccuracies[i]);
+        location.setSpeed(mSpeeds[i]);
+        location.batteryLevel = mBatteryLevels[i];
+        location.uploadTime = mUploadTimes[i];
+        location.event = mEvents[i];
+        return location;
+    }
+
+    /**
+     * @return true if the last appended row has not been written yet and has the given timestamp.
+     */
+    public boolean isTailBuffered(long timestamp) {
+        return mSize > 0 && mTimestamps[tailIndex()] == timestamp;
+    }
+
+    public void append(LocatrackLocation location) {
+        if (isFull()) {
+            throw new IllegalStateException("Write buffer full");
+        }
+        if (mSize == 0) {
+            mFirstRowTime = SystemClock.elapsedRealtime();
+        }
+        mSize++;
+        set(tailIndex(), location);
+    }
+
+    /**
+     * Replaces the values of the buffered tail row, same semantics as {@link LocationTable#updateSql(String)}.
+     */
+    public void updateTail(LocatrackLocation location) {
+        set(tailIndex(), location);
+    }
+
+    public boolean shouldFlush() {
+        if (mSize == 0) {
+            return false;
+        }
+        return isFull() || !TextUtils.isEmpty(mEvents[tailIndex()]) ||
+                SystemClock.elapsedRealtime() - mFirstRowTime >= mMaxAge;
+    }
+
+    /**
+     * Writes all buffered rows using the given insert statement in a single transaction.
+     * Rows are kept in the buffer if the transaction fails.
+     *
+     * @return the number of rows written.
+     */
+    public int flush(SQLiteDatabase db, SQLiteStatement insertStatement) {
+        if (mSize == 0) {
+            return 0;
+        }
+
+        boolean ownTransaction = !db.inTransaction();
+        if (ownTransaction) {
+            db.beginTransactionNonExclusive();
+        }
+        try {
+            for (int c = 0; c < mSize; c++) {
+                int i = (mHead + c) % mCapacity;
+                insertStatement.bindLong(1, mTimestamps[i]);
+                insertStatement.bindDouble(2, mLatitudes[i]);
+                insertStatement.bindDouble(3, mLongitudes[i]);
+                insertStatement.bindDouble(4, mAltitudes[i]);
+                insertStatement.bindDouble(5, mAccuracies[i]);
+                insertStatement.bindDouble(6, mSpeeds[i]);
+                insertStatement.bindLong(7, mBatteryLevels[i]);
+                if (mEvents[i] != null) {
+                    insertStatement.bindString(8, mEvents[i]);
+                } else {
+                    insertStatement.bindNull(8);
+                }
+                insertStatement.bindLong(9, mUploadTimes[i]);
+                insertStatement.execute();
+            }
+            if (ownTransaction) {
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            if (ownTransaction) {
+                db.endTransaction();
+            }
+        }
+
+        int count = mSize;
+        clear();
+
+        if (Logger.DEBUG) Logger.debug(TAG, "Flushed %d rows", count);
+
+        return count;
+    }
+
+    private void clear() {
+        for (int c = 0; c < mCapacity; c++) {
+            mEvents[c] = null;
+        }
+        mHead = 0;
+        mSize = 0;
+        mFirstRowTime = 0;
+    }
+
+    private int tailIndex() {
+        return (mHead + mSize - 1) % mCapacity;
+    }
+
+    private void set(int i, LocatrackLocation location) {
+        mTimestamps[i] = location.getTime();
+        mLatitudes[i] = location.getLatitude();
+        mLongitudes[i] = location.getLongitude();
+        mAltitudes[i] = location.getAltitude();
+        mAccuracies[i] = location.getAccuracy();
+        mSpeeds[i] = location.getSpeed();
+        mBatteryLevels[i] = location.batteryLevel;
+        mUploadTimes[i] = location.uploadTime;
+        mEvents[i] = location.event;
+    }
+}
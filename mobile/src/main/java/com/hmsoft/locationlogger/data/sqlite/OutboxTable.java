@@ -0,0 +1,180 @@
+package com.hmsoft.locationlogger.data.sqlite;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+
+/**
+ * Notifications waiting to be sent, appended by the storers and removed by the drain worker once
+ * delivered.
+ */
+public class OutboxTable {
+    public static final String TABLE_NAME = "outbox";
+
+    public static final String COLUMN_NAME_ID = "id";
+    public static final String COLUMN_NAME_TIMESTAMP = "timestamp";
+    public static final String COLUMN_NAME_CHAT_ID = "chatId";
+    public static final String COLUMN_NAME_MESSAGE = "message";
+    public static final String COLUMN_NAME_ATTEMPTS = "attempts";
+    public static final String COLUMN_NAME_NEXT_ATTEMPT = "nextAttempt";
+    public static final String COLUMN_NAME_SMS_SENT = "smsSent";
+
+    public static final String SQL_CREATE_TABLE =
+            "CREATE TABLE " + TABLE_NAME + " (" +
+                    COLUMN_NAME_ID + Helper.TYPE_INTEGER + Helper.TYPE_PRIMARY_KEY + " AUTOINCREMENT" + Helper.COMMA_SEP +
+                    COLUMN_NAME_TIMESTAMP + Helper.TYPE_INTEGER + Helper.COMMA_SEP +
+                    COLUMN_NAME_CHAT_ID + Helper.TYPE_TEXT + Helper.COMMA_SEP +
+                    COLUMN_NAME_MESSAGE + Helper.TYPE_TEXT + Helper.COMMA_SEP +
+                    COLUMN_NAME_ATTEMPTS + Helper.TYPE_INTEGER + " DEFAULT 0" + Helper.COMMA_SEP +
+                    COLUMN_NAME_NEXT_ATTEMPT + Helper.TYPE_INTEGER + " DEFAULT 0" + Helper.COMMA_SEP +
+                    COLUMN_NAME_SMS_SENT + Helper.TYPE_INTEGER + " DEFAULT 0" +
+                    ")";
+
+    private static final String[] QUERY_COLUMNS = new String[] {
+            COLUMN_NAME_ID,
+            COLUMN_NAME_TIMESTAMP,
+            COLUMN_NAME_CHAT_ID,
+            COLUMN_NAME_MESSAGE,
+            COLUMN_NAME_ATTEMPTS,
+            COLUMN_NAME_SMS_SENT
+    };
+
+    public static class Message {
+        public final long id;
+        public final long timestamp;
+        public final String chatId;
+        public final String message;
+        public final int attempts;
+        public final boolean smsSent;
+
+        Message(Cursor cursor) {
+            id = cursor.getLong(0);
+            timestamp = cursor.getLong(1);
+            chatId = cursor.getString(2);
+            message = cursor.getString(3);
+            attempts = cursor.getInt(4);
+            smsSent = cursor.getInt(5) != 0;
+        }
+    }
+
+    /**
+     * @return the id of the new message.
+     */
+    public static long append(String chatId, String message, long timestamp) {
+        ContentValues values = new ContentValues(3);
+        values.put(COLUMN_NAME_TIMESTAMP, timestamp);
+        values.put(COLUMN_NAME_CHAT_ID, chatId);
+        values.put(COLUMN_NAME_MESSAGE, message);
+
+        Helper helper = Helper.getInstance();
+        helper.beginWrite();
+        try {
+            return helper.getWritableDatabase().insert(TABLE_NAME, null, values);
+        } finally {
+            helper.endWrite();
+        }
+    }
+
+    /**
+     * Messages due at the given time, oldest first.
+     */
+    public static ArrayList<Message> getDue(long now, int limit) {
+        return query(COLUMN_NAME_NEXT_ATTEMPT + " <= " + now, limit);
+    }
+
+    /**
+     * Messages not sent by SMS yet, oldest first.
+     */
+    public static ArrayList<Message> getSmsPending(int limit) {
+        return query(COLUMN_NAME_SMS_SENT + " = 0", limit);
+    }
+
+    private static ArrayList<Message> query(String selection, int limit) {
+        ArrayList<Message> messages = new ArrayList<>();
+
+        Helper helper = Helper.getInstance();
+        Cursor cursor = helper.getWritableDatabase().query(TABLE_NAME, QUERY_COLUMNS,
+                selection, null, null, null, COLUMN_NAME_ID, String.valueOf(limit));
+
+        if(cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    messages.add(new Message(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * @return the time of the next retry, 0 if the outbox is empty.
+     */
+    public static long getNextAttempt() {
+        Helper helper = Helper.getInstance();
+        Cursor cursor = helper.getWritableDatabase().rawQuery("SELECT MIN(" + COLUMN_NAME_NEXT_ATTEMPT +
+                ") FROM " + TABLE_NAME, null);
+        if(cursor != null) {
+            try {
+                if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                    return Math.max(1, cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return 0;
+    }
+
+    public static long getCount() {
+        Helper helper = Helper.getInstance();
+        return DatabaseUtils.queryNumEntries(helper.getWritableDatabase(), TABLE_NAME);
+    }
+
+    public static void delete(long[] ids) {
+        Helper helper = Helper.getInstance();
+        helper.beginWrite();
+        try {
+            helper.getWritableDatabase().delete(TABLE_NAME, COLUMN_NAME_ID + " IN (" + join(ids) + ")", null);
+        } finally {
+            helper.endWrite();
+        }
+    }
+
+    public static void setFailed(long[] ids, long nextAttempt) {
+        Helper helper = Helper.getInstance();
+        helper.beginWrite();
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_ATTEMPTS + " = " + COLUMN_NAME_ATTEMPTS +
+                    " + 1, " + COLUMN_NAME_NEXT_ATTEMPT + " = " + nextAttempt + " WHERE " + COLUMN_NAME_ID +
+                    " IN (" + join(ids) + ")");
+        } finally {
+            helper.endWrite();
+        }
+    }
+
+    public static void setSmsSent(long id) {
+        Helper helper = Helper.getInstance();
+        helper.beginWrite();
+        try {
+            helper.getWritableDatabase().execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_SMS_SENT +
+                    " = 1 WHERE " + COLUMN_NAME_ID + " = " + id);
+        } finally {
+            helper.endWrite();
+        }
+    }
+
+    private static String join(long[] ids) {
+        StringBuilder sb = new StringBuilder(ids.length * 8);
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) sb.append(Helper.COMMA_SEP);
+            sb.append(ids[i]);
+        }
+        return sb.toString();
+    }
+}
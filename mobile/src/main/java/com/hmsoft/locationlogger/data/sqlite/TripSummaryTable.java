@@ -0,0 +1,185 @@
+package com.hmsoft.locationlogger.data.sqlite;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One row per trip with the start/end coordinates and addresses copied in, so listing trips
+ * never joins location or geocoder rows. Addresses are refreshed when the geocoder stores an
+ * address for a trip endpoint.
+ */
+public class TripSummaryTable {
+    public static final String TABLE_NAME = "trip_summary";
+
+    public static final String COLUMN_NAME_ID = "id";
+    public static final String COLUMN_NAME_DISTANCE = "distance";
+    public static final String COLUMN_NAME_START_TIMESTAMP = "startTimestamp";
+    public static final String COLUMN_NAME_START_LAT = "startLat";
+    public static final String COLUMN_NAME_START_LONG = "startLong";
+    public static final String COLUMN_NAME_START_GEO_LAT = "startGeoLat";
+    public static final String COLUMN_NAME_START_GEO_LONG = "startGeoLong";
+    public static final String COLUMN_NAME_START_ADDRESS = "startAddress";
+    public static final String COLUMN_NAME_END_TIMESTAMP = "endTimestamp";
+    public static final String COLUMN_NAME_END_LAT = "endLat";
+    public static final String COLUMN_NAME_END_LONG = "endLong";
+    public static final String COLUMN_NAME_END_GEO_LAT = "endGeoLat";
+    public static final String COLUMN_NAME_END_GEO_LONG = "endGeoLong";
+    public static final String COLUMN_NAME_END_ADDRESS = "endAddress";
+
+    // Same rounding as the geocoder cache keys.
+    private static final double ROUND = 1000.0;
+
+    public static final String SQL_CREATE_TABLE =
+            "CREATE TABLE " + TABLE_NAME + " (" +
+                    COLUMN_NAME_ID + Helper.TYPE_INTEGER + Helper.TYPE_PRIMARY_KEY + Helper.COMMA_SEP +
+                    COLUMN_NAME_DISTANCE + Helper.TYPE_REAL + Helper.COMMA_SEP +
+                    COLUMN_NAME_START_TIMESTAMP + Helper.TYPE_INTEGER + Helper.COMMA_SEP +
+                    COLUMN_NAME_START_LAT + Helper.TYPE_REAL + Helper.COMMA_SEP +
+                    COLUMN_NAME_START_LONG + Helper.TYPE_REAL + Helper.COMMA_SEP +
+                    COLUMN_NAME_START_GEO_LAT + Helper.TYPE_REAL + Helper.COMMA_SEP +
+                    COLUMN_NAME_START_GEO_LONG + Helper.TYPE_REAL + Helper.COMMA_SEP +
+                    COLUMN_NAME_START_ADDRESS + Helper.TYPE_TEXT + Helper.COMMA_SEP +
+                    COLUMN_NAME_END_TIMESTAMP + Helper.TYPE_INTEGER + Helper.COMMA_SEP +
+                    COLUMN_NAME_END_LAT + Helper.TYPE_REAL + Helper.COMMA_SEP +
+                    COLUMN_NAME_END_LONG + Helper.TYPE_REAL + Helper.COMMA_SEP +
+                    COLUMN_NAME_END_GEO_LAT + Helper.TYPE_REAL + Helper.COMMA_SEP +
+                    COLUMN_NAME_END_GEO_LONG + Helper.TYPE_REAL + Helper.COMMA_SEP +
+                    COLUMN_NAME_END_ADDRESS + Helper.TYPE_TEXT +
+                    ")";
+
+    public static final String[] SQL_CREATE_INDICES = new String[]{
+            "CREATE INDEX idx_trip_summary_end ON " + TABLE_NAME + " (" + COLUMN_NAME_END_TIMESTAMP + ")",
+            "CREATE INDEX idx_trip_summary_start_geo ON " + TABLE_NAME + " (" + COLUMN_NAME_START_GEO_LAT +
+                    Helper.COMMA_SEP + COLUMN_NAME_START_GEO_LONG + ")",
+            "CREATE INDEX idx_trip_summary_end_geo ON " + TABLE_NAME + " (" + COLUMN_NAME_END_GEO_LAT +
+                    Helper.COMMA_SEP + COLUMN_NAME_END_GEO_LONG + ")"
+    };
+
+    /**
+     * Fills the table from existing trips, same joins as the old trip view, run once on upgrade.
+     */
+    public static final String SQL_MIGRATE = "INSERT OR REPLACE INTO " + TABLE_NAME + " SELECT " +
+            "t.id, t.distance, t.startLocation, ls.latitude, ls.longitude, ROUND(ls.latitude, 3), " +
+            "ROUND(ls.longitude, 3), gs.address, t.endLocation, le.latitude, le.longitude, " +
+            "ROUND(le.latitude, 3), ROUND(le.longitude, 3), ge.address " +
+            "FROM trip AS t LEFT JOIN location AS ls ON ls.timestamp=t.startLocation LEFT JOIN geocoder AS gs " +
+            "ON gs.latitude = ROUND(ls.latitude, 3) AND gs.longitude = ROUND(ls.longitude, 3) " +
+            "LEFT JOIN location AS le ON le.timestamp=t.endLocation LEFT JOIN geocoder AS ge " +
+            "ON ge.latitude = ROUND(le.latitude, 3) AND ge.longitude = ROUND(le.longitude, 3)";
+
+    private static final String LIST_QUERY = "SELECT " + COLUMN_NAME_ID + Helper.COMMA_SEP +
+            "COALESCE(" + COLUMN_NAME_START_ADDRESS + ", 'Trip Start #' || " + COLUMN_NAME_ID + ")" + Helper.COMMA_SEP +
+            "COALESCE(" + COLUMN_NAME_END_ADDRESS + ", 'Trip End #' || " + COLUMN_NAME_ID + ")" + Helper.COMMA_SEP +
+            COLUMN_NAME_END_TIMESTAMP + Helper.COMMA_SEP + COLUMN_NAME_DISTANCE + Helper.COMMA_SEP +
+            COLUMN_NAME_END_LAT + Helper.COMMA_SEP + COLUMN_NAME_END_LONG +
+            " FROM " + TABLE_NAME + " ORDER BY " + COLUMN_NAME_END_TIMESTAMP + " DESC";
+
+    private static final String[] updateValues = new String[2];
+    private static final ContentValues addressValues = new ContentValues(1);
+
+    static void insert(SQLiteDatabase db, long id, float distance, long startTimestamp, double[] start,
+                       long endTimestamp, double[] end) {
+        ContentValues values = new ContentValues(14);
+        values.put(COLUMN_NAME_ID, id);
+        values.put(COLUMN_NAME_DISTANCE, distance);
+        values.put(COLUMN_NAME_START_TIMESTAMP, startTimestamp);
+        values.put(COLUMN_NAME_END_TIMESTAMP, endTimestamp);
+        if (start != null) {
+            double lat = round(start[0]);
+            double lon = round(start[1]);
+            values.put(COLUMN_NAME_START_LAT, start[0]);
+            values.put(COLUMN_NAME_START_LONG, start[1]);
+            values.put(COLUMN_NAME_START_GEO_LAT, lat);
+            values.put(COLUMN_NAME_START_GEO_LONG, lon);
+            values.put(COLUMN_NAME_START_ADDRESS, GeocoderTable.getAddress(lat, lon));
+        }
+        if (end != null) {
+            double lat = round(end[0]);
+            double lon = round(end[1]);
+            values.put(COLUMN_NAME_END_LAT, end[0]);
+            values.put(COLUMN_NAME_END_LONG, end[1]);
+            values.put(COLUMN_NAME_END_GEO_LAT, lat);
+            values.put(COLUMN_NAME_END_GEO_LONG, lon);
+            values.put(COLUMN_NAME_END_ADDRESS, GeocoderTable.getAddress(lat, lon));
+        }
+        db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Sets the address of every trip that starts or ends in the given geocoder cell.
+     *
+     * @return the number of trip starts and ends updated.
+     */
+    static synchronized int updateAddress(SQLiteDatabase db, double latitude, double longitude, String address) {
+        updateValues[0] = String.valueOf(latitude);
+        updateValues[1] = String.valueOf(longitude);
+
+        addressValues.clear();
+        addressValues.put(COLUMN_NAME_START_ADDRESS, address);
+        int updated = db.update(TABLE_NAME, addressValues, COLUMN_NAME_START_GEO_LAT + " = ? AND " +
+                COLUMN_NAME_START_GEO_LONG + " = ?", updateValues);
+
+        addressValues.clear();
+        addressValues.put(COLUMN_NAME_END_ADDRESS, address);
+        updated += db.update(TABLE_NAME, addressValues, COLUMN_NAME_END_GEO_LAT + " = ? AND " +
+                COLUMN_NAME_END_GEO_LONG + " = ?", updateValues);
+        return updated;
+    }
+
+    /**
+     * Like {@link #updateAddress}, for an address already in the geocoder cache.
+     */
+    public static int setAddress(double latitude, double longitude, String address) {
+        Helper helper = Helper.getInstance();
+        helper.beginWrite();
+        try {
+            return updateAddress(helper.getWritableDatabase(), latitude, longitude, address);
+        } finally {
+            helper.endWrite();
+        }
+    }
+
+    /**
+     * Columns: id, startAddress, endAddress, endTimestamp, distance, endLat, endLong. Newest first.
+     */
+    static Cursor query(int limit) {
+        Helper helper = Helper.getInstance();
+        String sql = limit > 0 ? LIST_QUERY + " LIMIT " + limit : LIST_QUERY;
+        return helper.getReaderDatabase().rawQuery(sql, null);
+    }
+
+    /**
+     * Geocoder cells of trip starts and ends that have no address, newest trips first.
+     *
+     * @return latitude, longitude pairs.
+     */
+    public static List<double[]> getCellsWithoutAddress(int limit) {
+        Helper helper = Helper.getInstance();
+        Cursor cursor = helper.getReaderDatabase().rawQuery("SELECT lat, lon FROM (" +
+                "SELECT " + COLUMN_NAME_START_GEO_LAT + " AS lat, " + COLUMN_NAME_START_GEO_LONG + " AS lon, " +
+                COLUMN_NAME_END_TIMESTAMP + " AS ts FROM " + TABLE_NAME + " WHERE " + COLUMN_NAME_START_ADDRESS +
+                " IS NULL AND " + COLUMN_NAME_START_GEO_LAT + " IS NOT NULL UNION ALL " +
+                "SELECT " + COLUMN_NAME_END_GEO_LAT + ", " + COLUMN_NAME_END_GEO_LONG + ", " +
+                COLUMN_NAME_END_TIMESTAMP + " FROM " + TABLE_NAME + " WHERE " + COLUMN_NAME_END_ADDRESS +
+                " IS NULL AND " + COLUMN_NAME_END_GEO_LAT + " IS NOT NULL) " +
+                "GROUP BY lat, lon ORDER BY MAX(ts) DESC LIMIT " + limit, null);
+
+        List<double[]> cells = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                cells.add(new double[]{cursor.getDouble(0), cursor.getDouble(1)});
+            }
+        } finally {
+            cursor.close();
+        }
+        return cells;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * ROUND) / ROUND;
+    }
+}
@@ -3,13 +3,21 @@ package com.hmsoft.locationlogger.data.sqlite;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.location.Location;
 import android.text.TextUtils;
 
 import com.hmsoft.locationlogger.common.Gpx;
+import com.hmsoft.locationlogger.common.GpxWriter;
+import com.hmsoft.locationlogger.common.TrackCodec;
 import com.hmsoft.locationlogger.common.Utils;
-import com.hmsoft.locationlogger.data.LocationSet;
+import com.hmsoft.locationlogger.data.LocationCursor;
 import com.hmsoft.locationlogger.data.LocatrackLocation;
+import com.hmsoft.locationlogger.data.PrimitiveLocationSet;
+import com.hmsoft.locationlogger.data.TripStatistics;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.TimeZone;
@@ -19,17 +27,34 @@ public class TripTable {
     public static final String VIEW_NAME = TABLE_NAME + "View";
     public static final String DETAIL_VIEW_NAME = TABLE_NAME + "DetailView";
 
+    public static final String COLUMN_NAME_MAX_SPEED = "maxSpeed";
+    public static final String COLUMN_NAME_AVG_SPEED = "avgSpeed";
+    public static final String COLUMN_NAME_MAX_ALTITUDE = "maxAltitude";
+    public static final String COLUMN_NAME_MIN_ALTITUDE = "minAltitude";
+    public static final String COLUMN_NAME_POINT_COUNT = "pointCount";
+    public static final String COLUMN_NAME_MOVING_TIME = "movingTime";
+    public static final String COLUMN_NAME_IDLE_TIME = "idleTime";
+    public static final String COLUMN_NAME_ELEVATION_GAIN = "elevationGain";
+    public static final String COLUMN_NAME_ELEVATION_LOSS = "elevationLoss";
+
+    private static final String STATISTICS_COLUMNS =
+            COLUMN_NAME_MAX_SPEED + Helper.TYPE_REAL + Helper.COMMA_SEP +
+            COLUMN_NAME_AVG_SPEED + Helper.TYPE_REAL + Helper.COMMA_SEP +
+            COLUMN_NAME_MAX_ALTITUDE + Helper.TYPE_REAL + Helper.COMMA_SEP +
+            COLUMN_NAME_MIN_ALTITUDE + Helper.TYPE_REAL + Helper.COMMA_SEP +
+            COLUMN_NAME_POINT_COUNT + Helper.TYPE_INTEGER + Helper.COMMA_SEP +
+            COLUMN_NAME_MOVING_TIME + Helper.TYPE_INTEGER + Helper.COMMA_SEP +
+            COLUMN_NAME_IDLE_TIME + Helper.TYPE_INTEGER + Helper.COMMA_SEP +
+            COLUMN_NAME_ELEVATION_GAIN + Helper.TYPE_REAL + Helper.COMMA_SEP +
+            COLUMN_NAME_ELEVATION_LOSS + Helper.TYPE_REAL;
+
     public static final String SQL_CREATE_TABLE = "CREATE TABLE " + TABLE_NAME +
-            " (id INTEGER PRIMARY KEY, startLocation INTEGER, endLocation INTEGER, distance INTEGER)";
+            " (id INTEGER PRIMARY KEY, startLocation INTEGER, endLocation INTEGER, distance INTEGER, " +
+            STATISTICS_COLUMNS + ")";
+
+    public static final String[] SQL_ADD_STATISTICS_COLUMNS = STATISTICS_COLUMNS.split(Helper.COMMA_SEP);
 
-    public static final String SQL_CREATE_VIEW = "CREATE VIEW " + VIEW_NAME + " AS " +
-            "SELECT t.id,t.distance,t.startLocation AS startTimestamp, COALESCE(gs.address, 'Trip Start #' || t.id)  " +
-            "AS startAddress, ls.latitude AS startLat,ls.longitude AS startLong,t.endLocation AS endTimestamp," +
-            "COALESCE(ge.address, 'Trip End #' || t.id)  AS endAddress,le.latitude AS endLat,le.longitude AS endLong " +
-            "FROM trip AS t JOIN location AS ls ON ls.timestamp=t.startLocation LEFT JOIN geocoder AS gs ON gs.latitude = ROUND(ls.latitude, 3) " +
-            "AND gs.longitude = ROUND(ls.longitude, 3) JOIN location AS le ON le.timestamp=t.endLocation " +
-            "LEFT JOIN geocoder AS ge ON ge.latitude = ROUND(le.latitude, 3) AND ge.longitude = ROUND(le.longitude, 3) " +
-            "ORDER BY t.endLocation DESC";
+    public static final String SQL_DROP_VIEW = "DROP VIEW IF EXISTS " + VIEW_NAME;
 
     public static final String SQL_CREATE_DETAIL_VIEW = "CREATE VIEW " + DETAIL_VIEW_NAME + " AS SELECT t.id, l.timestamp, " +
             "l.latitude, l.longitude, l.altitude, l.accuracy, l.speed, l.batteryLevel, l.event FROM trip AS t JOIN " +
@@ -37,8 +62,20 @@ public class TripTable {
 
     private static final String[] locationSelection = new String[2];
     private static final String[] tripSelection = new String[1];
-    private static final String[] locationColumns = new String[1];
-    private static final String[] tripColumns = new String[3];
+    private static final String[] tripColumns = new String[] {
+            "startLocation",
+            "endLocation",
+            "distance",
+            COLUMN_NAME_POINT_COUNT,
+            COLUMN_NAME_MAX_SPEED,
+            COLUMN_NAME_AVG_SPEED,
+            COLUMN_NAME_MAX_ALTITUDE,
+            COLUMN_NAME_MIN_ALTITUDE,
+            COLUMN_NAME_MOVING_TIME,
+            COLUMN_NAME_IDLE_TIME,
+            COLUMN_NAME_ELEVATION_GAIN,
+            COLUMN_NAME_ELEVATION_LOSS
+    };
 
     //public interface
 
@@ -79,31 +116,27 @@ public class TripTable {
             this.id = id;
         }
 
-        public LocationSet getLocations() {
+        public DatabaseLocationSet getLocations() {
             Helper helper = Helper.getInstance();
-            SQLiteDatabase database = helper.getReadableDatabase();
             tripSelection[0] = this.id;
-            Cursor cursor = database.query(DETAIL_VIEW_NAME, null,
-                    "id = ?", tripSelection, null, null, null, null);
-            DatabaseLocationSet locationSet = new DatabaseLocationSet(cursor);
-            locationSet.setAutoClose(false);
-            return locationSet;
+            Cursor cursor = helper.getReaderDatabase().query(TABLE_NAME,
+                    new String[]{"startLocation", "endLocation"}, "id = ?", tripSelection,
+                    null, null, null);
+            long start = 0;
+            long end = -1;
+            try {
+                if (cursor.moveToFirst()) {
+                    start = cursor.getLong(0);
+                    end = cursor.getLong(1);
+                }
+            } finally {
+                cursor.close();
+            }
+            return getLocations(start, end);
         }
 
-        public LocationSet getLocations(long startTimestamp, long endTimestamp) {
-            Helper helper = Helper.getInstance();
-            SQLiteDatabase database = helper.getReadableDatabase();
-
-            locationSelection[0] = String.valueOf(startTimestamp);
-            locationSelection[1] = String.valueOf(endTimestamp);
-
-            Cursor cursor = database.query(DETAIL_VIEW_NAME, null,
-                    "timestamp BETWEEN ? AND ?", locationSelection, null, null, null, null);
-
-            DatabaseLocationSet locationSet = new DatabaseLocationSet(cursor);
-            locationSet.setAutoClose(false);
-
-            return locationSet;
+        public DatabaseLocationSet getLocations(long startTimestamp, long endTimestamp) {
+            return queryLocations(startTimestamp, endTimestamp);
         }
 
         @Override
@@ -130,60 +163,50 @@ public class TripTable {
         public final double maxAltitude;
         public final double minAltitude;
         public final int pointNumber;
+        public final String movingTime; // HH:mm:ss
+        public final String idleTime; // HH:mm:ss
+        public final double elevationGain;
+        public final double elevationLoss;
 
+        private final TripStatistics statistics;
         private String objectString = null;
 
+        /**
+         * Creates the trip computing its statistics from the stored points.
+         */
         public static TripDetail createTrip(long startTimeStamp, long endTimeStamp, float distance) {
-            TripDetail trip = new TripDetail(startTimeStamp, endTimeStamp, distance);
-            return trip;
+            return createTrip(startTimeStamp, endTimeStamp, distance,
+                    computeStatistics(startTimeStamp, endTimeStamp));
+        }
+
+        public static TripDetail createTrip(long startTimeStamp, long endTimeStamp, float distance,
+                                            TripStatistics statistics) {
+            return new TripDetail(startTimeStamp, endTimeStamp, distance, statistics);
         }
 
-        private TripDetail(long startTimeStamp, long endTimeStamp, float distance) {
+        private TripDetail(long startTimeStamp, long endTimeStamp, float distance, TripStatistics statistics) {
             super("", "","", null, -1,-1, distance);
             this.startTimeStamp = startTimeStamp;
             this.endTimeStamp = endTimeStamp;
 
             SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss");
-
-            Date date = new Date(endTimeStamp - startTimeStamp);
             format.setTimeZone(TimeZone.getTimeZone("UTC"));
-            this.duration = format.format(date);
-
-            Helper helper = Helper.getInstance();
-
-            String query = "SELECT MAX(" + LocationTable.COLUMN_NAME_SPEED + "), AVG(" + LocationTable.COLUMN_NAME_SPEED +
-                    "), MAX(" + LocationTable.COLUMN_NAME_ALTITUDE + "), MIN(" + LocationTable.COLUMN_NAME_ALTITUDE + "), COUNT(1)  FROM " +
-                    LocationTable.TABLE_NAME + " WHERE " + LocationTable.COLUMN_NAME_TIMESTAMP + " BETWEEN " +
-                    this.startTimeStamp + " AND " + this.endTimeStamp + " AND " + LocationTable.COLUMN_NAME_SPEED + " > 0";
-
-            double maxSpeed = 0;
-            double avgSpeed = 0;
-            double maxAltitude = 0;
-            double minAltitude = 0;
-            int count = 0;
-
-            Cursor cursor = helper.getReadableDatabase().rawQuery(query, null);
-            if (cursor != null) {
-                try {
-                    if (cursor.moveToFirst()) {
-                        count = cursor.getInt(4);
-                        if (count > 0) {
-                            maxSpeed = cursor.getDouble(0) * 3.6;
-                            avgSpeed = cursor.getDouble(1) * 3.6;
-                            maxAltitude = cursor.getDouble(2);
-                            minAltitude = cursor.getDouble(3);
-                        }
-                    }
-                } finally {
-                    cursor.close();
-                }
-            }
+            this.duration = format.format(new Date(endTimeStamp - startTimeStamp));
+            this.movingTime = format.format(new Date(statistics.getMovingTime()));
+            this.idleTime = format.format(new Date(statistics.getIdleTime()));
+
+            this.maxSpeed = statistics.getMaxSpeed() * 3.6;
+            this.avgSpeed = statistics.getAvgSpeed() * 3.6;
+            this.maxAltitude = statistics.getMaxAltitude();
+            this.minAltitude = statistics.getMinAltitude();
+            this.pointNumber = statistics.getCount();
+            this.elevationGain = statistics.getElevationGain();
+            this.elevationLoss = statistics.getElevationLoss();
+            this.statistics = statistics;
+        }
 
-            this.maxSpeed = maxSpeed;
-            this.avgSpeed = avgSpeed;
-            this.maxAltitude = maxAltitude;
-            this.minAltitude = minAltitude;
-            this.pointNumber = count;
+        public TripStatistics getStatistics() {
+            return statistics;
         }
 
         @Override
@@ -196,68 +219,210 @@ public class TripTable {
                         "Avg Speed: " + (Math.round(this.avgSpeed * 100.0) / 100.0) + " (" + (Math.round(constSpeed * 100.0) / 100.0) + ")\n" +
                         "Max Altitude: " + (Math.round(this.maxAltitude * 100.0) / 100.0) + "\n" +
                         "Min Altitude: " + (Math.round(this.minAltitude * 100.0) / 100.0) + "\n" +
+                        "Elevation: +" + Math.round(this.elevationGain) + " -" + Math.round(this.elevationLoss) + "\n" +
+                        "Moving Time: " + this.movingTime + " (Idle: " + this.idleTime + ")\n" +
                         "Points: " + this.pointNumber;
             }
             return objectString;
         }
 
-        public String toGpxString() {
+        /**
+         * Loads all trip points in memory as primitive arrays and closes the database cursor.
+         */
+        public PrimitiveLocationSet getPoints() {
+            DatabaseLocationSet locations;
+            if(TextUtils.isEmpty(this.id)) {
+                locations = this.getLocations(this.startTimeStamp, this.endTimeStamp);
+            } else {
+                locations = this.getLocations();
+            }
+
+            try {
+                return PrimitiveLocationSet.load(locations);
+            } finally {
+                locations.close();
+            }
+        }
+
+        /**
+         * Streams the trip points from the database straight to the given GPX file.
+         */
+        public int writeGpx(File file) throws IOException {
             String gpxName = "Trip " + Gpx.df.format(new Date(this.endTimeStamp));
-            String gpxDesc = this.toString();
-            LocationSet points;
+            DatabaseLocationSet locations;
+            if(TextUtils.isEmpty(this.id)) {
+                locations = this.getLocations(this.startTimeStamp, this.endTimeStamp);
+            } else {
+                locations = this.getLocations();
+            }
 
+            try {
+                return GpxWriter.write(locations, gpxName, this.toString(), file);
+            } finally {
+                locations.close();
+            }
+        }
+
+        /**
+         * Writes the trip points in the compact binary track format, see {@link TrackCodec}.
+         */
+        public int writeTrack(File file, boolean deflate) throws IOException {
+            DatabaseLocationSet locations;
             if(TextUtils.isEmpty(this.id)) {
-                points = this.getLocations(this.startTimeStamp, this.endTimeStamp);
+                locations = this.getLocations(this.startTimeStamp, this.endTimeStamp);
             } else {
-                points = this.getLocations();
+                locations = this.getLocations();
             }
 
-            return Gpx.createGpx(points, gpxName, gpxDesc);
+            try {
+                return TrackCodec.write(locations, new FileOutputStream(file, false), deflate);
+            } finally {
+                locations.close();
+            }
+        }
+
+        public String toGpxString() {
+            String gpxName = "Trip " + Gpx.df.format(new Date(this.endTimeStamp));
+            String gpxDesc = this.toString();
+            return Gpx.createGpx(this.getPoints(), gpxName, gpxDesc);
         }
     }
 
-    private static long getLocationTimeStamp(long fromTimeStamp, String event) {
+    static DatabaseLocationSet queryLocations(long startTimestamp, long endTimestamp) {
+        LocationTable.flushPendingWrites(startTimestamp, endTimestamp);
         Helper helper = Helper.getInstance();
+        SQLiteDatabase database = helper.getReaderDatabase();
+
+        locationSelection[0] = String.valueOf(startTimestamp);
+        locationSelection[1] = String.valueOf(endTimestamp);
+
+        Cursor cursor = database.query(LocationTable.getSource(startTimestamp, endTimestamp), null,
+                "timestamp BETWEEN ? AND ?", locationSelection, null, null, "timestamp", null);
 
+        DatabaseLocationSet locationSet = new DatabaseLocationSet(cursor);
+        locationSet.setAutoClose(false);
 
-        locationSelection[0] = event;
-        locationSelection[1] = String.valueOf(fromTimeStamp);
-        locationColumns[0] = LocationTable.COLUMN_NAME_TIMESTAMP;
+        return locationSet;
+    }
 
-        SQLiteDatabase database = helper.getReadableDatabase();
-        Cursor cursor = database.query(LocationTable.TABLE_NAME, locationColumns,
-                LocationTable.COLUMN_NAME_EVENT + " = ? AND " + LocationTable.COLUMN_NAME_TIMESTAMP + "< ?",
-                locationSelection, null, null, LocationTable.COLUMN_NAME_TIMESTAMP + " DESC", "1");
+    /**
+     * Runs the stored trip points through the statistics accumulator. Only used for trips
+     * stored without statistics.
+     */
+    static TripStatistics computeStatistics(long startTimeStamp, long endTimeStamp) {
+        TripStatistics statistics = new TripStatistics();
+        statistics.reset(startTimeStamp);
 
-        long result = 0;
-        if (cursor.moveToFirst()) {
-            result = cursor.getLong(0);
+        DatabaseLocationSet locations = queryLocations(startTimeStamp, endTimeStamp);
+        LocationCursor cursor = locations.cursor();
+        try {
+            while (cursor.moveToNext()) {
+                statistics.add(cursor);
+            }
+        } finally {
+            cursor.close();
+            locations.close();
         }
+        return statistics;
+    }
 
-        cursor.close();
+    private static void putStatistics(ContentValues values, TripStatistics statistics) {
+        values.put(COLUMN_NAME_POINT_COUNT, statistics.getCount());
+        values.put(COLUMN_NAME_MAX_SPEED, statistics.getMaxSpeed());
+        values.put(COLUMN_NAME_AVG_SPEED, statistics.getAvgSpeed());
+        values.put(COLUMN_NAME_MAX_ALTITUDE, statistics.getMaxAltitude());
+        values.put(COLUMN_NAME_MIN_ALTITUDE, statistics.getMinAltitude());
+        values.put(COLUMN_NAME_MOVING_TIME, statistics.getMovingTime());
+        values.put(COLUMN_NAME_IDLE_TIME, statistics.getIdleTime());
+        values.put(COLUMN_NAME_ELEVATION_GAIN, statistics.getElevationGain());
+        values.put(COLUMN_NAME_ELEVATION_LOSS, statistics.getElevationLoss());
+    }
 
-        return result;
+    private static long getLocationTimeStamp(long fromTimeStamp, String event) {
+        return EventIndexTable.getPrevious(event, fromTimeStamp);
+    }
+
+    public static long insertTrip(long startLocation, long endLocation, float distance,
+                                  TripStatistics statistics) {
+        return insertTrip(startLocation, endLocation, distance, statistics, null);
     }
 
-    public static long insertTrip(long startLocation, long endLocation, float distance) {
+    /**
+     * Inserts the trip and its summary row. The end coordinates are read from the database when
+     * no end location is given.
+     */
+    private static long insertTrip(long startLocation, long endLocation, float distance,
+                                   TripStatistics statistics, Location end) {
         Helper helper = Helper.getInstance();
         ContentValues values = new ContentValues();
         values.put("startLocation", startLocation);
         values.put("endLocation", endLocation);
         values.put("distance", distance);
-        return helper.getWritableDatabase().insertWithOnConflict(TABLE_NAME, null, values,
-                SQLiteDatabase.CONFLICT_IGNORE);
+        putStatistics(values, statistics);
+
+        double[] startCoordinates = getCoordinates(startLocation);
+        double[] endCoordinates = end != null && end.getTime() == endLocation ?
+                new double[]{end.getLatitude(), end.getLongitude()} : getCoordinates(endLocation);
+
+        helper.beginWrite();
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                long id = db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+                if (id > 0) {
+                    TripSummaryTable.insert(db, id, distance, startLocation, startCoordinates,
+                            endLocation, endCoordinates);
+                }
+                db.setTransactionSuccessful();
+                return id;
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            helper.endWrite();
+        }
+    }
+
+    private static double[] getCoordinates(long timestamp) {
+        LocationTable.flushPendingWrites(timestamp, timestamp);
+        Helper helper = Helper.getInstance();
+        Cursor cursor = helper.getReaderDatabase().query(LocationTable.getSource(timestamp, timestamp),
+                new String[]{LocationTable.COLUMN_NAME_LATITUDE, LocationTable.COLUMN_NAME_LONGITUD},
+                LocationTable.COLUMN_NAME_TIMESTAMP + " = " + timestamp, null, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                return new double[]{cursor.getDouble(0), cursor.getDouble(1)};
+            }
+        } finally {
+            cursor.close();
+        }
+        return null;
     }
 
     public static TripDetail getTrip(long fromTimeStamp, boolean isEndTimeStamp, float distance) {
+        return getTrip(fromTimeStamp, isEndTimeStamp, distance, null);
+    }
+
+    /**
+     * The given statistics are used when they belong to the resolved trip, otherwise they are
+     * computed from the stored points.
+     */
+    public static TripDetail getTrip(long fromTimeStamp, boolean isEndTimeStamp, float distance,
+                                     TripStatistics statistics) {
         if (fromTimeStamp == 0) {
             fromTimeStamp = Long.MAX_VALUE;
         }
+        // The event index is filled when the rows are written.
+        LocationTable.flushPendingWrites(0, fromTimeStamp);
 
         long endTimeStamp = isEndTimeStamp ? fromTimeStamp : getLocationTimeStamp(fromTimeStamp, LocatrackLocation.EVENT_STOP);
         if (endTimeStamp > 0) {
             long startTimeStamp = getLocationTimeStamp(endTimeStamp, LocatrackLocation.EVENT_START);
             if (startTimeStamp > 0) {
+                if (statistics != null && statistics.getStartTime() == startTimeStamp) {
+                    return TripDetail.createTrip(startTimeStamp, endTimeStamp, distance, statistics);
+                }
                 return TripDetail.createTrip(startTimeStamp, endTimeStamp, distance);
             }
         }
@@ -265,8 +430,20 @@ public class TripTable {
     }
 
     public static TripDetail insertTrip(long fromTimeStamp, float distance, boolean isEndTimeStamp) {
+        return insertTrip(fromTimeStamp, distance, isEndTimeStamp, null, null);
+    }
 
-        TripDetail trip = getTrip(fromTimeStamp, isEndTimeStamp, distance);
+    /**
+     * Inserts the trip that ends at the given stop location, the location may not be stored yet.
+     */
+    public static TripDetail insertTrip(Location stopLocation, float distance, TripStatistics statistics) {
+        return insertTrip(stopLocation.getTime(), distance, true, statistics, stopLocation);
+    }
+
+    private static TripDetail insertTrip(long fromTimeStamp, float distance, boolean isEndTimeStamp,
+                                         TripStatistics statistics, Location stopLocation) {
+
+        TripDetail trip = getTrip(fromTimeStamp, isEndTimeStamp, distance, statistics);
 
         while (trip != null && trip.pointNumber == 0) {
             trip = getTrip(trip.startTimeStamp, false, distance);
@@ -278,7 +455,8 @@ public class TripTable {
                 return null;
             }
 
-            long id = insertTrip(trip.startTimeStamp, trip.endTimeStamp, distance);
+            long id = insertTrip(trip.startTimeStamp, trip.endTimeStamp, distance, trip.getStatistics(),
+                    stopLocation);
             trip.setId(String.valueOf(id));
         }
 
@@ -295,13 +473,9 @@ public class TripTable {
             }
         }
 
-        tripColumns[0] = "startLocation";
-        tripColumns[1] = "endLocation";
-        tripColumns[2] = "distance";
-
         tripSelection[0] = id;
 
-        SQLiteDatabase database = helper.getReadableDatabase();
+        SQLiteDatabase database = helper.getReaderDatabase();
         Cursor cursor = database.query(TABLE_NAME, tripColumns,
                 "id = ?", tripSelection, null, null, null);
 
@@ -310,7 +484,25 @@ public class TripTable {
                 long start = cursor.getLong(0);
                 long stop = cursor.getLong(1);
                 float distance = cursor.getFloat(2);
-                TripDetail trip = TripDetail.createTrip(start, stop, distance);
+                TripStatistics statistics;
+                if (cursor.isNull(3)) {
+                    // Stored before statistics were kept, compute them once.
+                    statistics = computeStatistics(start, stop);
+                    ContentValues values = new ContentValues();
+                    putStatistics(values, statistics);
+                    helper.beginWrite();
+                    try {
+                        helper.getWritableDatabase().update(TABLE_NAME, values, "id = ?", new String[]{id});
+                    } finally {
+                        helper.endWrite();
+                    }
+                } else {
+                    statistics = new TripStatistics(start, cursor.getInt(3), cursor.getDouble(4),
+                            cursor.getDouble(5), cursor.getDouble(6), cursor.getDouble(7),
+                            cursor.getLong(8), cursor.getLong(9), cursor.getDouble(10),
+                            cursor.getDouble(11));
+                }
+                TripDetail trip = TripDetail.createTrip(start, stop, distance, statistics);
                 trip.setId(id);
                 return trip;
             }
@@ -322,22 +514,11 @@ public class TripTable {
 
     public static Trip[] getTrips(int limit) {
 
-        String limitStr = null;
         if(limit == 0) {
             limit = 10;
         }
 
-        if(limit > 0) {
-            limitStr = String.valueOf(limit);
-
-        }
-
-        Helper helper = Helper.getInstance();
-        SQLiteDatabase database = helper.getReadableDatabase();
-        Cursor cursor = database.query(VIEW_NAME, new String[]
-                        {"id", "startAddress", "endAddress", "endTimestamp", "distance", "endLat", "endLong"},
-                null, null, null,
-                null, null, limitStr);
+        Cursor cursor = TripSummaryTable.query(limit);
 
         Trip[] result = new Trip[cursor.getCount()];
         int i = 0;
@@ -17,13 +17,9 @@ import android.location.LocationManager;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.os.SystemClock;
@@ -35,19 +31,23 @@ import com.hmsoft.locationlogger.BuildConfig;
 import com.hmsoft.locationlogger.R;
 import com.hmsoft.locationlogger.common.Constants;
 import com.hmsoft.locationlogger.common.Logger;
-import com.hmsoft.locationlogger.common.PerfWatch;
+import com.hmsoft.locationlogger.common.Metrics;
 import com.hmsoft.locationlogger.common.TaskExecutor;
 import com.hmsoft.locationlogger.common.Utils;
 import com.hmsoft.locationlogger.common.WifiApManager;
 import com.hmsoft.locationlogger.common.telegram.TelegramHelper;
+import com.hmsoft.locationlogger.common.telegram.TelegramUpdatePoller;
 import com.hmsoft.locationlogger.data.Geocoder;
+import com.hmsoft.locationlogger.data.GeocodingService;
 import com.hmsoft.locationlogger.data.LocationStorer;
 import com.hmsoft.locationlogger.data.LocatrackLocation;
 import com.hmsoft.locationlogger.data.commands.Command;
 import com.hmsoft.locationlogger.data.locatrack.LocatrackDb;
 import com.hmsoft.locationlogger.data.locatrack.LocatrackTelegramStorer;
+import com.hmsoft.locationlogger.data.locatrack.TelegramOutbox;
 import com.hmsoft.locationlogger.data.locatrack.LocatrackTripStorer;
 import com.hmsoft.locationlogger.data.preferences.PreferenceProfile;
+import com.hmsoft.locationlogger.data.sqlite.Helper;
 import com.hmsoft.locationlogger.receivers.StartServiceReceiver;
 import com.hmsoft.locationlogger.ui.MainActivity;
 
@@ -67,6 +67,12 @@ public class CoreService extends Service
     private static final int HALF_MINUTE = 1000 * 30;
     private static final int CRITICAL_BATTERY_LEV = 50;
 
+    private static final Metrics.Histogram sHandleTime = Metrics.histogram("location.handle");
+    private static final Metrics.Histogram sStoreTime = Metrics.histogram("location.store");
+    private static final Metrics.Histogram sFixTime = Metrics.histogram("location.fix");
+    private static final Metrics.Counter sLocationRequests = Metrics.counter("location.requests");
+    private static final Metrics.Counter sGpsTimeouts = Metrics.counter("location.gps.timeouts");
+
     //endregion Static fields
 
     //region Settings fields
@@ -120,16 +126,16 @@ public class CoreService extends Service
     private PendingIntent mLocationActivityIntent = null;
     private Intent mMapIntent = null;
     private PendingIntent mUpdateLocationIntent = null;
-    private boolean mStoreHandlerRunning;
     private int mRetrySmsCount;
+    private long mLocationRequestStart; // System.nanoTime, 0 when no request is running.
 
     LocationStorer[] mLocationStorers;
 
     boolean mNeedsToUpdateUI;
     private WakeLock mWakeLock;
 
-    private HandlerThread mStoreThread = null;
-    private Handler mStoreHandler;
+    private StorePipeline mStorePipeline;
+    private static volatile StorePipeline sStorePipeline;
 
     static int sLastBatteryLevel = -1;
     boolean mChargingStart;
@@ -317,54 +323,40 @@ public class CoreService extends Service
         }
     }
 
-    private static class GetAddressTask extends AsyncTask<Location, Void, String> {
-        private static final String TAG = "GetAddressTask";
+    private static class AddressCallback implements GeocodingService.Callback {
+        private static final String TAG = "AddressCallback";
 
-        private static GetAddressTask sInstance = null;
+        private static boolean sPending = false;
 
-        private CoreService mService;
+        private final CoreService mService;
+        private final Location mLocation;
 
-        private GetAddressTask(CoreService service) {
-            super();
+        private AddressCallback(CoreService service, Location location) {
             mService = service;
-            sInstance = this;
-        }
-
-        public void run(Location location) {
-            execute(location);
-        }
-
-        @Override
-        protected String doInBackground(Location... params) {
-            if(Logger.DEBUG) Logger.debug(TAG, "doInBackground");
-			Location location = params[0];
-			String address = Geocoder.getFromRemote(mService, location);
-			if (!TextUtils.isEmpty(address)) {
-				Geocoder.addToCache(location, address);
-			}
-            return address;
+            mLocation = location;
         }
 
+        // A coalesced request reports the location it was queued with, not ours.
         @Override
-        protected void onCancelled() {
-            sInstance = null;
-            mService = null;
-        }
-
-        @Override
-        protected void onPostExecute(String address) {
-            if (!TextUtils.isEmpty(address)) {
-                if(Logger.DEBUG) Logger.debug(TAG, "onPostExecute");
-                mService.mLastSaveAddress = address;
-                mService.updateNotification();
-            }
-            mService = null;
-            sInstance = null;
+        public void onAddress(Location location, final String address) {
+            TaskExecutor.executeOnUIThread(new Runnable() {
+                @Override
+                public void run() {
+                    sPending = false;
+                    if (!TextUtils.isEmpty(address) && mLocation == mService.mLastSavedLocation) {
+                        if(Logger.DEBUG) Logger.debug(TAG, "onAddress");
+                        mService.mLastSaveAddress = address;
+                        mService.updateNotification();
+                    }
+                }
+            });
         }
 
+        // UI thread only.
         public static void run(CoreService service, Location location) {
-            if (sInstance == null) {
-                (new GetAddressTask(service)).run(location);
+            if (!sPending) {
+                sPending = true;
+                GeocodingService.getInstance(service).resolveAsync(location, new AddressCallback(service, location));
             }
         }
     }
@@ -438,6 +430,7 @@ public class CoreService extends Service
             if(mUnlimitedData) {
                 WifiApManager.configApState(this, true);
             }
+            scheduleDatabaseCheckpoint();
         } else if ((sLastBatteryLevel < 0 || sLastBatteryLevel > 100) && newLevel <= 100) {
             if(DEBUG) Logger.debug(TAG, "Charging stop " + mChargingStart);
             mChargingStartStop = mChargingStart;
@@ -450,7 +443,6 @@ public class CoreService extends Service
         }
         sLastBatteryLevel = newLevel;
         if (fireEvents) {
-            destroyStoreThread(); // Start with a new created thread
             acquireWakeLock();
             startLocationListener();
             int intv = -1;
@@ -461,11 +453,28 @@ public class CoreService extends Service
         }
     }
 
+    // Keeps the WAL file bounded, done while charging so it does not cost battery.
+    private void scheduleDatabaseCheckpoint() {
+        TaskExecutor.executeOnNewThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LocatrackDb.flush();
+                    Helper.getInstance().checkpoint();
+                } catch (Exception e) {
+                    Logger.warning(TAG, "checkpoint", e);
+                }
+            }
+        });
+    }
+
     void handleLocation(Location location, String provider) {
+        long start = System.nanoTime();
 
         if (mCurrentBestLocation != null &&
                 (mCurrentBestLocation.getTime() == location.getTime())) {
             logLocation(location, "Location is the same location that currentBestLocation");
+            sHandleTime.recordSince(start);
             return;
         }
 
@@ -493,6 +502,10 @@ public class CoreService extends Service
                         (Utils.isFromGps(mCurrentBestLocation) && location.getAccuracy() <= mBestAccuracy)) {
                     saveLocation(mCurrentBestLocation);
                     message = "*** Location saved";
+                    if (mLocationRequestStart != 0) {
+                        sFixTime.recordSince(mLocationRequestStart);
+                        mLocationRequestStart = 0;
+                    }
                     stopLocationListener();
                 } else {
                     message = "No good GPS location.";
@@ -504,6 +517,7 @@ public class CoreService extends Service
         }
 
         logLocation(location, message);
+        sHandleTime.recordSince(start);
     }
 
     private void insertNotifyInfo(String notifyInfo) {
@@ -617,70 +631,42 @@ public class CoreService extends Service
     }
 
     private void storeLocation(final LocatrackLocation location) {
+        long start = System.nanoTime();
         acquireWakeLock();
-        if (mStoreHandlerRunning) {
-            if (DEBUG) Logger.debug(TAG, "Store handler still running, Stuck?");
-            destroyStoreThread();
-        }
-
-        if (mStoreThread == null) {
-            mStoreThread = new HandlerThread(TAG);
-            mStoreThread.start();
-            Looper looper = mStoreThread.getLooper();
-            mStoreHandler = new Handler(looper);
-            if (DEBUG) Logger.info(TAG, "StoreThread created");
-            if (DEBUG) Toast.makeText(this, "StoreThread created", Toast.LENGTH_SHORT).show();
+        if (DIAGNOSTICS && mLocationLogEnabled) {
+            Logger.info(TAG, "Store: %s", location);
         }
+        mStorePipeline.offer(location);
+        sStoreTime.recordSince(start);
+    }
 
-        mStoreHandlerRunning = true;
-        mStoreHandler.post(new Runnable() {
+    private StorePipeline.Listener createStoreListener() {
+        return new StorePipeline.Listener() {
             @Override
-            public void run() {
-                boolean locationStored = true;
-
-                try {
-                    if (DIAGNOSTICS && mLocationLogEnabled) {
-                        Logger.info(TAG, "Store: %s", location);
-                    }
-
-                    PerfWatch pw = null;
-
-                    if (DIAGNOSTICS && mLocationLogEnabled) {
-                        pw = PerfWatch.start(TAG, "Start: Store location");
-                    }
-
-                    for (LocationStorer storer : mLocationStorers) {
-                        locationStored = locationStored & storer.storeLocation(location);
-                    }
-
-                    if (DIAGNOSTICS && mLocationLogEnabled) {
-                        if (pw != null) {
-                            pw.stop(TAG, "End: Store location Success: " + locationStored);
+            public void onStoreFinished(LocatrackLocation location, final boolean stored, final boolean idle) {
+                if (DIAGNOSTICS && mLocationLogEnabled) {
+                    Logger.info(TAG, "End: Store location Success: " + stored);
+                }
+                TaskExecutor.executeOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        cleanup();
+                        if (stored) {
+                            mPendingNotifyInfo = null;
                         }
-                    }
-                } finally {
-                    final boolean uploaded = locationStored;
-                    TaskExecutor.executeOnUIThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            cleanup();
-                            if (uploaded) {
-                                mPendingNotifyInfo = null;
-                            }
+                        if (!idle) {
+                            // More fixes are waiting, keep the device awake for them.
+                            acquireWakeLock();
                         }
-                    });
-                }
+                    }
+                });
             }
-        });
+        };
     }
 
-    void destroyStoreThread() {
-        if(mStoreThread != null) {
-            mStoreThread.quit();
-            mStoreThread = null;
-            if(DEBUG) Logger.info(TAG, "StoreThread destroyed");
-            if(DEBUG) Toast.makeText(this, "StoreThread destroyed", Toast.LENGTH_SHORT).show();
-        }
+    public static String getStoreStatus() {
+        StorePipeline pipeline = sStorePipeline;
+        return pipeline != null ? pipeline.getStatus() : "";
     }
 
     private void logLocation(Location location, String message) {
@@ -706,7 +692,6 @@ public class CoreService extends Service
     }
 
     void cleanup() {
-        mStoreHandlerRunning = false;
         mChargingStart = false;
         mChargingStop = false;
         mChargingStartStop = false;
@@ -755,7 +740,7 @@ public class CoreService extends Service
                 if (mLastSaveAddress == null) {
                     mLastSaveAddress = Geocoder.getFromCache(mLastSavedLocation);
                     if (mLastSaveAddress == null) {
-                        GetAddressTask.run(this, mLastSavedLocation);
+                        AddressCallback.run(this, mLastSavedLocation);
                     }
                 }
 
@@ -845,6 +830,8 @@ public class CoreService extends Service
         if (mLocationManager == null) {
 
             mLocationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+            mLocationRequestStart = System.nanoTime();
+            sLocationRequests.inc();
 
             mNetProviderEnabled = mLocationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER);
             mGpsProviderEnabled = mLocationManager.isProviderEnabled(LocationManager.GPS_PROVIDER);
@@ -884,6 +871,8 @@ public class CoreService extends Service
                     mTimeoutRoutinePending = false;
                     if (mLocationManager != null /*|| mLocationRequest != null*/) {
                         if (Logger.DEBUG) Logger.debug(TAG, "GPS Timeout");
+                        sGpsTimeouts.inc();
+                        mLocationRequestStart = 0;
                         saveLastLocation();
                         stopLocationListener();
                     }
@@ -1110,6 +1099,8 @@ public class CoreService extends Service
         mRestrictedSettings =  mPreferences.getBoolean(R.string.profile_settings_restricted_key, false);
         mUnlimitedData = mPreferences.getBoolean(R.string.pref_unlimited_data_key, false);
         mNoSynAlarm = mUnlimitedData;
+        Geocoder.setNearestRadius(mPreferences.getInt(R.string.pref_geocoder_radius_key,
+                String.valueOf(Geocoder.DEFAULT_NEAREST_RADIUS))); // meters
 
         mRequestPassiveLocationUpdates = mPreferences.getPreferences().getBoolean(Constants.PREF_KEY_CALCULATE_MOVEMENT, true);
         if(!mRequestPassiveLocationUpdates) {
@@ -1139,6 +1130,20 @@ public class CoreService extends Service
         return storers;
     }
 
+    /**
+     * The trip storer sets the trip event and extraInfo, so it runs first. The database and
+     * telegram storers then run on their own lanes. A trip is inserted at its stop from the stored
+     * locations, so the trip storer waits for the database before an event.
+     */
+    protected StorePipeline createStorePipeline(LocationStorer[] storers) {
+        StorePipeline pipeline = new StorePipeline(createStoreListener());
+        int trip = pipeline.addStorer(storers[0]);
+        int db = pipeline.addStorer(storers[1], trip);
+        pipeline.addStorer(storers[2], trip);
+        pipeline.drainBeforeEvents(trip, db);
+        return pipeline;
+    }
+
     //endregion Core functions
 
     //region Method overrides
@@ -1157,6 +1162,16 @@ public class CoreService extends Service
         mConnectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
 
         mLocationStorers = createAndConfigureStorers();
+        mStorePipeline = createStorePipeline(mLocationStorers);
+        sStorePipeline = mStorePipeline;
+        TelegramOutbox.getInstance(context).start();
+        TaskExecutor.executeOnNewThread(new Runnable() {
+            @Override
+            public void run() {
+                Geocoder.warmCache();
+            }
+        });
+        GeocodingService.getInstance(context).start();
 
         mPreferences = PreferenceProfile.get(context);
         configure(false);
@@ -1178,6 +1193,7 @@ public class CoreService extends Service
         checkVersion();
         insertNotifyInfo("Service started.\n");
         updateNotification();
+        requestTelegramUpdates(1, true); // Starts the update poller
     }
 
     private void checkVersion() {
@@ -1211,7 +1227,12 @@ public class CoreService extends Service
         stopLocationListener();
         stopForeground(true);
 
-        destroyStoreThread();
+        mStorePipeline.quit();
+        sStorePipeline = null;
+        TelegramOutbox.getInstance(this).stop();
+        TelegramUpdatePoller.getInstance().stop();
+        GeocodingService.getInstance(this).stop();
+        LocatrackDb.flush();
         PreferenceProfile.reset();
 
         super.onDestroy();
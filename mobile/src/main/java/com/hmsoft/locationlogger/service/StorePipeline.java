@@ -0,0 +1,497 @@
+package com.hmsoft.locationlogger.service;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.hmsoft.locationlogger.common.Logger;
+import com.hmsoft.locationlogger.common.Metrics;
+import com.hmsoft.locationlogger.data.LocationStorer;
+import com.hmsoft.locationlogger.data.LocatrackLocation;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Runs the storers for every fix, each storer on its own long lived lane (thread) that stores
+ * fixes in order. A storer only gets a fix once all the storers it depends on are done with it,
+ * storers without a dependency between them run in parallel, so a slow network storer never
+ * delays a local one.
+ *
+ * At most capacity fixes wait for their first storer. When full a plain fix replaces the newest
+ * plain fix nobody started yet (coalesced), or is dropped when there is none. Event fixes are
+ * always accepted. A lane whose storer can skip fixes skips its oldest waiting plain fix when it
+ * falls further behind, other lanes never skip. A fix is given to every storer at most once, and a
+ * storer is only ever called from its lane thread. A storer running longer than its timeout is
+ * counted as timed out and its thread interrupted once, to cut sleeps short; the lane keeps
+ * waiting for it, the storer I/O has its own timeouts. A storer that buffers writes is flushed by
+ * its lane once its flush delay passes with no new fix. A lane can be made to wait, before an
+ * event fix, until other lanes stored every older fix. The lane threads and the single watchdog
+ * live until {@link #quit()}.
+ */
+class StorePipeline {
+    private static final String TAG = "StorePipeline";
+
+    static final int DEFAULT_CAPACITY = 16;
+    static final long DEFAULT_STORER_TIMEOUT = 60000;
+
+    private static final Metrics.Histogram sStoreLatency = Metrics.histogram("store.latency");
+    private static final Metrics.Gauge sStoreQueue = Metrics.gauge("store.queue");
+    private static final Metrics.Counter sStoreFailed = Metrics.counter("store.failed");
+    private static final Metrics.Counter sStoreCoalesced = Metrics.counter("store.coalesced");
+    private static final Metrics.Counter sStoreDropped = Metrics.counter("store.dropped");
+
+    interface Listener {
+        /**
+         * Called after all storers ran for the fix, or right away from {@link #offer} when the fix
+         * was dropped or coalesced (stored is false then). Never called with the pipeline lock held.
+         */
+        void onStoreFinished(LocatrackLocation location, boolean stored, boolean idle);
+    }
+
+    private final Listener mListener;
+    private final int mCapacity;
+    private final int mLaneCapacity;
+
+    // Everything below is guarded by mLock.
+    private final Object mLock = new Object();
+    private final ArrayList<Lane> mLanes = new ArrayList<>();
+    private final ArrayList<Job> mJobs = new ArrayList<>(); // In flight, oldest first.
+    private final ArrayList<Job> mFinished = new ArrayList<>(); // Waiting for the listener.
+    private boolean mQuit;
+
+    private long mEnqueued;
+    private long mProcessed;
+    private long mFailed;
+    private long mCoalesced;
+    private long mDropped;
+    private int mMaxDepth;
+    private long mLastLatency;
+    private long mMaxLatency;
+    private long mTotalLatency;
+
+    private static class Job {
+        LocatrackLocation location;
+        final long enqueueTime;
+        final long enqueueNanos;
+        final int[] waiting; // Unfinished dependencies per lane.
+        final boolean[] done; // Per lane.
+        int remaining;
+        boolean started;
+        boolean stored = true;
+        boolean idle;
+
+        Job(LocatrackLocation location, int laneCount) {
+            this.location = location;
+            this.enqueueTime = SystemClock.elapsedRealtime();
+            this.enqueueNanos = System.nanoTime();
+            this.waiting = new int[laneCount];
+            this.done = new boolean[laneCount];
+            this.remaining = laneCount;
+        }
+
+        boolean isEvent() {
+            return !TextUtils.isEmpty(location.event) || !TextUtils.isEmpty(location.extraInfo);
+        }
+    }
+
+    private class Lane {
+        final int index;
+        final LocationStorer storer;
+        final long timeout;
+        final int[] dependencies;
+        final ArrayList<Lane> dependents = new ArrayList<>();
+        final ArrayList<Lane> drainedBeforeEvents = new ArrayList<>();
+        final ArrayList<Job> queue = new ArrayList<>();
+        final String name;
+        final Metrics.Histogram storeTime;
+        final Metrics.Counter storeFailed;
+        final Metrics.Counter storeTimeouts;
+
+        final Thread thread;
+        long deadline; // 0 idle or already timed out.
+        long flushTime; // 0 nothing buffered.
+
+        long processed;
+        long failed;
+        long skipped;
+        long timeouts;
+        long busyTime;
+        long maxBusyTime;
+
+        Lane(int index, LocationStorer storer, long timeout, int[] dependencies) {
+            this.index = index;
+            this.storer = storer;
+            this.timeout = timeout;
+            this.dependencies = dependencies;
+            this.name = storer.getClass().getSimpleName();
+            this.storeTime = Metrics.histogram("storer." + name);
+            this.storeFailed = Metrics.counter("storer." + name + ".failed");
+            this.storeTimeouts = Metrics.counter("storer." + name + ".timeouts");
+            this.thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            }, TAG + "-" + name);
+        }
+
+        void enqueue(Job job) {
+            queue.add(job);
+            if (queue.size() > mLaneCapacity && storer.canSkipFixes()) {
+                for (int i = 0; i < queue.size(); i++) {
+                    Job old = queue.get(i);
+                    if (!old.isEvent()) {
+                        queue.remove(i);
+                        skipped++;
+                        if (Logger.DEBUG) Logger.debug(TAG, "%s skipped a fix", name);
+                        finish(this, old, false);
+                        break;
+                    }
+                }
+            }
+            mLock.notifyAll();
+        }
+
+        /**
+         * @return false if the job must wait for other lanes to store older fixes.
+         */
+        boolean isReady(Job job) {
+            if (drainedBeforeEvents.isEmpty() || !job.isEvent()) {
+                return true;
+            }
+            for (Job older : mJobs) {
+                if (older == job) {
+                    break;
+                }
+                for (Lane lane : drainedBeforeEvents) {
+                    if (!older.done[lane.index]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Counts the running store as timed out, it keeps its fix and its result. Must hold mLock.
+         */
+        void timedOut() {
+            Logger.warning(TAG, "%s timed out", name);
+            timeouts++;
+            storeTimeouts.inc();
+            deadline = 0;
+            thread.interrupt();
+        }
+
+        private void loop() {
+            while (true) {
+                Job job;
+                synchronized (mLock) {
+                    while ((queue.isEmpty() || !isReady(queue.get(0))) && !(mQuit && mJobs.isEmpty())) {
+                        long wait = 0;
+                        if (flushTime > 0) {
+                            wait = flushTime - SystemClock.elapsedRealtime();
+                            if (wait <= 0) {
+                                break;
+                            }
+                        }
+                        try {
+                            mLock.wait(wait);
+                        } catch (InterruptedException e) {
+                            // A late watchdog interrupt, nothing to cancel.
+                        }
+                    }
+                    if (queue.isEmpty() || !isReady(queue.get(0))) {
+                        if (flushTime == 0) {
+                            // Quitting.
+                            return;
+                        }
+                        // Flush due, or quitting with buffered writes.
+                        flushTime = 0;
+                        job = null;
+                    } else {
+                        job = queue.remove(0);
+                        job.started = true;
+                        deadline = SystemClock.elapsedRealtime() + timeout;
+                        mLock.notifyAll();
+                    }
+                }
+
+                if (job == null) {
+                    flushStorer();
+                    continue;
+                }
+
+                long start = SystemClock.elapsedRealtime();
+                long startNanos = System.nanoTime();
+                boolean stored;
+                try {
+                    stored = storer.storeLocation(job.location);
+                } catch (RuntimeException e) {
+                    Logger.warning(TAG, "storeLocation", e);
+                    stored = false;
+                }
+                long elapsed = SystemClock.elapsedRealtime() - start;
+                storeTime.recordSince(startNanos);
+
+                synchronized (mLock) {
+                    // Clear a watchdog interrupt the storer did not consume.
+                    Thread.interrupted();
+                    deadline = 0;
+
+                    processed++;
+                    if (!stored) {
+                        failed++;
+                        storeFailed.inc();
+                    }
+                    busyTime += elapsed;
+                    if (elapsed > maxBusyTime) maxBusyTime = elapsed;
+                    if (flushTime == 0) {
+                        long flushDelay = storer.getFlushDelay();
+                        if (flushDelay > 0) {
+                            flushTime = SystemClock.elapsedRealtime() + flushDelay;
+                        }
+                    }
+                    finish(this, job, stored);
+                    mLock.notifyAll();
+                }
+                notifyFinished();
+            }
+        }
+
+        private void flushStorer() {
+            if (Logger.DEBUG) Logger.debug(TAG, "%s flush", name);
+            try {
+                storer.flush();
+            } catch (RuntimeException e) {
+                Logger.warning(TAG, "flush", e);
+            }
+        }
+    }
+
+    StorePipeline(Listener listener) {
+        this(listener, DEFAULT_CAPACITY);
+    }
+
+    StorePipeline(Listener listener, int capacity) {
+        mListener = listener;
+        mCapacity = capacity;
+        mLaneCapacity = capacity * 4;
+    }
+
+    /**
+     * Adds a storer lane, dependencies are the indexes returned for storers added before.
+     *
+     * @return the index of the new lane.
+     */
+    int addStorer(LocationStorer storer, long timeout, int... dependsOn) {
+        synchronized (mLock) {
+            if (!mJobs.isEmpty()) {
+                throw new IllegalStateException("Pipeline already running");
+            }
+            int index = mLanes.size();
+            Lane lane = new Lane(index, storer, timeout, dependsOn);
+            for (int dependency : dependsOn) {
+                if (dependency < 0 || dependency >= index) {
+                    throw new IllegalArgumentException("Unknown dependency " + dependency);
+                }
+                mLanes.get(dependency).dependents.add(lane);
+            }
+            mLanes.add(lane);
+            lane.thread.start();
+            if (index == 0) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        watchdogLoop();
+                    }
+                }, TAG + "Watchdog").start();
+            }
+            return index;
+        }
+    }
+
+    int addStorer(LocationStorer storer, int... dependsOn) {
+        return addStorer(storer, DEFAULT_STORER_TIMEOUT, dependsOn);
+    }
+
+    /**
+     * Before the lane stores an event fix, the drained lanes must be done with every older fix.
+     * The drained lanes may depend on the lane, older fixes already went through it.
+     */
+    void drainBeforeEvents(int lane, int... drained) {
+        synchronized (mLock) {
+            for (int index : drained) {
+                mLanes.get(lane).drainedBeforeEvents.add(mLanes.get(index));
+            }
+        }
+    }
+
+    /**
+     * Queues the fix, never blocks.
+     *
+     * @return false if the fix was not queued, the listener was already notified.
+     */
+    boolean offer(LocatrackLocation location) {
+        LocatrackLocation rejected = null;
+        boolean idle;
+
+        synchronized (mLock) {
+            Job job = new Job(location, mLanes.size());
+            int waitingJobs = 0;
+            Job coalesce = null;
+            for (Job pending : mJobs) {
+                if (!pending.started) {
+                    waitingJobs++;
+                    if (!pending.isEvent()) coalesce = pending;
+                }
+            }
+
+            if (mQuit || mLanes.isEmpty()) {
+                rejected = location;
+            } else if (waitingJobs < mCapacity || job.isEvent()) {
+                mJobs.add(job);
+                mEnqueued++;
+                for (Lane lane : mLanes) {
+                    job.waiting[lane.index] = lane.dependencies.length;
+                    if (lane.dependencies.length == 0) {
+                        lane.enqueue(job);
+                    }
+                }
+            } else if (coalesce != null) {
+                rejected = coalesce.location;
+                coalesce.location = location;
+                mCoalesced++;
+                sStoreCoalesced.inc();
+            } else {
+                rejected = location;
+                mDropped++;
+                sStoreDropped.inc();
+            }
+            if (mJobs.size() > mMaxDepth) {
+                mMaxDepth = mJobs.size();
+            }
+            sStoreQueue.set(mJobs.size());
+            idle = mJobs.isEmpty();
+        }
+
+        if (rejected != null) {
+            if (Logger.DEBUG) Logger.debug(TAG, "Fix not queued: %s", rejected);
+            mListener.onStoreFinished(rejected, false, idle);
+        }
+        notifyFinished();
+        return rejected != location;
+    }
+
+    boolean isIdle() {
+        synchronized (mLock) {
+            return mJobs.isEmpty();
+        }
+    }
+
+    /**
+     * Stops accepting fixes, the lanes and the watchdog exit once all queued fixes are stored.
+     */
+    void quit() {
+        synchronized (mLock) {
+            mQuit = true;
+            mLock.notifyAll();
+        }
+    }
+
+    String getStatus() {
+        synchronized (mLock) {
+            StringBuilder status = new StringBuilder(256);
+            long done = mProcessed > 0 ? mProcessed : 1;
+            status.append(String.format(Locale.US,
+                    "Store queue: %d (max %d), queued: %d, processed: %d, failed: %d, coalesced: %d, " +
+                            "dropped: %d, latency: %dms (avg %dms, max %dms)\n",
+                    mJobs.size(), mMaxDepth, mEnqueued, mProcessed, mFailed, mCoalesced, mDropped,
+                    mLastLatency, mTotalLatency / done, mMaxLatency));
+            for (Lane lane : mLanes) {
+                long laneDone = lane.processed > 0 ? lane.processed : 1;
+                status.append(String.format(Locale.US,
+                        " %s: queue: %d, processed: %d, failed: %d, skipped: %d, timeouts: %d, " +
+                                "time: avg %dms, max %dms\n",
+                        lane.name, lane.queue.size(), lane.processed, lane.failed, lane.skipped,
+                        lane.timeouts, lane.busyTime / laneDone, lane.maxBusyTime));
+            }
+            return status.toString();
+        }
+    }
+
+    /**
+     * Marks the lane done with the job and hands the job to the dependent lanes that are ready.
+     */
+    private void finish(Lane lane, Job job, boolean stored) {
+        job.remaining--;
+        job.done[lane.index] = true;
+        if (!stored) {
+            job.stored = false;
+        }
+        for (Lane dependent : lane.dependents) {
+            if (--job.waiting[dependent.index] == 0) {
+                dependent.enqueue(job);
+            }
+        }
+        if (job.remaining == 0) {
+            mJobs.remove(job);
+            mProcessed++;
+            if (!job.stored) {
+                mFailed++;
+                sStoreFailed.inc();
+            }
+            sStoreLatency.recordSince(job.enqueueNanos);
+            sStoreQueue.set(mJobs.size());
+            long latency = SystemClock.elapsedRealtime() - job.enqueueTime;
+            mLastLatency = latency;
+            mTotalLatency += latency;
+            if (latency > mMaxLatency) mMaxLatency = latency;
+            job.idle = mJobs.isEmpty();
+            mFinished.add(job);
+        }
+    }
+
+    private void notifyFinished() {
+        Job[] finished;
+        synchronized (mLock) {
+            if (mFinished.isEmpty()) {
+                return;
+            }
+            finished = mFinished.toArray(new Job[mFinished.size()]);
+            mFinished.clear();
+        }
+        for (Job job : finished) {
+            try {
+                mListener.onStoreFinished(job.location, job.stored, job.idle);
+            } catch (RuntimeException e) {
+                Logger.warning(TAG, "onStoreFinished", e);
+            }
+        }
+    }
+
+    /**
+     * Reports the lanes whose storer passes its deadline.
+     */
+    private void watchdogLoop() {
+        synchronized (mLock) {
+            while (!(mQuit && mJobs.isEmpty())) {
+                long now = SystemClock.elapsedRealtime();
+                long next = 0;
+                for (Lane lane : mLanes) {
+                    if (lane.deadline == 0) continue;
+                    if (lane.deadline <= now) {
+                        lane.timedOut();
+                    } else if (next == 0 || lane.deadline < next) {
+                        next = lane.deadline;
+                    }
+                }
+                try {
+                    mLock.wait(next == 0 ? 0 : next - now);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -25,6 +25,7 @@ import com.hmsoft.locationlogger.common.Constants;
 import com.hmsoft.locationlogger.common.Logger;
 import com.hmsoft.locationlogger.common.Utils;
 import com.hmsoft.locationlogger.data.Geocoder;
+import com.hmsoft.locationlogger.data.GeocodingService;
 import com.hmsoft.locationlogger.data.locatrack.LocatrackDb;
 import com.hmsoft.locationlogger.data.preferences.PreferenceProfile;
 import com.hmsoft.locationlogger.receivers.StartServiceReceiver;
@@ -81,6 +82,8 @@ public class MainActivity extends ActionBarActivity {
     }
 
     private static class GetAddressNameTask extends AsyncTask<Location, Void, String> {
+        private static final long ADDRESS_TIMEOUT = 30 * 1000;
+
         private MainActivity mActivity;
         private final int mDistanceValue;
         private final String mDistanceText;
@@ -98,12 +101,7 @@ public class MainActivity extends ActionBarActivity {
 
         @Override
         protected String doInBackground(Location... params) {
-            Location loc = params[0];
-            String address = Geocoder.getFromRemote(mActivity, loc);
-            if(!TextUtils.isEmpty(address)) {
-                Geocoder.addToCache(loc, address);
-            }
-            return address;
+            return GeocodingService.getInstance(mActivity).resolve(params[0], ADDRESS_TIMEOUT);
         }
 
         @Override
@@ -0,0 +1,149 @@
+package com.hmsoft.locationlogger.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the client against a local HTTP/1.1 stub that counts accepted connections.
+ */
+public class HttpClientTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private ServerSocket mServer;
+    private Thread mServerThread;
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private final AtomicInteger mRequests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mServerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "HttpClientTestServer");
+        mServerThread.start();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        mServer.close();
+        mServerThread.join(5000);
+    }
+
+    @Test
+    public void consecutivePostsReuseTheConnection() throws IOException {
+        String url = "http://127.0.0.1:" + mServer.getLocalPort() + "/bot/sendMessage";
+
+        HttpClient.Response first = HttpClient.postForm(url, "chat_id", "1", "text", "first");
+        HttpClient.Response second = HttpClient.postForm(url, "chat_id", "1", "text", "second");
+
+        assertTrue(first.isOk());
+        assertTrue(second.isOk());
+        assertEquals("{\"ok\":true}", second.getText());
+        assertEquals(2, mRequests.get());
+        assertEquals(1, mConnections.get());
+    }
+
+    @Test
+    public void errorBodyIsReadAndTheConnectionReused() throws IOException {
+        String url = "http://127.0.0.1:" + mServer.getLocalPort();
+
+        HttpClient.Response error = HttpClient.postForm(url + "/error", "text", "first");
+        HttpClient.Response ok = HttpClient.postForm(url + "/bot/sendMessage", "text", "second");
+
+        assertEquals(400, error.status);
+        assertEquals("{\"ok\":false}", error.getText());
+        assertTrue(ok.isOk());
+        assertEquals(1, mConnections.get());
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServer.accept();
+            } catch (IOException e) {
+                return; // Closed
+            }
+            mConnections.incrementAndGet();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }).start();
+        }
+    }
+
+    // Answers every request on the socket until the client closes it.
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String head;
+            while ((head = readHead(in)) != null) {
+                int length = 0;
+                for (String line : head.split("\r\n")) {
+                    if (line.toLowerCase(Locale.US).startsWith("content-length:")) {
+                        length = Integer.parseInt(line.substring(15).trim());
+                    }
+                }
+                for (int i = 0; i < length; i++) {
+                    if (in.read() == -1) {
+                        return;
+                    }
+                }
+                mRequests.incrementAndGet();
+
+                boolean error = head.startsWith("POST /error");
+                byte[] body = (error ? "{\"ok\":false}" : "{\"ok\":true}").getBytes(ASCII);
+                out.write(((error ? "HTTP/1.1 400 Bad Request" : "HTTP/1.1 200 OK") + "\r\n" +
+                        "Content-Type: application/json\r\n" +
+                        "Content-Length: " + body.length + "\r\n\r\n").getBytes(ASCII));
+                out.write(body);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            head.write(b);
+            byte[] bytes = head.toByteArray();
+            int n = bytes.length;
+            if (n >= 4 && bytes[n - 4] == '\r' && bytes[n - 3] == '\n' && bytes[n - 2] == '\r' && bytes[n - 1] == '\n') {
+                return new String(bytes, ASCII);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,96 @@
+package com.hmsoft.locationlogger.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Histogram bucket layout and percentiles of known distributions.
+ */
+public class MetricsTest {
+
+    private static final long MS = 1000000;
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        assertEquals(0, Metrics.Histogram.bucket(0));
+        assertEquals(Long.MAX_VALUE, Metrics.Histogram.upperBound(Metrics.Histogram.bucket(Long.MAX_VALUE)));
+
+        long value = 0;
+        while (value >= 0) {
+            int bucket = Metrics.Histogram.bucket(value);
+            long upper = Metrics.Histogram.upperBound(bucket);
+            long lower = bucket == 0 ? 0 : Metrics.Histogram.upperBound(bucket - 1) + 1;
+            assertTrue(value >= lower && value <= upper);
+            assertEquals(bucket, Metrics.Histogram.bucket(lower));
+            assertEquals(bucket, Metrics.Histogram.bucket(upper));
+            // 8 buckets per power of two.
+            assertTrue((upper - lower) * 8 <= Math.max(lower, 7));
+            value = value < 4096 ? value + 1 : value + value / 7;
+        }
+    }
+
+    @Test
+    public void emptyHistogram() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void uniformPercentiles() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * MS / 10);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertWithin(50 * MS, histogram.getPercentile(50));
+        assertWithin(90 * MS, histogram.getPercentile(90));
+        assertWithin(99 * MS, histogram.getPercentile(99));
+        assertEquals(100 * MS, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void bimodalPercentiles() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (int i = 0; i < 980; i++) {
+            histogram.record(2 * MS);
+        }
+        for (int i = 0; i < 20; i++) {
+            histogram.record(250 * MS);
+        }
+        assertWithin(2 * MS, histogram.getPercentile(50));
+        assertWithin(2 * MS, histogram.getPercentile(98));
+        assertEquals(250 * MS, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void negativeRecordedAsZero() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void sameNameSameMetric() {
+        Metrics.Counter counter = Metrics.counter("test.counter");
+        counter.add(3);
+        assertEquals(3, Metrics.counter("test.counter").get());
+        assertTrue(Metrics.dump().contains("test.counter: 3\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nameClash() {
+        Metrics.counter("test.clash");
+        Metrics.histogram("test.clash");
+    }
+
+    /**
+     * Percentiles report the bucket upper bound, at most 12.5% above the value.
+     */
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " < " + expected, actual >= expected);
+        assertTrue(actual + " > " + expected, actual <= expected + expected / 8);
+    }
+}
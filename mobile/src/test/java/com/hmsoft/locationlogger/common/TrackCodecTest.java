@@ -0,0 +1,111 @@
+package com.hmsoft.locationlogger.common;
+
+import com.hmsoft.locationlogger.data.LocationCursor;
+import com.hmsoft.locationlogger.data.PrimitiveLocationSet;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips a one hour 1 Hz track through the codec and compares it with GPX.
+ */
+public class TrackCodecTest {
+
+    private static final int POINTS = 3600;
+
+    @Test
+    public void roundTripPlain() throws IOException {
+        PrimitiveLocationSet track = createTrack();
+        assertSameTrack(track, TrackCodec.read(new ByteArrayInputStream(encode(track, false))));
+    }
+
+    @Test
+    public void roundTripDeflated() throws IOException {
+        PrimitiveLocationSet track = createTrack();
+        assertSameTrack(track, TrackCodec.read(new ByteArrayInputStream(encode(track, true))));
+    }
+
+    @Test
+    public void smallerThanGpx() throws IOException {
+        PrimitiveLocationSet track = createTrack();
+        int gpx = Gpx.createGpx(track, "test", "").getBytes("UTF-8").length;
+        int plain = encode(track, false).length;
+        int deflated = encode(track, true).length;
+
+        assertTrue("plain " + plain + " gpx " + gpx, plain * 5 < gpx);
+        assertTrue("deflated " + deflated + " plain " + plain, deflated <= plain);
+    }
+
+    @Test
+    public void hugeCountFailsWithoutAllocating() throws IOException {
+        byte[] data = encode(createTrack(), false);
+        // Point count 2^31 - 1 in place of the real one, followed by a truncated payload.
+        byte[] header = {'L', 'T', 'R', 'K', 1, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07};
+        byte[] corrupt = new byte[header.length + 64];
+        System.arraycopy(header, 0, corrupt, 0, header.length);
+        System.arraycopy(data, 8, corrupt, header.length, 64);
+        try {
+            TrackCodec.read(new ByteArrayInputStream(corrupt));
+            fail();
+        } catch (IOException e) {
+            // Expected, EOFException once the points run out.
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownEventCodeFails() throws IOException {
+        // One point, all deltas 0, event code 5 without any event seen.
+        byte[] data = {'L', 'T', 'R', 'K', 1, 0, 1, 0, 0, 0, 0, 0, 0, 0, 5};
+        TrackCodec.read(new ByteArrayInputStream(data));
+    }
+
+    private static byte[] encode(PrimitiveLocationSet track, boolean deflate) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(track.getCount(), TrackCodec.write(track, output, deflate));
+        return output.toByteArray();
+    }
+
+    /**
+     * Values are multiples of the codec resolution so they survive the round trip exactly.
+     */
+    private static PrimitiveLocationSet createTrack() {
+        PrimitiveLocationSet track = new PrimitiveLocationSet();
+        long latitude = 99281234L;
+        long longitude = -840912345L;
+        for (int i = 0; i < POINTS; i++) {
+            latitude += 37 + (i % 11);
+            longitude -= 52 - (i % 7);
+            String event = i == 0 ? "start" : i == POINTS - 1 ? "stop" : i % 600 == 0 ? "fuel" : null;
+            track.add(1767225600000L + i * 1000L, latitude / 1e7, longitude / 1e7,
+                    (1200 - (i % 50)) / 10.0, 3 + (i % 8) / 2f, (i % 120) / 4f, 100 - i / 60, event);
+        }
+        return track;
+    }
+
+    private static void assertSameTrack(PrimitiveLocationSet expected, PrimitiveLocationSet actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        LocationCursor cursor = actual.cursor();
+        try {
+            for (int i = 0; i < expected.getCount(); i++) {
+                assertTrue(cursor.moveToNext());
+                assertEquals(expected.getTime(i), cursor.getTime());
+                assertEquals(expected.getLatitude(i), cursor.getLatitude(), 1e-9);
+                assertEquals(expected.getLongitude(i), cursor.getLongitude(), 1e-9);
+                assertEquals(expected.getAltitude(i), cursor.getAltitude(), 1e-9);
+                assertEquals(expected.getAccuracy(i), cursor.getAccuracy(), 0);
+                assertEquals(expected.getSpeed(i), cursor.getSpeed(), 0);
+                assertEquals(expected.getBatteryLevel(i), cursor.getBatteryLevel());
+                assertEquals(expected.getEvent(i), cursor.getEvent());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.hmsoft.locationlogger.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Put, get and evict sequences, small tables keep the probe chains long so the backward shift
+ * deletion is exercised on every eviction.
+ */
+public class GeocoderCacheTest {
+
+    @Test
+    public void getReturnsWhatWasPut() {
+        GeocoderCache cache = new GeocoderCache(16);
+        for (int i = 0; i < 16; i++) {
+            cache.put(GeocoderCache.key(9928 + i, -84091 - i), "address " + i);
+        }
+        assertEquals(16, cache.size());
+        for (int i = 0; i < 16; i++) {
+            assertEquals("address " + i, cache.get(GeocoderCache.key(9928 + i, -84091 - i)));
+        }
+        assertNull(cache.get(GeocoderCache.key(-84091, 9928)));
+        assertEquals(16, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void putReplacesAddress() {
+        GeocoderCache cache = new GeocoderCache(4);
+        long key = GeocoderCache.key(1, 2);
+        cache.put(key, "old");
+        cache.put(key, "new");
+        assertEquals(1, cache.size());
+        assertEquals("new", cache.get(key));
+    }
+
+    @Test
+    public void clearEmptiesTable() {
+        GeocoderCache cache = new GeocoderCache(4);
+        cache.put(GeocoderCache.key(1, 2), "a");
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(GeocoderCache.key(1, 2)));
+    }
+
+    @Test
+    public void clockSparesReadEntries() {
+        GeocoderCache cache = new GeocoderCache(4);
+        long[] keys = new long[4];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = GeocoderCache.key(i, i);
+            cache.put(keys[i], "address " + i);
+        }
+        for (int round = 0; round < 8; round++) {
+            // Read before every eviction, the clock always finds an unread entry first.
+            assertEquals("address 2", cache.get(keys[2]));
+            cache.put(GeocoderCache.key(100 + round, 0), "new " + round);
+            assertEquals(4, cache.size());
+        }
+        assertEquals("address 2", cache.get(keys[2]));
+    }
+
+    @Test
+    public void evictionKeepsEveryEntryReachable() {
+        int[] sizes = {1, 3, 8, 64};
+        for (int maxEntries : sizes) {
+            GeocoderCache cache = new GeocoderCache(maxEntries);
+            Random random = new Random(maxEntries);
+            ArrayList<Long> keys = new ArrayList<>();
+            for (int i = 0; i < 5000; i++) {
+                // Neighbouring cells, many of them share a home slot.
+                long key = GeocoderCache.key(random.nextInt(200) - 100, random.nextInt(200) - 100);
+                cache.put(key, String.valueOf(key));
+                if (!keys.contains(key)) {
+                    keys.add(key);
+                }
+                assertEquals(String.valueOf(key), cache.get(key));
+                if (random.nextInt(4) == 0) {
+                    cache.get(keys.get(random.nextInt(keys.size())));
+                }
+                assertTrue(cache.size() <= maxEntries);
+                if (i % 97 == 0) {
+                    assertReachable(cache, keys);
+                }
+            }
+            assertReachable(cache, keys);
+        }
+    }
+
+    /**
+     * A probe chain broken by a removal would hide entries that are still counted.
+     */
+    private static void assertReachable(GeocoderCache cache, ArrayList<Long> keys) {
+        int found = 0;
+        for (long key : keys) {
+            String address = cache.get(key);
+            if (address != null) {
+                assertEquals(String.valueOf(key), address);
+                found++;
+            }
+        }
+        assertEquals(cache.size(), found);
+    }
+}
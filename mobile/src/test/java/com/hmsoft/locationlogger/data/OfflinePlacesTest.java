@@ -0,0 +1,99 @@
+package com.hmsoft.locationlogger.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Compiles a small CSV and resolves points around it, in both hemispheres.
+ */
+public class OfflinePlacesTest {
+
+    private static final String CSV =
+            "name,latitude,longitude\n" +
+            "\"San Jos\u00e9, Centro\",9.9333,-84.0833\n" +
+            "\"Caf\u00e9 \"\"La Esquina\"\"\",9.9350,-84.0800\n" +
+            "Heredia, 9.9986 , -84.1165\n" +
+            "Buenos Aires,-34.6037,-58.3816\n" +
+            "\"Quilmes\",-34.7206,-58.2546\n" +
+            "not a place\n" +
+            "Out of range,91.0,0\n" +
+            "\"Unterminated,1,1\n";
+
+    private File mCsvFile;
+    private File mPlacesFile;
+
+    @Before
+    public void compile() throws IOException {
+        mCsvFile = File.createTempFile("places", ".csv");
+        mPlacesFile = new File(mCsvFile.getPath() + ".bin");
+        write(mCsvFile, CSV);
+        assertEquals(5, OfflinePlaces.compile(mCsvFile, mPlacesFile));
+    }
+
+    @After
+    public void delete() {
+        mCsvFile.delete();
+        mPlacesFile.delete();
+    }
+
+    @Test
+    public void countsCompiledPlaces() {
+        assertEquals(5, OfflinePlaces.getCount());
+    }
+
+    @Test
+    public void quotedNames() {
+        assertEquals("San Jos\u00e9, Centro", OfflinePlaces.getNearest(9.9330, -84.0840));
+        assertEquals("Caf\u00e9 \"La Esquina\"", OfflinePlaces.getNearest(9.9352, -84.0798));
+    }
+
+    @Test
+    public void negativeCoordinates() {
+        assertEquals("Buenos Aires", OfflinePlaces.getNearest(-34.6100, -58.3900));
+        assertEquals("Quilmes", OfflinePlaces.getNearest(-34.7000, -58.2700));
+    }
+
+    @Test
+    public void nearestAcrossCellBorder() {
+        // Cells are a tenth of a degree, Heredia is in the cell south of the point.
+        assertEquals("Heredia", OfflinePlaces.getNearest(10.0200, -84.1100));
+    }
+
+    @Test
+    public void tenKilometerCutoff() {
+        // North of Heredia, nothing else is closer.
+        assertEquals("Heredia", OfflinePlaces.getNearest(9.9986 + 9000 / 111320.0, -84.1165));
+        assertNull(OfflinePlaces.getNearest(9.9986 + 11000 / 111320.0, -84.1165));
+        assertNull(OfflinePlaces.getNearest(0, 0));
+    }
+
+    @Test(expected = IOException.class)
+    public void csvWithoutPlacesFails() throws IOException {
+        File empty = File.createTempFile("empty", ".csv");
+        try {
+            write(empty, "name,latitude,longitude\n");
+            OfflinePlaces.compile(empty, new File(empty.getPath() + ".bin"));
+        } finally {
+            empty.delete();
+        }
+    }
+
+    private static void write(File file, String text) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+    }
+}